@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_CONNECTIVITY;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TOLERANCE;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.LabelImageDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.Duplicator;
+import inra.ijpb.binary.BinaryImages;
+import inra.ijpb.morphology.MinimaAndMaxima3D;
+import inra.ijpb.watershed.Watershed;
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * JMH benchmarks of each stage of the MorphoLibJ detection pipeline, on
+ * synthetic membrane images.
+ * <p>
+ * The image size is specified as <code>WxH</code> for 2D images and
+ * <code>WxHxD</code> for 3D images.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true" } )
+public class MorphoLibJPipelineBenchmark< T extends RealType< T > & NativeType< T > >
+{
+
+	@Param( { "512x512", "256x256x32" } )
+	public String size;
+
+	@Param( { "8", "16" } )
+	public int bitDepth;
+
+	@Param( { "30" } )
+	public double tolerance;
+
+	@Param( { "DIAGONAL" } )
+	public Connectivity connectivity;
+
+	@Param( { "100" } )
+	public int nCells;
+
+	private ImgPlus< T > img;
+
+	private ImageStack input;
+
+	private ImageStack regionalMinima;
+
+	private ImageStack imposedMinima;
+
+	private ImageStack labeledMinima;
+
+	private Img< T > labelImage;
+
+	private double[] calibration;
+
+	private VoxelGrid grid;
+
+	private int[] levels;
+
+	private int nLevels;
+
+	private int[] markers;
+
+	private Map< String, Object > settings;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final String[] tokens = size.split( "x" );
+		final int width = Integer.parseInt( tokens[ 0 ] );
+		final int height = Integer.parseInt( tokens[ 1 ] );
+		final int depth = ( tokens.length > 2 ) ? Integer.parseInt( tokens[ 2 ] ) : 1;
+
+		input = SyntheticMembranes.create( width, height, depth, nCells, bitDepth, 1L );
+		final ImagePlus imp = new ImagePlus( "synthetic", input );
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > wrapped = TMUtils.rawWraps( imp );
+		img = wrapped;
+		calibration = TMUtils.getSpatialCalibration( img );
+
+		final int conn = connectivity.getConnectivity();
+		regionalMinima = MinimaAndMaxima3D.extendedMinima( input, tolerance, conn );
+		imposedMinima = MinimaAndMaxima3D.imposeMinima( input, regionalMinima, conn );
+		labeledMinima = BinaryImages.componentsLabeling( regionalMinima, conn, 32 );
+		final ImageStack result = Watershed.computeWatershed( imposedMinima, labeledMinima, conn, false );
+		labelImage = ImageJFunctions.wrap( new ImagePlus( "watershed", result ) );
+
+		grid = new VoxelGrid( img, connectivity );
+		final float[] values = ImgLib2Watershed.read( img, new float[ grid.size ] );
+		final MorphoLibJDetectorStats stats = new MorphoLibJDetectorStats();
+		markers = FusedMinima.markers( values, grid, tolerance, FusedMinima.maxValue( input ), stats ).clone();
+		levels = new int[ grid.size ];
+		nLevels = ImgLib2Watershed.toLevels( values, levels );
+
+		settings = new MorphoLibJDetectorFactory<>().getDefaultSettings();
+		settings.put( KEY_TOLERANCE, tolerance );
+		settings.put( KEY_CONNECTIVITY, connectivity.getConnectivity() );
+	}
+
+	@Benchmark
+	public ImageStack wrapAndDuplicate()
+	{
+		final ImagePlus tmp = ImageJFunctions.wrap( img, "tmpwrapped" );
+		return new Duplicator().run( tmp ).getImageStack();
+	}
+
+	@Benchmark
+	public ImageStack zeroCopyWrap()
+	{
+		return ZeroCopyStacks.wrap( img );
+	}
+
+	@Benchmark
+	public ImageStack extendedMinima()
+	{
+		return MinimaAndMaxima3D.extendedMinima( input, tolerance, connectivity.getConnectivity() );
+	}
+
+	@Benchmark
+	public ImageStack imposeMinima()
+	{
+		return MinimaAndMaxima3D.imposeMinima( input, regionalMinima, connectivity.getConnectivity() );
+	}
+
+	@Benchmark
+	public ImageStack componentsLabeling()
+	{
+		return BinaryImages.componentsLabeling( regionalMinima, connectivity.getConnectivity(), 32 );
+	}
+
+	@Benchmark
+	public ImageStack computeWatershed()
+	{
+		return Watershed.computeWatershed( imposedMinima, labeledMinima, connectivity.getConnectivity(), false );
+	}
+
+	@Benchmark
+	public ImageStack fusedMinima()
+	{
+		return FusedMinima.markers( input, tolerance, connectivity );
+	}
+
+	@Benchmark
+	public Object imglib2Watershed()
+	{
+		return ImgLib2Watershed.segment( img, tolerance, connectivity );
+	}
+
+	/**
+	 * Flooding stage of the ImgLib2 backend alone, to compare with
+	 * {@link #computeWatershed()}. Includes the copy of the markers.
+	 */
+	@Benchmark
+	public int[] imglib2Flooding()
+	{
+		final int[] labels = markers.clone();
+		ImgLib2Watershed.flood( levels, nLevels, labels, grid, new MorphoLibJDetectorStats() );
+		return labels;
+	}
+
+	/**
+	 * The whole detector run frame after frame on the same thread, as the
+	 * detection threads of TrackMate do. Once warm, the scratch buffers of
+	 * the thread are reused and the allocated bytes drop to about the size of
+	 * the returned label image.
+	 */
+	@Benchmark
+	public List< Spot > detectorPooled( final Allocations allocations )
+	{
+		return detect( allocations );
+	}
+
+	/**
+	 * Same as {@link #detectorPooled(Allocations)} with buffer pooling
+	 * disabled, as a reference for the allocated bytes.
+	 */
+	@Benchmark
+	public List< Spot > detectorUnpooled( final NoPooling noPooling, final Allocations allocations )
+	{
+		return detect( allocations );
+	}
+
+	private List< Spot > detect( final Allocations allocations )
+	{
+		final MorphoLibJDetector< T > detector = MorphoLibJDetectorFactory.createDetector( img, settings, img );
+		detector.setNumThreads( 1 );
+		if ( !detector.checkInput() || !detector.process() )
+			throw new IllegalStateException( detector.getErrorMessage() );
+		allocations.bytesAllocated += detector.getStats().getBytesAllocated();
+		allocations.frames++;
+		return detector.getResult();
+	}
+
+	/**
+	 * Bytes allocated by the detector for its scratch buffers, and number of
+	 * frames processed, reported by JMH for each iteration. Run with
+	 * <code>-prof gc</code> to compare with the total allocation rate per
+	 * frame.
+	 */
+	@State( Scope.Thread )
+	@AuxCounters( AuxCounters.Type.EVENTS )
+	public static class Allocations
+	{
+
+		public long bytesAllocated;
+
+		public long frames;
+
+		@Setup( Level.Iteration )
+		public void reset()
+		{
+			bytesAllocated = 0;
+			frames = 0;
+		}
+	}
+
+	/**
+	 * Disables buffer pooling for the duration of a benchmark.
+	 */
+	@State( Scope.Benchmark )
+	public static class NoPooling
+	{
+
+		@Setup( Level.Trial )
+		public void disable()
+		{
+			ScratchBufferPool.setMaxRetainedBytes( 0 );
+		}
+
+		@TearDown( Level.Trial )
+		public void restore()
+		{
+			ScratchBufferPool.setMaxRetainedBytes( 1L << 28 );
+		}
+	}
+
+	@Benchmark
+	public List< Spot > labelImageDetector()
+	{
+		final LabelImageDetector< T > detector = new LabelImageDetector<>( labelImage, labelImage, calibration, false );
+		if ( !detector.checkInput() || !detector.process() )
+			throw new IllegalStateException( detector.getErrorMessage() );
+		return detector.getResult();
+	}
+}
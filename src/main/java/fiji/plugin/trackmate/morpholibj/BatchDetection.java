@@ -0,0 +1,812 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.DEFAULT_TEMPORAL_SEEDING;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TEMPORAL_SEEDING;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Headless batch detection over many image files.
+ * <p>
+ * Each file is opened with {@link IJ#openImage(String)}, without creating
+ * any window, and each of its frames is segmented by a separate task on a
+ * work-stealing {@link ForkJoinPool}. A file task forks one task per frame,
+ * so threads that are done with their own file steal frames from the others,
+ * and long movies do not leave the machine idle at the end of a batch. With
+ * temporal seeding, the frames of a file depend on each other and are
+ * segmented in order by the file task itself.
+ * <p>
+ * The spots of each frame are written to a part file as soon as the frame
+ * is done, with a write to a temporary file followed by a rename. Once all
+ * the frames of a file are done, the parts are concatenated in a single spot
+ * file named after the image, and deleted. Spot files are CSV files by
+ * default, or columnar binary files that can be memory-mapped, see
+ * {@link Format}. Part files and complete spot files act as the checkpoint:
+ * when the batch is run again on the same output folder, files with a spot
+ * file and frames with a part file are skipped, so that a killed job
+ * restarts where it left off. The detector settings and the format are
+ * recorded in the output folder, with their SHA-256 digest, and a batch
+ * with other settings refuses to run on the same folder.
+ * <p>
+ * With temporal seeding, a resumed file is segmented again from its first
+ * missing frame, so that the following frames are seeded by their
+ * predecessor. This first frame is segmented from scratch, because the
+ * markers of the previous frame are not kept, so its spots and those of the
+ * next frames may differ slightly from an uninterrupted run.
+ * <p>
+ * At most {@link #setMaxOpenFiles(int) a given number} of images are open at
+ * the same time. A file is only opened once a previous one is done, and its
+ * frames are shared by all the threads meanwhile.
+ * <p>
+ * The batch can be run from the command line, see {@link #main(String[])}.
+ */
+public class BatchDetection implements Algorithm, MultiThreaded, Benchmark
+{
+
+	private final static String BASE_ERROR_MESSAGE = "BatchDetection: ";
+
+	/**
+	 * Formats of the spot files.
+	 */
+	public enum Format
+	{
+		/** Text file with the {@link BatchDetection#COLUMNS} header. */
+		CSV( ".csv" ),
+		/** Columnar binary file, see {@link SpotColumnsWriter}. */
+		COLUMNS( ".spots" );
+
+		private final String extension;
+
+		private Format( final String extension )
+		{
+			this.extension = extension;
+		}
+
+		/**
+		 * Returns the extension of the spot files in this format.
+		 *
+		 * @return the extension, with a leading dot.
+		 */
+		public String extension()
+		{
+			return extension;
+		}
+	}
+
+	private static final String PARTS_SUFFIX = ".parts";
+
+	/** Name of the file recording the settings of the batch. */
+	public static final String SETTINGS_FILE = "batch-settings.txt";
+
+	/** Header of the spot files. */
+	public static final String[] COLUMNS = new String[] {
+			Spot.FRAME,
+			Spot.POSITION_X,
+			Spot.POSITION_Y,
+			Spot.POSITION_Z,
+			Spot.POSITION_T,
+			Spot.RADIUS,
+			Spot.QUALITY,
+			MultiChannelDetector.CHANNEL_FEATURE };
+
+	private final List< Path > files;
+
+	private final Path outputFolder;
+
+	private final Map< String, Object > settings;
+
+	private final Queue< String > errors = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger framesProcessed = new AtomicInteger();
+
+	private final AtomicInteger framesSkipped = new AtomicInteger();
+
+	private final AtomicLong nSpots = new AtomicLong();
+
+	private Format format = Format.CSV;
+
+	private MorphoLibJMetrics.Aggregator stats = new MorphoLibJMetrics.Aggregator();
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private int numThreads;
+
+	private int maxOpenFiles;
+
+	/**
+	 * Creates a batch detection.
+	 *
+	 * @param files
+	 *            the image files to process. Their names, without extension,
+	 *            must be unique.
+	 * @param outputFolder
+	 *            the folder in which to write the spot files. Created if
+	 *            needed.
+	 * @param settings
+	 *            the MorphoLibJ detector settings.
+	 */
+	public BatchDetection( final List< Path > files, final Path outputFolder, final Map< String, Object > settings )
+	{
+		this.files = files;
+		this.outputFolder = outputFolder;
+		this.settings = settings;
+		setNumThreads();
+	}
+
+	/**
+	 * Sets the format of the spot files. Spot shapes are written in the
+	 * {@link Format#COLUMNS} format only.
+	 *
+	 * @param format
+	 *            the format.
+	 */
+	public void setFormat( final Format format )
+	{
+		this.format = format;
+	}
+
+	/**
+	 * Sets the maximal number of images open at the same time. Defaults to
+	 * the number of threads.
+	 *
+	 * @param maxOpenFiles
+	 *            the number of images, at least 1.
+	 */
+	public void setMaxOpenFiles( final int maxOpenFiles )
+	{
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( files == null || files.isEmpty() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "No file to process.";
+			return false;
+		}
+		if ( outputFolder == null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Output folder is null.";
+			return false;
+		}
+		final Map< String, Path > names = new HashMap<>();
+		for ( final Path file : files )
+		{
+			final Path other = names.put( baseName( file ), file );
+			if ( other != null )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Files " + other + " and " + file + " would write to the same output.";
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		errors.clear();
+		framesProcessed.set( 0 );
+		framesSkipped.set( 0 );
+		nSpots.set( 0 );
+		stats = new MorphoLibJMetrics.Aggregator();
+		try
+		{
+			Files.createDirectories( outputFolder );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Cannot create the output folder: " + e.getMessage();
+			return false;
+		}
+		if ( !checkSettingsRecord() )
+			return false;
+
+		final ForkJoinPool pool = ScratchBufferPool.newForkJoinPool( Math.max( 1, numThreads ) );
+		final Semaphore openFiles = new Semaphore( Math.max( 1, maxOpenFiles > 0 ? maxOpenFiles : numThreads ) );
+		try
+		{
+			// Files are submitted as others complete, to bound the images open.
+			final List< ForkJoinTask< ? > > tasks = new ArrayList<>( files.size() );
+			for ( final Path file : files )
+			{
+				try
+				{
+					openFiles.acquire();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					errors.add( "Interrupted before processing " + file );
+					break;
+				}
+				tasks.add( pool.submit( () -> {
+					try
+					{
+						processFile( file );
+					}
+					finally
+					{
+						openFiles.release();
+					}
+				} ) );
+			}
+			for ( int i = 0; i < tasks.size(); i++ )
+			{
+				try
+				{
+					tasks.get( i ).join();
+				}
+				catch ( final RuntimeException e )
+				{
+					errors.add( files.get( i ) + ": " + e.getMessage() );
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		processingTime = System.currentTimeMillis() - start;
+		if ( !errors.isEmpty() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + String.join( "\n", errors );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Segments the frames of one file that are not done yet, and merges the
+	 * frame parts once they are all present.
+	 */
+	private < T extends RealType< T > & NativeType< T > > void processFile( final Path file )
+	{
+		final String name = baseName( file );
+		final Path output = outputFolder.resolve( name + format.extension() );
+		if ( Files.exists( output ) )
+			return;
+
+		final ImagePlus imp = IJ.openImage( file.toString() );
+		if ( imp == null )
+		{
+			errors.add( file + ": cannot open the image." );
+			return;
+		}
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final int nFrames = ( timeDim < 0 ) ? 1 : ( int ) img.dimension( timeDim );
+		final double frameInterval = ( timeDim < 0 ) ? 1. : img.averageScale( timeDim );
+		final Interval interval = new FinalInterval( TMUtils.hyperSlice( img, 0, 0 ) );
+		final Path parts = outputFolder.resolve( name + PARTS_SUFFIX );
+		try
+		{
+			Files.createDirectories( parts );
+		}
+		catch ( final IOException e )
+		{
+			errors.add( file + ": " + e.getMessage() );
+			return;
+		}
+
+		// One factory per file, so that temporal seeds are not shared.
+		final MorphoLibJDetectorFactory< T > factory = new MorphoLibJDetectorFactory<>();
+		final boolean seeded = ( boolean ) settings.getOrDefault( KEY_TEMPORAL_SEEDING, DEFAULT_TEMPORAL_SEEDING );
+		final List< ForkJoinTask< ? > > frameTasks = new ArrayList<>();
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final int frame = t;
+			final Path part = parts.resolve( partName( frame ) );
+			// Seeded frames after a missing one are done again, in order.
+			if ( Files.exists( part ) && ( !seeded || frameTasks.isEmpty() ) )
+			{
+				framesSkipped.incrementAndGet();
+				continue;
+			}
+			frameTasks.add( ForkJoinTask.adapt( () -> detect( factory, img, interval, frame, frameInterval, part, file ) ) );
+		}
+
+		if ( seeded )
+		{
+			// Each frame waits for the markers of the previous one.
+			for ( final ForkJoinTask< ? > task : frameTasks )
+				task.invoke();
+		}
+		else
+		{
+			ForkJoinTask.invokeAll( frameTasks );
+		}
+
+		try
+		{
+			merge( parts, nFrames, output );
+		}
+		catch ( final IOException e )
+		{
+			errors.add( file + ": cannot write the spots: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Segments one frame and writes its spots to the specified part file.
+	 * Failures are recorded, and leave no part file, so that the frame is
+	 * processed again when the batch is resumed.
+	 */
+	private < T extends RealType< T > & NativeType< T > > void detect(
+			final MorphoLibJDetectorFactory< T > factory,
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int frame,
+			final double frameInterval,
+			final Path part,
+			final Path file )
+	{
+		try
+		{
+			final SpotDetector< T > detector = factory.getDetector( img, settings, interval, frame );
+			// The pool already runs one frame per thread.
+			if ( detector instanceof MultiThreaded )
+				( ( MultiThreaded ) detector ).setNumThreads( 1 );
+			if ( !detector.checkInput() || !detector.process() )
+			{
+				errors.add( file + ", frame " + frame + ": " + detector.getErrorMessage() );
+				return;
+			}
+			if ( detector instanceof MorphoLibJDetector )
+				stats.accept( ( ( MorphoLibJDetector< T > ) detector ).getStats() );
+
+			final List< Spot > spots = detector.getResult();
+			for ( final Spot spot : spots )
+			{
+				spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
+				spot.putFeature( Spot.POSITION_T, Double.valueOf( frame * frameInterval ) );
+			}
+			writeAtomically( part, frame, spots );
+			framesProcessed.incrementAndGet();
+			nSpots.addAndGet( spots.size() );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			errors.add( file + ", frame " + frame + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Concatenates the frame parts in the specified output file, with a
+	 * header, if all frames are done, and deletes the parts.
+	 */
+	private void merge( final Path parts, final int nFrames, final Path output ) throws IOException
+	{
+		for ( int frame = 0; frame < nFrames; frame++ )
+			if ( !Files.exists( parts.resolve( partName( frame ) ) ) )
+				return;
+
+		final Path tmp = Files.createTempFile( output.getParent(), output.getFileName().toString(), ".tmp" );
+		try
+		{
+			try (FileChannel channel = FileChannel.open( tmp, StandardOpenOption.WRITE ))
+			{
+				if ( format == Format.COLUMNS )
+					SpotColumnsWriter.writeHeader( channel, SpotColumnsWriter.newBuffer() );
+				else
+					channel.write( StandardCharsets.UTF_8.encode( String.join( ",", COLUMNS ) + System.lineSeparator() ) );
+				for ( int frame = 0; frame < nFrames; frame++ )
+				{
+					try (FileChannel part = FileChannel.open( parts.resolve( partName( frame ) ), StandardOpenOption.READ ))
+					{
+						final long size = part.size();
+						long position = 0;
+						while ( position < size )
+							position += part.transferTo( position, size - position, channel );
+					}
+				}
+			}
+			Files.move( tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+
+		for ( int frame = 0; frame < nFrames; frame++ )
+			Files.deleteIfExists( parts.resolve( partName( frame ) ) );
+		Files.deleteIfExists( parts );
+	}
+
+	/**
+	 * Writes the spots of one frame to a part file, in the format of this
+	 * batch, through a temporary file renamed once complete, so that the file
+	 * either does not exist or is complete, even if the process is killed.
+	 * CSV parts have no header, and column parts have no file header, so that
+	 * parts can be concatenated.
+	 */
+	private void writeAtomically( final Path file, final int frame, final List< Spot > spots ) throws IOException
+	{
+		final Path tmp = Files.createTempFile( file.getParent(), file.getFileName().toString(), ".tmp" );
+		try
+		{
+			if ( format == Format.COLUMNS )
+			{
+				try (FileChannel channel = FileChannel.open( tmp, StandardOpenOption.WRITE ))
+				{
+					SpotColumnsWriter.writeBlock( channel, frame, spots, true, SpotColumnsWriter.newBuffer() );
+				}
+			}
+			else
+			{
+				try (BufferedWriter writer = Files.newBufferedWriter( tmp, StandardCharsets.UTF_8 ))
+				{
+					final StringBuilder str = new StringBuilder();
+					for ( final Spot spot : spots )
+					{
+						str.setLength( 0 );
+						for ( int c = 0; c < COLUMNS.length; c++ )
+						{
+							if ( c > 0 )
+								str.append( ',' );
+							final Double value = spot.getFeature( COLUMNS[ c ] );
+							if ( value != null )
+								str.append( value.doubleValue() );
+						}
+						writer.write( str.toString() );
+						writer.newLine();
+					}
+				}
+			}
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	/**
+	 * Records the settings of this batch in the output folder, or checks that
+	 * they match the settings recorded by a previous run.
+	 *
+	 * @return <code>false</code> if the output folder holds the results of
+	 *         other settings, or if the record cannot be read or written.
+	 */
+	private boolean checkSettingsRecord()
+	{
+		final List< String > lines = new ArrayList<>();
+		for ( final Map.Entry< String, Object > entry : new TreeMap<>( settings ).entrySet() )
+			lines.add( entry.getKey() + "=" + entry.getValue() );
+		lines.add( "FORMAT=" + format.name() );
+		final String digest = sha256( String.join( "\n", lines ) );
+
+		final Path record = outputFolder.resolve( SETTINGS_FILE );
+		try
+		{
+			if ( Files.exists( record ) )
+			{
+				final List< String > recorded = Files.readAllLines( record, StandardCharsets.UTF_8 );
+				if ( recorded.isEmpty() || !recorded.get( 0 ).equals( "sha256=" + digest ) )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "The output folder " + outputFolder
+							+ " holds the results of other settings, see " + SETTINGS_FILE
+							+ ". Use another folder, or empty this one.";
+					return false;
+				}
+				return true;
+			}
+
+			lines.add( 0, "sha256=" + digest );
+			final Path tmp = Files.createTempFile( outputFolder, SETTINGS_FILE, ".tmp" );
+			try
+			{
+				Files.write( tmp, lines, StandardCharsets.UTF_8 );
+				Files.move( tmp, record, StandardCopyOption.ATOMIC_MOVE );
+			}
+			finally
+			{
+				Files.deleteIfExists( tmp );
+			}
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Cannot record the settings: " + e.getMessage();
+			return false;
+		}
+	}
+
+	private static String sha256( final String str )
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		final StringBuilder hex = new StringBuilder();
+		for ( final byte b : digest.digest( str.getBytes( StandardCharsets.UTF_8 ) ) )
+			hex.append( String.format( "%02x", b ) );
+		return hex.toString();
+	}
+
+	private String partName( final int frame )
+	{
+		return String.format( "t%05d", frame ) + format.extension();
+	}
+
+	private static String baseName( final Path file )
+	{
+		final String name = file.getFileName().toString();
+		final int dot = name.lastIndexOf( '.' );
+		return ( dot > 0 ) ? name.substring( 0, dot ) : name;
+	}
+
+	/**
+	 * Lists the image files to process. Folders are replaced by the TIFF
+	 * files they contain, sorted by name. Other paths are kept as they are.
+	 *
+	 * @param inputs
+	 *            the files and folders to process.
+	 * @return the files to process.
+	 * @throws IOException
+	 *             if a folder cannot be listed.
+	 */
+	public static List< Path > listImages( final List< Path > inputs ) throws IOException
+	{
+		final List< Path > files = new ArrayList<>();
+		for ( final Path input : inputs )
+		{
+			if ( !Files.isDirectory( input ) )
+			{
+				files.add( input );
+				continue;
+			}
+			final List< Path > content = new ArrayList<>();
+			try (DirectoryStream< Path > stream = Files.newDirectoryStream( input, "*.{tif,tiff,TIF,TIFF}" ))
+			{
+				for ( final Path file : stream )
+					content.add( file );
+			}
+			Collections.sort( content );
+			files.addAll( content );
+		}
+		return files;
+	}
+
+	/**
+	 * Parses detector settings given as <code>KEY=value</code> strings. The
+	 * values are converted to the type of the default value of their key, and
+	 * the keys that are not specified keep their default value.
+	 *
+	 * @param keyValues
+	 *            the settings to parse.
+	 * @return a new settings map.
+	 * @throws IllegalArgumentException
+	 *             if a key is unknown or a value cannot be parsed.
+	 */
+	public static Map< String, Object > parseSettings( final List< String > keyValues )
+	{
+		final Map< String, Object > settings = new MorphoLibJDetectorFactory<>().getDefaultSettings();
+		for ( final String keyValue : keyValues )
+		{
+			final int eq = keyValue.indexOf( '=' );
+			if ( eq <= 0 )
+				throw new IllegalArgumentException( "Malformed setting: " + keyValue );
+			final String key = keyValue.substring( 0, eq ).trim().toUpperCase( Locale.ROOT );
+			final String str = keyValue.substring( eq + 1 ).trim();
+			final Object def = settings.get( key );
+			if ( def == null && !settings.containsKey( key ) )
+				throw new IllegalArgumentException( "Unknown setting: " + key );
+
+			if ( def instanceof Integer )
+				settings.put( key, Integer.valueOf( str ) );
+			else if ( def instanceof Double )
+				settings.put( key, Double.valueOf( str ) );
+			else if ( def instanceof Boolean )
+				settings.put( key, Boolean.valueOf( str ) );
+			else
+				settings.put( key, str );
+		}
+		return settings;
+	}
+
+	/**
+	 * Returns the number of frames segmented by the last call to
+	 * {@link #process()}.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getFramesProcessed()
+	{
+		return framesProcessed.get();
+	}
+
+	/**
+	 * Returns the number of frames skipped by the last call to
+	 * {@link #process()}, because they were done by a previous run.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getFramesSkipped()
+	{
+		return framesSkipped.get();
+	}
+
+	/**
+	 * Returns the number of spots detected by the last call to
+	 * {@link #process()}.
+	 *
+	 * @return the number of spots.
+	 */
+	public long getSpotCount()
+	{
+		return nSpots.get();
+	}
+
+	/**
+	 * Returns the aggregated processing statistics of the frames segmented by
+	 * the last call to {@link #process()}.
+	 *
+	 * @return the statistics.
+	 */
+	public MorphoLibJMetrics.Aggregator getStats()
+	{
+		return stats;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Runs a batch detection from the command line:
+	 *
+	 * <pre>
+	 * BatchDetection OUTPUT_FOLDER INPUT... [KEY=value...]
+	 * </pre>
+	 *
+	 * Inputs are image files or folders of TIFF files. Settings use the keys
+	 * of {@link MorphoLibJDetectorFactory}, for instance
+	 * <code>TOLERANCE=20</code> or <code>TARGET_CHANNEL=2</code>. The number
+	 * of threads can be set with <code>-Dthreads=N</code>, the maximal number
+	 * of open images with <code>-DmaxOpenFiles=N</code>, and the binary
+	 * columnar output selected with <code>-Dformat=COLUMNS</code>. The exit
+	 * code is 0
+	 * on success and 1 if a file or a frame failed; running the same command
+	 * again resumes the batch.
+	 *
+	 * @param args
+	 *            the command-line arguments.
+	 * @throws IOException
+	 *             if an input folder cannot be listed.
+	 */
+	public static void main( final String[] args ) throws IOException
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		if ( args.length < 2 )
+		{
+			System.err.println( "Usage: BatchDetection OUTPUT_FOLDER INPUT... [KEY=value...]" );
+			System.exit( 2 );
+		}
+
+		final List< Path > inputs = new ArrayList<>();
+		final List< String > keyValues = new ArrayList<>();
+		for ( int i = 1; i < args.length; i++ )
+		{
+			if ( args[ i ].indexOf( '=' ) > 0 )
+				keyValues.add( args[ i ] );
+			else
+				inputs.add( Paths.get( args[ i ] ) );
+		}
+
+		final BatchDetection batch = new BatchDetection( listImages( inputs ), Paths.get( args[ 0 ] ), parseSettings( keyValues ) );
+		final Integer threads = Integer.getInteger( "threads" );
+		if ( threads != null )
+			batch.setNumThreads( threads );
+		final Integer maxOpenFiles = Integer.getInteger( "maxOpenFiles" );
+		if ( maxOpenFiles != null )
+			batch.setMaxOpenFiles( maxOpenFiles );
+		batch.setFormat( Format.valueOf( System.getProperty( "format", Format.CSV.name() ).toUpperCase( Locale.ROOT ) ) );
+		final boolean ok = batch.checkInput() && batch.process();
+		System.out.println( String.format( "%d frames processed, %d skipped, %d spots, in %d ms.",
+				batch.getFramesProcessed(), batch.getFramesSkipped(), batch.getSpotCount(), batch.getProcessingTime() ) );
+		if ( !ok )
+		{
+			System.err.println( batch.getErrorMessage() );
+			System.exit( 1 );
+		}
+	}
+}
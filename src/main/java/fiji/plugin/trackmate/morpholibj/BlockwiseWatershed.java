@@ -0,0 +1,312 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Block-wise version of the marker-controlled watershed, for images that do
+ * not fit in memory, such as cell images backed by chunked files.
+ * <p>
+ * The image is split in blocks along all its dimensions. Block boundaries
+ * are aligned on multiples of the block size in the coordinates of the
+ * full image, so that with a block size that is a multiple of the storage
+ * chunk size, each block reads whole chunks. Each block is segmented
+ * independently, over the block expanded by a halo, by a pool of threads.
+ * Only the labels of its core are kept, and written in a memory-mapped
+ * label volume (see {@link MappedVolume}). The labels each block computed
+ * just outside its core are kept too, and used to merge labels across
+ * block boundaries with a union-find: a label of a block and a label of its
+ * neighbor are merged when they are each other's best match in the
+ * one-pixel shell around the block core.
+ * <p>
+ * Only one block per thread is on the heap at a time. The stitching is a
+ * heuristic, and the result is an approximation of the segmentation of the
+ * whole image: extended minima are not local, so a block may find minima
+ * that the whole image does not have, or miss some, whatever the halo. Such
+ * differences split, merge or shift objects, mostly near block boundaries.
+ * A larger halo makes them rarer. Every pixel of the result is labeled.
+ */
+public class BlockwiseWatershed
+{
+
+	private BlockwiseWatershed()
+	{}
+
+	/**
+	 * Segments the specified image block by block.
+	 *
+	 * @param source
+	 *            the image to segment. Must be zero-min.
+	 * @param origin
+	 *            the position of the source in the full image, used to align
+	 *            blocks.
+	 * @param blockSize
+	 *            the size of blocks along each dimension, in pixels.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param backend
+	 *            the watershed implementation used to segment each block.
+	 * @param halo
+	 *            the number of pixels by which blocks are expanded on each
+	 *            side before segmentation.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param directory
+	 *            the directory in which to create the memory-mapped label
+	 *            volume, or <code>null</code> to use the default temporary
+	 *            directory.
+	 * @param stats
+	 *            the statistics in which to record the time spent in each
+	 *            stage, summed over blocks, and the memory allocated.
+	 * @return the label volume, of the size of the source, in raster order.
+	 *         It must be closed when not used anymore.
+	 * @throws IOException
+	 *             if the memory-mapped label volume cannot be created.
+	 * @throws InterruptedException
+	 *             if the computation is interrupted.
+	 * @throws ExecutionException
+	 *             if the segmentation of one block fails.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > MappedVolume segment(
+			final RandomAccessibleInterval< T > source,
+			final long[] origin,
+			final long[] blockSize,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final int halo,
+			final int numThreads,
+			final Path directory,
+			final MorphoLibJDetectorStats stats ) throws IOException, InterruptedException, ExecutionException
+	{
+		final int n = source.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( source );
+		if ( Intervals.numElements( dims ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Image too large for block-wise segmentation: " + Intervals.numElements( dims ) + " pixels." );
+
+		/*
+		 * Block layout. Along dimension d, block k spans [bounds[d][k],
+		 * bounds[d][k+1][.
+		 */
+		final long[][] bounds = new long[ n ][];
+		int nBlocks = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			final long size = Math.max( 1, blockSize[ Math.min( d, blockSize.length - 1 ) ] );
+			bounds[ d ] = blockBounds( dims[ d ], origin[ d ], size );
+			nBlocks *= bounds[ d ].length - 1;
+		}
+
+		/*
+		 * Segment blocks in parallel.
+		 */
+
+		final MappedVolume output = new MappedVolume( ( int ) Intervals.numElements( dims ), directory );
+		final AtomicInteger nLabels = new AtomicInteger();
+		final IntFifo[] shells = new IntFifo[ nBlocks ];
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, nBlocks ) ), ScratchBufferPool.threadFactory() );
+		try
+		{
+			final List< Future< IntFifo > > futures = new ArrayList<>( nBlocks );
+			for ( int b = 0; b < nBlocks; b++ )
+			{
+				final long[] coreMin = new long[ n ];
+				final long[] coreMax = new long[ n ];
+				int k = b;
+				for ( int d = 0; d < n; d++ )
+				{
+					final int nd = bounds[ d ].length - 1;
+					coreMin[ d ] = bounds[ d ][ k % nd ];
+					coreMax[ d ] = bounds[ d ][ k % nd + 1 ] - 1;
+					k /= nd;
+				}
+				futures.add( executor.submit( () -> segmentBlock( source, coreMin, coreMax, halo, tolerance, connectivity, backend, output, nLabels, stats ) ) );
+			}
+			for ( int b = 0; b < nBlocks; b++ )
+				shells[ b ] = futures.get( b ).get();
+		}
+		catch ( InterruptedException | ExecutionException | RuntimeException e )
+		{
+			output.close();
+			throw e;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		final long start = System.nanoTime();
+
+		/*
+		 * Merge labels across block boundaries.
+		 */
+
+		final int[] parent = new int[ nLabels.get() + 1 ];
+		for ( int l = 0; l < parent.length; l++ )
+			parent[ l ] = l;
+		for ( final IntFifo shell : shells )
+		{
+			final Map< Long, Integer > counts = new HashMap<>();
+			while ( !shell.isEmpty() )
+			{
+				final int index = shell.poll();
+				final int lb = shell.poll();
+				final int la = output.getValue( index );
+				if ( la == 0 )
+					continue;
+				final long key = ( ( long ) la << 32 ) | lb;
+				counts.merge( key, 1, Integer::sum );
+			}
+			TiledWatershed.mergeBestMatches( counts, parent );
+		}
+
+		final boolean[] present = new boolean[ parent.length ];
+		for ( int i = 0; i < output.size; i++ )
+		{
+			final int l = TiledWatershed.find( parent, output.getValue( i ) );
+			output.setValue( i, l );
+			present[ l ] = true;
+		}
+		int nMerged = 0;
+		for ( int l = 1; l < present.length; l++ )
+			if ( present[ l ] )
+				nMerged++;
+		stats.setLabels( nMerged );
+		stats.addTime( Stage.STITCHING, System.nanoTime() - start );
+		return output;
+	}
+
+	/**
+	 * Segments one block expanded by the halo, writes the labels of its core
+	 * in the output, and returns the labels computed just outside the core,
+	 * as pairs of output index and label.
+	 */
+	private static < T extends RealType< T > & NativeType< T > > IntFifo segmentBlock(
+			final RandomAccessibleInterval< T > source,
+			final long[] coreMin,
+			final long[] coreMax,
+			final int halo,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final MappedVolume output,
+			final AtomicInteger nLabels,
+			final MorphoLibJDetectorStats stats )
+	{
+		final int n = source.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] strides = new long[ n ];
+		long stride = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			min[ d ] = Math.max( source.min( d ), coreMin[ d ] - halo );
+			max[ d ] = Math.min( source.max( d ), coreMax[ d ] + halo );
+			strides[ d ] = stride;
+			stride *= source.dimension( d );
+		}
+		final RandomAccessibleInterval< T > block = Views.zeroMin( Views.interval( source, min, max ) );
+		final int[] labels = TiledWatershed.segmentTile( block, tolerance, connectivity, backend, stats );
+
+		int maxLabel = 0;
+		for ( final int l : labels )
+			maxLabel = Math.max( maxLabel, l );
+		final int offset = nLabels.getAndAdd( maxLabel );
+
+		// Visit the expanded block in raster order.
+		final IntFifo shell = new IntFifo();
+		final long[] position = min.clone();
+		for ( int i = 0; i < labels.length; i++ )
+		{
+			boolean inCore = true;
+			boolean inShell = true;
+			long index = 0;
+			for ( int d = 0; d < n; d++ )
+			{
+				final long p = position[ d ];
+				if ( p < coreMin[ d ] || p > coreMax[ d ] )
+					inCore = false;
+				if ( p < coreMin[ d ] - 1 || p > coreMax[ d ] + 1 )
+					inShell = false;
+				index += p * strides[ d ];
+			}
+
+			final int label = ( labels[ i ] == 0 ) ? 0 : labels[ i ] + offset;
+			if ( inCore )
+			{
+				// Blocks write disjoint parts of the output.
+				output.setValue( ( int ) index, label );
+			}
+			else if ( inShell && label != 0 )
+			{
+				shell.add( ( int ) index );
+				shell.add( label );
+			}
+
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( ++position[ d ] <= max[ d ] )
+					break;
+				position[ d ] = min[ d ];
+			}
+		}
+		ScratchBufferPool.get().release( labels );
+		return shell;
+	}
+
+	/**
+	 * Returns the block boundaries along one dimension, aligned on multiples
+	 * of the block size in the coordinates of the full image.
+	 *
+	 * @return the boundaries, starting with 0 and ending with the dimension.
+	 */
+	static long[] blockBounds( final long dimension, final long origin, final long blockSize )
+	{
+		final long first = blockSize - Math.floorMod( origin, blockSize );
+		final int nBlocks = ( int ) ( 1 + ( ( first < dimension ) ? ( dimension - first + blockSize - 1 ) / blockSize : 0 ) );
+		final long[] bounds = new long[ nBlocks + 1 ];
+		for ( int k = 1; k < nBlocks; k++ )
+			bounds[ k ] = first + ( k - 1 ) * blockSize;
+		bounds[ nBlocks ] = dimension;
+		return bounds;
+	}
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical queue of pixel indices, with one FIFO per level, each stored
+ * in its own primitive int array.
+ * <p>
+ * The queue returns the pixels of the lowest non-empty level first, and the
+ * pixels of a level in the order they were queued, as a priority queue
+ * ordered by level then by insertion time. Pixels queued below the current
+ * level make it the current level again. Each FIFO is only read from its
+ * head and written to its tail, contiguously. The array of a level is
+ * released once the level is empty.
+ */
+final class BucketQueue
+{
+
+	private final int[][] buckets;
+
+	private final int[] heads;
+
+	private final int[] tails;
+
+	private int current;
+
+	private long bytesAllocated;
+
+	/**
+	 * Creates an empty queue.
+	 *
+	 * @param nLevels
+	 *            the number of levels.
+	 */
+	BucketQueue( final int nLevels )
+	{
+		this.buckets = new int[ nLevels ][];
+		this.heads = new int[ nLevels ];
+		this.tails = new int[ nLevels ];
+	}
+
+	/**
+	 * Queues the specified pixel at the specified level.
+	 */
+	void add( final int level, final int pixel )
+	{
+		int[] bucket = buckets[ level ];
+		if ( bucket == null )
+		{
+			bucket = buckets[ level ] = new int[ 16 ];
+			heads[ level ] = 0;
+			tails[ level ] = 0;
+			bytesAllocated += 4L * bucket.length;
+		}
+		else if ( tails[ level ] == bucket.length )
+		{
+			bucket = buckets[ level ] = Arrays.copyOf( bucket, 2 * bucket.length );
+			bytesAllocated += 4L * bucket.length;
+		}
+		bucket[ tails[ level ]++ ] = pixel;
+		if ( level < current )
+			current = level;
+	}
+
+	/**
+	 * Returns the first pixel of the lowest non-empty level, or -1 if the
+	 * queue is empty.
+	 */
+	int poll()
+	{
+		while ( current < buckets.length )
+		{
+			if ( heads[ current ] < tails[ current ] )
+				return buckets[ current ][ heads[ current ]++ ];
+			buckets[ current ] = null;
+			current++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of bytes allocated for the FIFOs so far.
+	 */
+	long getBytesAllocated()
+	{
+		return bytesAllocated;
+	}
+}
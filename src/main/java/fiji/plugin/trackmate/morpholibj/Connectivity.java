@@ -41,6 +41,17 @@ public enum Connectivity
 		return connectivity3d;
 	}
 
+	/**
+	 * Returns the connectivity value of this constant in 2D: 4 for straight
+	 * connectivity and 8 for diagonal connectivity.
+	 *
+	 * @return the 2D connectivity.
+	 */
+	public int getConnectivity2D()
+	{
+		return ( this == STRAIGHT ) ? 4 : 8;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -49,7 +60,7 @@ public enum Connectivity
 
 	public static Connectivity valueFor( final int conn )
 	{
-		if ( conn == 6 )
+		if ( conn == 6 || conn == 4 )
 			return STRAIGHT;
 		else
 			return DIAGONAL;
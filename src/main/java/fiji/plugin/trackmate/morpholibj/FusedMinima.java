@@ -0,0 +1,403 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.imglib2.FinalDimensions;
+
+/**
+ * Fused computation of the labeled markers of the marker-controlled
+ * watershed.
+ * <p>
+ * MorphoLibJ computes the markers with three separate passes over the whole
+ * volume: <code>extendedMinima</code> (a reconstruction by erosion followed
+ * by a regional minima search, returning a binary stack),
+ * <code>imposeMinima</code> (a second reconstruction by erosion) and
+ * <code>componentsLabeling</code>. Here:
+ * <ul>
+ * <li>the reconstruction by erosion of the image plus the tolerance is done
+ * once, in place in a single buffer;
+ * <li>regional minima are detected and labeled in the same flood-fill pass,
+ * without an intermediate binary image. Two distinct regional minima cannot
+ * touch, so their connected components are their plateaus;
+ * <li>the minima imposition is skipped. The flooding from the markers
+ * processes pixels in order of increasing value, so flooding the original
+ * image gives the same basins as flooding the image with imposed minima,
+ * except possibly for pixels at exactly equal levels.
+ * </ul>
+ */
+final class FusedMinima
+{
+
+	private FusedMinima()
+	{}
+
+	/**
+	 * Computes the labeled extended minima of the specified stack.
+	 *
+	 * @param input
+	 *            the stack to process. Is not modified.
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @return a new stack, where each extended minimum has a distinct label,
+	 *         starting at 1, in raster order. Other pixels are 0. The stack is
+	 *         8-bit, 16-bit or 32-bit depending on the number of labels.
+	 */
+	static ImageStack markers( final ImageStack input, final double tolerance, final Connectivity connectivity )
+	{
+		return markers( input, tolerance, connectivity, new MorphoLibJDetectorStats() );
+	}
+
+	/**
+	 * Computes the labeled extended minima of the specified stack, and
+	 * records the time spent, the memory allocated and the number of markers
+	 * in the specified statistics.
+	 *
+	 * @param input
+	 *            the stack to process. Is not modified.
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return a new stack, where each extended minimum has a distinct label,
+	 *         starting at 1, in raster order. Other pixels are 0. The stack is
+	 *         8-bit, 16-bit or 32-bit depending on the number of labels. Its
+	 *         planes are borrowed from the {@link ScratchBufferPool} of the
+	 *         current thread, and may be returned to it with
+	 *         {@link #release(ImageStack)} once the stack is not used anymore.
+	 */
+	static ImageStack markers( final ImageStack input, final double tolerance, final Connectivity connectivity, final MorphoLibJDetectorStats stats )
+	{
+		final long start = System.nanoTime();
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final int depth = input.getSize();
+		final VoxelGrid grid = new VoxelGrid( new FinalDimensions( width, height, depth ), connectivity );
+		final int planeSize = width * height;
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+
+		final float[] values = pool.floats( grid.size, stats );
+		for ( int z = 0; z < depth; z++ )
+		{
+			final ImageProcessor ip = input.getProcessor( z + 1 );
+			final int offset = z * planeSize;
+			for ( int i = 0; i < planeSize; i++ )
+				values[ offset + i ] = ip.getf( i );
+		}
+
+		final int[] labels = markers( values, grid, tolerance, maxValue( input ), stats );
+		pool.release( values );
+
+		final ImageStack output = toStack( labels, width, height, depth, stats );
+		pool.release( labels );
+		stats.addTime( Stage.MINIMA, System.nanoTime() - start );
+		return output;
+	}
+
+	/**
+	 * Returns the maximal value the pixels of the specified stack can hold.
+	 */
+	static double maxValue( final ImageStack stack )
+	{
+		switch ( stack.getBitDepth() )
+		{
+		case 8:
+			return 255.;
+		case 16:
+			return 65535.;
+		default:
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Copies the specified labels to a new stack, using the narrowest stack
+	 * type that can hold all of them. The planes of the stack are borrowed
+	 * from the {@link ScratchBufferPool} of the current thread.
+	 */
+	static ImageStack toStack( final int[] labels, final int width, final int height, final int depth, final MorphoLibJDetectorStats stats )
+	{
+		final int planeSize = width * height;
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+
+		// MorphoLibJ gives the watershed result the bit depth of the markers.
+		int maxLabel = 0;
+		for ( final int label : labels )
+			maxLabel = Math.max( maxLabel, label );
+		final int bitDepth = labelBitDepth( maxLabel );
+		final ImageStack output = new ImageStack( width, height );
+		for ( int z = 0; z < depth; z++ )
+		{
+			final int offset = z * planeSize;
+			switch ( bitDepth )
+			{
+			case 8:
+			{
+				final byte[] plane = pool.bytes( planeSize, stats );
+				for ( int i = 0; i < planeSize; i++ )
+					plane[ i ] = ( byte ) labels[ offset + i ];
+				output.addSlice( "", plane );
+				break;
+			}
+			case 16:
+			{
+				final short[] plane = pool.shorts( planeSize, stats );
+				for ( int i = 0; i < planeSize; i++ )
+					plane[ i ] = ( short ) labels[ offset + i ];
+				output.addSlice( "", plane );
+				break;
+			}
+			default:
+			{
+				final float[] plane = pool.floats( planeSize, stats );
+				for ( int i = 0; i < planeSize; i++ )
+					plane[ i ] = labels[ offset + i ];
+				output.addSlice( "", plane );
+				break;
+			}
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Returns the smallest bit depth of an ImageJ stack able to store the
+	 * specified number of labels.
+	 *
+	 * @param nLabels
+	 *            the number of labels, background excluded.
+	 * @return 8, 16 or 32.
+	 */
+	static int labelBitDepth( final int nLabels )
+	{
+		if ( nLabels <= 255 )
+			return 8;
+		if ( nLabels <= 65535 )
+			return 16;
+		return 32;
+	}
+
+	/**
+	 * Returns the planes of the specified stack to the
+	 * {@link ScratchBufferPool} of the current thread. The stack must not be
+	 * used afterwards.
+	 *
+	 * @param stack
+	 *            the stack to release.
+	 */
+	static void release( final ImageStack stack )
+	{
+		ScratchBufferPool.get().releaseAll( stack.getImageArray() );
+	}
+
+	/**
+	 * Computes the labeled extended minima of the specified image.
+	 *
+	 * @param values
+	 *            the image, in raster order. Is not modified.
+	 * @param grid
+	 *            the image geometry.
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the extended minima.
+	 * @param maxValue
+	 *            the maximal value the pixel type can hold. The image plus
+	 *            the tolerance is clipped to this value, as in MorphoLibJ.
+	 * @param stats
+	 *            the statistics in which to record the memory allocated and
+	 *            the number of markers.
+	 * @return a label array, in raster order, borrowed from the
+	 *         {@link ScratchBufferPool} of the current thread.
+	 */
+	static int[] markers( final float[] values, final VoxelGrid grid, final double tolerance, final double maxValue, final MorphoLibJDetectorStats stats )
+	{
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final float[] rec = pool.floats( grid.size, stats );
+		for ( int i = 0; i < grid.size; i++ )
+			rec[ i ] = ( float ) Math.min( values[ i ] + tolerance, maxValue );
+		reconstructByErosion( rec, values, grid );
+		final int[] labels = pool.ints( grid.size, true, stats );
+		final int nMarkers = labelRegionalMinima( rec, labels, grid );
+		pool.release( rec );
+		stats.addMarkers( nMarkers );
+		return labels;
+	}
+
+	/**
+	 * Morphological reconstruction by erosion of the marker over the mask,
+	 * with the hybrid algorithm of Vincent (1993). The marker must be greater
+	 * than or equal to the mask everywhere, and is modified in place.
+	 */
+	static void reconstructByErosion( final float[] marker, final float[] mask, final VoxelGrid grid )
+	{
+		final int nk = grid.offsets.length;
+
+		// Forward raster scan.
+		int i = 0;
+		for ( int z = 0; z < grid.depth; z++ )
+		{
+			for ( int y = 0; y < grid.height; y++ )
+			{
+				for ( int x = 0; x < grid.width; x++ )
+				{
+					float v = marker[ i ];
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.offsets[ k ] >= 0 || !grid.isInside( x, y, z, k ) )
+							continue;
+						v = Math.min( v, marker[ i + grid.offsets[ k ] ] );
+					}
+					marker[ i ] = Math.max( v, mask[ i ] );
+					i++;
+				}
+			}
+		}
+
+		// Backward raster scan.
+		final IntFifo queue = new IntFifo();
+		i = grid.size - 1;
+		for ( int z = grid.depth - 1; z >= 0; z-- )
+		{
+			for ( int y = grid.height - 1; y >= 0; y-- )
+			{
+				for ( int x = grid.width - 1; x >= 0; x-- )
+				{
+					float v = marker[ i ];
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.offsets[ k ] <= 0 || !grid.isInside( x, y, z, k ) )
+							continue;
+						v = Math.min( v, marker[ i + grid.offsets[ k ] ] );
+					}
+					v = Math.max( v, mask[ i ] );
+					marker[ i ] = v;
+
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.offsets[ k ] <= 0 || !grid.isInside( x, y, z, k ) )
+							continue;
+						final int j = i + grid.offsets[ k ];
+						if ( marker[ j ] > v && marker[ j ] > mask[ j ] )
+						{
+							queue.add( i );
+							break;
+						}
+					}
+					i--;
+				}
+			}
+		}
+
+		// Propagation.
+		while ( !queue.isEmpty() )
+		{
+			final int p = queue.poll();
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			final float v = marker[ p ];
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( marker[ q ] > v && marker[ q ] != mask[ q ] )
+				{
+					marker[ q ] = Math.max( v, mask[ q ] );
+					queue.add( q );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Labels the regional minima of the specified image. A regional minimum
+	 * is a connected plateau of constant value with no lower neighbor. Labels
+	 * are assigned in raster order of the first pixel of each minimum,
+	 * starting at 1. Other pixels are set to 0.
+	 *
+	 * @return the number of regional minima.
+	 */
+	static int labelRegionalMinima( final float[] values, final int[] labels, final VoxelGrid grid )
+	{
+		final int nk = grid.offsets.length;
+		final int visited = -1;
+		int[] plateau = new int[ 1024 ];
+		int nLabels = 0;
+		for ( int i = 0; i < grid.size; i++ )
+		{
+			if ( labels[ i ] != 0 )
+				continue;
+
+			// Flood the plateau of pixel i.
+			final float v = values[ i ];
+			boolean isMinimum = true;
+			int n = 0;
+			plateau[ n++ ] = i;
+			labels[ i ] = visited;
+			for ( int head = 0; head < n; head++ )
+			{
+				final int p = plateau[ head ];
+				final int x = grid.x( p );
+				final int y = grid.y( p );
+				final int z = grid.z( p );
+				for ( int k = 0; k < nk; k++ )
+				{
+					if ( !grid.isInside( x, y, z, k ) )
+						continue;
+					final int q = p + grid.offsets[ k ];
+					final float vq = values[ q ];
+					if ( vq < v )
+					{
+						isMinimum = false;
+					}
+					else if ( vq == v && labels[ q ] == 0 )
+					{
+						labels[ q ] = visited;
+						if ( n == plateau.length )
+							plateau = Arrays.copyOf( plateau, 2 * n );
+						plateau[ n++ ] = q;
+					}
+				}
+			}
+
+			if ( isMinimum )
+			{
+				nLabels++;
+				for ( int j = 0; j < n; j++ )
+					labels[ plateau[ j ] ] = nLabels;
+			}
+		}
+
+		for ( int i = 0; i < grid.size; i++ )
+			if ( labels[ i ] == visited )
+				labels[ i ] = 0;
+		return nLabels;
+	}
+}
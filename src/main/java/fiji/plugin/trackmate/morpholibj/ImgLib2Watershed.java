@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Marker-controlled watershed operating directly on ImgLib2 images, without
+ * going through ImageJ stacks.
+ * <p>
+ * This reproduces the MorphoLibJ pipeline used by the
+ * {@link MorphoLibJDetector}:
+ * <ol>
+ * <li>extended minima, as the regional minima of the reconstruction by
+ * erosion of the image plus the tolerance, over the image, labeled in the
+ * same pass (see {@link FusedMinima});
+ * <li>flooding of the image from the markers with a hierarchical queue, in
+ * the same order as the priority queue of MorphoLibJ.
+ * </ol>
+ * As in the MorphoLibJ backend, the minima imposition step is skipped (see
+ * {@link FusedMinima}).
+ * <p>
+ * The source image is read once, in raster order, so any ImgLib2 container
+ * can be used, including cell images and lazily-loaded images.
+ */
+public class ImgLib2Watershed
+{
+
+	private ImgLib2Watershed()
+	{}
+
+	/**
+	 * Segments the specified 2D or 3D image.
+	 *
+	 * @param source
+	 *            the image to segment.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @return a new label image, of the same size as the source. The
+	 *         background, if any, has label 0.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ArrayImg< IntType, IntArray > segment(
+			final RandomAccessibleInterval< T > source,
+			final double tolerance,
+			final Connectivity connectivity )
+	{
+		return segment( source, tolerance, connectivity, new MorphoLibJDetectorStats() );
+	}
+
+	/**
+	 * Segments the specified 2D or 3D image, and records the time spent in
+	 * each stage, the memory allocated and the number of markers in the
+	 * specified statistics.
+	 *
+	 * @param source
+	 *            the image to segment.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return a new label image, of the same size as the source. The
+	 *         background, if any, has label 0. Its storage array is borrowed
+	 *         from the {@link ScratchBufferPool} of the current thread, and
+	 *         may be returned to it with {@link #release(ArrayImg)} once the
+	 *         label image is not used anymore.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ArrayImg< IntType, IntArray > segment(
+			final RandomAccessibleInterval< T > source,
+			final double tolerance,
+			final Connectivity connectivity,
+			final MorphoLibJDetectorStats stats )
+	{
+		final long t0 = System.nanoTime();
+		final VoxelGrid grid = new VoxelGrid( source, connectivity );
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final float[] values = pool.floats( grid.size, stats );
+		read( source, values );
+		final double maxValue = Views.iterable( source ).firstElement().getMaxValue();
+		final long t1 = System.nanoTime();
+		stats.addTime( Stage.COPY, t1 - t0 );
+
+		// Labeled extended minima.
+		final int[] labels = FusedMinima.markers( values, grid, tolerance, maxValue, stats );
+		final long t2 = System.nanoTime();
+		stats.addTime( Stage.MINIMA, t2 - t1 );
+
+		// Flooding.
+		flood( values, labels, grid, stats );
+		pool.release( values );
+		stats.addTime( Stage.FLOODING, System.nanoTime() - t2 );
+		return ArrayImgs.ints( labels, Intervals.dimensionsAsLongArray( source ) );
+	}
+
+	/**
+	 * Returns the storage array of the specified label image, created by
+	 * {@link #segment(RandomAccessibleInterval, double, Connectivity, MorphoLibJDetectorStats)},
+	 * to the {@link ScratchBufferPool} of the current thread. The label image
+	 * must not be used afterwards.
+	 *
+	 * @param labels
+	 *            the label image to release.
+	 */
+	static void release( final ArrayImg< IntType, IntArray > labels )
+	{
+		ScratchBufferPool.get().release( labels.update( null ).getCurrentStorageArray() );
+	}
+
+	/**
+	 * Copies the source image into the specified flat array, in raster order.
+	 */
+	static < T extends RealType< T > > float[] read( final RandomAccessibleInterval< T > source, final float[] values )
+	{
+		final Cursor< T > cursor = Views.flatIterable( source ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+			values[ i++ ] = cursor.next().getRealFloat();
+		return values;
+	}
+
+	/**
+	 * Floods the image from the labeled markers, without dams, as
+	 * <code>Watershed.computeWatershed</code> of MorphoLibJ does. Each pixel
+	 * is queued at its own level, and receives the label of its first labeled
+	 * neighbor when dequeued. The lowest pixels are dequeued first, and pixels
+	 * at the same level in the order they were queued. The level buffer
+	 * is borrowed from the {@link ScratchBufferPool} of the current thread,
+	 * and the memory allocated is recorded in the specified statistics.
+	 */
+	static void flood( final float[] values, final int[] labels, final VoxelGrid grid, final MorphoLibJDetectorStats stats )
+	{
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final int[] levels = pool.ints( grid.size, false, stats );
+		final int nLevels = toLevels( values, levels );
+		flood( levels, nLevels, labels, grid, stats );
+		pool.release( levels );
+	}
+
+	/**
+	 * Floods the image from the labeled markers, using the pixel levels
+	 * computed by {@link #toLevels(float[], int[])}.
+	 */
+	static void flood( final int[] levels, final int nLevels, final int[] labels, final VoxelGrid grid, final MorphoLibJDetectorStats stats )
+	{
+		final int nk = grid.offsets.length;
+		final int queued = -1;
+
+		/*
+		 * Hierarchical queue: one FIFO per level, ordered as a priority queue
+		 * on the pixel values with ties broken by insertion time. Each pixel
+		 * is queued at most once.
+		 */
+
+		final BucketQueue queue = new BucketQueue( nLevels );
+
+		// Initialize with the neighbors of markers.
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			if ( labels[ p ] <= 0 )
+				continue;
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( labels[ q ] != 0 )
+					continue;
+				labels[ q ] = queued;
+				queue.add( levels[ q ], q );
+			}
+		}
+
+		int p;
+		while ( ( p = queue.poll() ) >= 0 )
+		{
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+
+			// Take the label of the first labeled neighbor.
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int l = labels[ p + grid.offsets[ k ] ];
+				if ( l > 0 )
+				{
+					labels[ p ] = l;
+					break;
+				}
+			}
+
+			// Queue unlabeled neighbors.
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( labels[ q ] != 0 )
+					continue;
+				labels[ q ] = queued;
+				queue.add( levels[ q ], q );
+			}
+		}
+		stats.addBytesAllocated( queue.getBytesAllocated() );
+	}
+
+	/**
+	 * Maps pixel values to levels, that is, to their rank among the distinct
+	 * values of the image. For images with integer values in a 16-bit range,
+	 * the level is simply the value minus the minimum.
+	 *
+	 * @return the number of levels.
+	 */
+	static int toLevels( final float[] values, final int[] levels )
+	{
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		boolean integral = true;
+		for ( final float v : values )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+			if ( integral && v != ( int ) v )
+				integral = false;
+		}
+		if ( values.length == 0 )
+			return 0;
+
+		if ( integral && max - min < 65536 )
+		{
+			final int imin = ( int ) min;
+			for ( int i = 0; i < values.length; i++ )
+				levels[ i ] = ( int ) values[ i ] - imin;
+			return ( int ) ( max - min ) + 1;
+		}
+
+		final float[] sorted = values.clone();
+		Arrays.sort( sorted );
+		int nDistinct = 0;
+		for ( int i = 0; i < sorted.length; i++ )
+			if ( i == 0 || sorted[ i ] != sorted[ nDistinct - 1 ] )
+				sorted[ nDistinct++ ] = sorted[ i ];
+		for ( int i = 0; i < values.length; i++ )
+			levels[ i ] = Arrays.binarySearch( sorted, 0, nDistinct, values[ i ] );
+		return nDistinct;
+	}
+}
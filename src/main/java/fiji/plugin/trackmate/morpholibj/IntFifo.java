@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+/**
+ * A growable FIFO queue of primitive ints, backed by a ring buffer,
+ * optionally bounded.
+ */
+final class IntFifo
+{
+
+	private int[] data;
+
+	private int head;
+
+	private int size;
+
+	private final int maxCapacity;
+
+	IntFifo()
+	{
+		this( 1024 );
+	}
+
+	IntFifo( final int capacity )
+	{
+		this( capacity, Integer.MAX_VALUE - 8 );
+	}
+
+	/**
+	 * Creates a queue that holds at most the specified number of values.
+	 * See {@link #offer(int)}.
+	 */
+	IntFifo( final int capacity, final int maxCapacity )
+	{
+		this.maxCapacity = Math.max( 16, maxCapacity );
+		this.data = new int[ Math.min( this.maxCapacity, Math.max( 16, capacity ) ) ];
+	}
+
+	/**
+	 * Adds the specified value if the queue is not full.
+	 *
+	 * @return <code>false</code> if the queue holds its maximal number of
+	 *         values, and the value was not added.
+	 */
+	boolean offer( final int value )
+	{
+		if ( size == maxCapacity )
+			return false;
+		add( value );
+		return true;
+	}
+
+	void add( final int value )
+	{
+		if ( size == data.length )
+		{
+			final int[] grown = new int[ ( int ) Math.min( maxCapacity, data.length * 2L ) ];
+			final int n1 = data.length - head;
+			System.arraycopy( data, head, grown, 0, n1 );
+			System.arraycopy( data, 0, grown, n1, head );
+			data = grown;
+			head = 0;
+		}
+		data[ ( head + size ) % data.length ] = value;
+		size++;
+	}
+
+	int poll()
+	{
+		final int value = data[ head ];
+		head = ( head + 1 ) % data.length;
+		size--;
+		return value;
+	}
+
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	void clear()
+	{
+		head = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * An on-disk cache of label images, shared across sessions.
+ * <p>
+ * Label images are stored in one file each, in a local directory, under a
+ * name derived from a hash of the content of the segmented image and of
+ * the segmentation parameters. Labels are stored with the narrowest integer
+ * type that can hold them, and the files are memory-mapped when read. Files
+ * are not otherwise compressed, so that they can be mapped directly.
+ * <p>
+ * The total size of the cache is bounded. When it is exceeded, the least
+ * recently used files are deleted. Errors reading or writing the cache are
+ * ignored: the label image is then simply computed again.
+ */
+public class LabelCache
+{
+
+	private static final String EXTENSION = ".labels";
+
+	private static final int MAGIC = 0x544d4c42;
+
+	private static final int VERSION = 1;
+
+	private static final Map< Path, LabelCache > INSTANCES = new HashMap<>();
+
+	private final Path directory;
+
+	private volatile long maxBytes;
+
+	private LabelCache( final Path directory, final long maxBytes )
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cache stored in the specified directory, creating the
+	 * directory if needed.
+	 *
+	 * @param directory
+	 *            the directory.
+	 * @param maxBytes
+	 *            the maximal size of the cache, in bytes.
+	 * @return the cache.
+	 * @throws IOException
+	 *             if the directory cannot be created.
+	 */
+	public static LabelCache open( final Path directory, final long maxBytes ) throws IOException
+	{
+		final Path dir = directory.toAbsolutePath().normalize();
+		Files.createDirectories( dir );
+		synchronized ( INSTANCES )
+		{
+			final LabelCache cache = INSTANCES.computeIfAbsent( dir, d -> new LabelCache( d, maxBytes ) );
+			cache.maxBytes = maxBytes;
+			return cache;
+		}
+	}
+
+	/**
+	 * Computes the cache key of the segmentation of the specified image.
+	 *
+	 * @param source
+	 *            the image to segment.
+	 * @param parameters
+	 *            a string describing the segmentation parameters.
+	 * @return the key.
+	 */
+	public static < T extends RealType< T > > String key( final RandomAccessibleInterval< T > source, final String parameters )
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		digest.update( parameters.getBytes( StandardCharsets.UTF_8 ) );
+		final ByteBuffer buffer = ByteBuffer.allocate( 8 * 4096 );
+		for ( final long d : Intervals.dimensionsAsLongArray( source ) )
+			buffer.putLong( d );
+		final Cursor< T > cursor = Views.flatIterable( source ).cursor();
+		while ( cursor.hasNext() )
+		{
+			if ( buffer.remaining() < 8 )
+			{
+				buffer.flip();
+				digest.update( buffer );
+				buffer.clear();
+			}
+			buffer.putDouble( cursor.next().getRealDouble() );
+		}
+		buffer.flip();
+		digest.update( buffer );
+
+		final StringBuilder str = new StringBuilder();
+		for ( final byte b : digest.digest() )
+			str.append( String.format( "%02x", b ) );
+		return str.toString();
+	}
+
+	/**
+	 * Returns the label image stored under the specified key.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param stats
+	 *            the statistics in which to record the memory allocated.
+	 * @return a new label image, whose storage array is borrowed from the
+	 *         {@link ScratchBufferPool} of the current thread, or
+	 *         <code>null</code> if the key is not in the cache.
+	 * @throws IllegalArgumentException
+	 *             if the stored image has more than
+	 *             {@link Integer#MAX_VALUE} pixels.
+	 */
+	public ArrayImg< IntType, IntArray > get( final String key, final MorphoLibJDetectorStats stats )
+	{
+		final Path file = directory.resolve( key + EXTENSION );
+		if ( !Files.exists( file ) )
+			return null;
+
+		try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ))
+		{
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+				return null;
+			final int bitDepth = buffer.getInt();
+			final long[] dims = new long[ buffer.getInt() ];
+			for ( int d = 0; d < dims.length; d++ )
+				dims[ d ] = buffer.getLong();
+
+			final long n = Intervals.numElements( dims );
+			if ( n > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "Cached label image is too large to be loaded as a single block: " + n + " pixels." );
+			if ( n < 0 )
+				return null;
+			final int size = ( int ) n;
+			final int[] labels = ScratchBufferPool.get().ints( size, false, stats );
+			switch ( bitDepth )
+			{
+			case 8:
+				for ( int i = 0; i < size; i++ )
+					labels[ i ] = buffer.get() & 0xff;
+				break;
+			case 16:
+				for ( int i = 0; i < size; i++ )
+					labels[ i ] = buffer.getShort() & 0xffff;
+				break;
+			default:
+				buffer.asIntBuffer().get( labels );
+				break;
+			}
+
+			// Least recently used files are evicted first.
+			Files.setLastModifiedTime( file, FileTime.fromMillis( System.currentTimeMillis() ) );
+			return ArrayImgs.ints( labels, dims );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			throw e;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the specified label image under the specified key, then evicts
+	 * the least recently used files if the cache is too large.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param labels
+	 *            the label image. Labels must be non-negative integers.
+	 */
+	public < R extends RealType< R > > void put( final String key, final RandomAccessibleInterval< R > labels )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( labels );
+		final long size = Intervals.numElements( dims );
+		int maxLabel = 0;
+		for ( final R label : Views.flatIterable( labels ) )
+			maxLabel = Math.max( maxLabel, ( int ) label.getRealDouble() );
+		final int bitDepth = FusedMinima.labelBitDepth( maxLabel );
+
+		final Path file = directory.resolve( key + EXTENSION );
+		Path tmp = null;
+		try
+		{
+			tmp = Files.createTempFile( directory, key, ".tmp" );
+			try (FileChannel channel = FileChannel.open( tmp, StandardOpenOption.WRITE ))
+			{
+				final ByteBuffer buffer = ByteBuffer.allocateDirect( 1 << 16 );
+				buffer.putInt( MAGIC ).putInt( VERSION ).putInt( bitDepth ).putInt( dims.length );
+				for ( final long d : dims )
+					buffer.putLong( d );
+				final Cursor< R > cursor = Views.flatIterable( labels ).cursor();
+				for ( long i = 0; i < size; i++ )
+				{
+					if ( buffer.remaining() < 4 )
+					{
+						buffer.flip();
+						while ( buffer.hasRemaining() )
+							channel.write( buffer );
+						buffer.clear();
+					}
+					final int label = ( int ) cursor.next().getRealDouble();
+					switch ( bitDepth )
+					{
+					case 8:
+						buffer.put( ( byte ) label );
+						break;
+					case 16:
+						buffer.putShort( ( short ) label );
+						break;
+					default:
+						buffer.putInt( label );
+						break;
+					}
+				}
+				buffer.flip();
+				while ( buffer.hasRemaining() )
+					channel.write( buffer );
+			}
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( final IOException e )
+		{
+			try
+			{
+				if ( tmp != null )
+					Files.deleteIfExists( tmp );
+			}
+			catch ( final IOException e1 )
+			{}
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used files until the cache fits in its
+	 * maximal size.
+	 */
+	private synchronized void evict()
+	{
+		final List< Path > files = new ArrayList<>();
+		final Map< Path, Long > sizes = new HashMap<>();
+		final Map< Path, Long > times = new HashMap<>();
+		long total = 0;
+		try (DirectoryStream< Path > stream = Files.newDirectoryStream( directory, "*" + EXTENSION ))
+		{
+			for ( final Path file : stream )
+			{
+				final long size = Files.size( file );
+				files.add( file );
+				sizes.put( file, size );
+				times.put( file, Files.getLastModifiedTime( file ).toMillis() );
+				total += size;
+			}
+		}
+		catch ( final IOException e )
+		{
+			return;
+		}
+		if ( total <= maxBytes )
+			return;
+
+		files.sort( Comparator.comparingLong( times::get ) );
+		for ( final Path file : files )
+		{
+			if ( total <= maxBytes )
+				break;
+			try
+			{
+				Files.deleteIfExists( file );
+				total -= sizes.get( file );
+			}
+			catch ( final IOException e )
+			{
+				// Mapped files cannot be deleted on some platforms.
+			}
+		}
+	}
+}
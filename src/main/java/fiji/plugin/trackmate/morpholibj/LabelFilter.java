@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+/**
+ * Rejects labels by size and mean intensity before they are converted to
+ * spots, so that the background basin and the small basins found in noise
+ * never go through shape extraction.
+ * <p>
+ * Sizes are numbers of pixels within the detection interval. Limits equal
+ * to 0 are not applied.
+ */
+final class LabelFilter
+{
+
+	private final long minSize;
+
+	private final long maxSize;
+
+	private final double minMeanIntensity;
+
+	/**
+	 * Creates a filter.
+	 *
+	 * @param minSize
+	 *            the minimal number of pixels of an object, or 0.
+	 * @param maxSize
+	 *            the maximal number of pixels of an object, or 0.
+	 * @param minMeanIntensity
+	 *            the minimal mean intensity of an object, or 0.
+	 */
+	LabelFilter( final long minSize, final long maxSize, final double minMeanIntensity )
+	{
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.minMeanIntensity = minMeanIntensity;
+	}
+
+	/**
+	 * Returns whether the filter rejects some labels.
+	 */
+	boolean isActive()
+	{
+		return minSize > 0 || maxSize > 0 || minMeanIntensity != 0.;
+	}
+
+	/**
+	 * Returns whether the mean intensity is used.
+	 */
+	boolean usesIntensity()
+	{
+		return minMeanIntensity != 0.;
+	}
+
+	/**
+	 * Returns whether an object with the specified number of pixels and sum
+	 * of intensities is accepted.
+	 */
+	boolean accept( final long size, final double intensitySum )
+	{
+		if ( size == 0 )
+			return false;
+		if ( minSize > 0 && size < minSize )
+			return false;
+		if ( maxSize > 0 && size > maxSize )
+			return false;
+		if ( minMeanIntensity != 0. && intensitySum / size < minMeanIntensity )
+			return false;
+		return true;
+	}
+
+	/**
+	 * Reads the specified label image once, in raster order, and returns
+	 * which labels are accepted.
+	 *
+	 * @param labels
+	 *            the label image.
+	 * @param intensity
+	 *            the intensity image, in the same coordinates as the label
+	 *            image. Only read if the mean intensity is used.
+	 * @param interval
+	 *            the interval in which to read labels.
+	 * @return an array indexed by label, <code>true</code> for accepted
+	 *         labels.
+	 */
+	< R extends RealType< R >, T extends RealType< T > > boolean[] accepted(
+			final RandomAccessibleInterval< R > labels,
+			final RandomAccessibleInterval< T > intensity,
+			final Interval interval )
+	{
+		final boolean useIntensity = usesIntensity();
+		int capacity = 1024;
+		long[] counts = new long[ capacity ];
+		double[] sums = new double[ useIntensity ? capacity : 0 ];
+		int maxLabel = 0;
+
+		final Cursor< R > cursor = Views.flatIterable( Views.interval( labels, interval ) ).cursor();
+		final Cursor< T > values = useIntensity ? Views.flatIterable( Views.interval( intensity, interval ) ).cursor() : null;
+		while ( cursor.hasNext() )
+		{
+			final int label = ( int ) cursor.next().getRealDouble();
+			final double value = useIntensity ? values.next().getRealDouble() : 0.;
+			if ( label <= 0 )
+				continue;
+			if ( label >= capacity )
+			{
+				capacity = Math.max( 2 * capacity, label + 1 );
+				counts = Arrays.copyOf( counts, capacity );
+				if ( useIntensity )
+					sums = Arrays.copyOf( sums, capacity );
+			}
+			counts[ label ]++;
+			if ( useIntensity )
+				sums[ label ] += value;
+			maxLabel = Math.max( maxLabel, label );
+		}
+
+		final boolean[] accepted = new boolean[ maxLabel + 1 ];
+		for ( int l = 1; l <= maxLabel; l++ )
+			accepted[ l ] = accept( counts[ l ], useIntensity ? sums[ l ] : 0. );
+		return accepted;
+	}
+
+	/**
+	 * Returns a view of the specified label image in which the labels that
+	 * are not accepted are set to 0.
+	 *
+	 * @param labels
+	 *            the label image.
+	 * @param accepted
+	 *            the accepted labels, as returned by
+	 *            {@link #accepted(RandomAccessibleInterval, RandomAccessibleInterval, Interval)}.
+	 * @return a new view.
+	 */
+	static < R extends RealType< R > > RandomAccessibleInterval< IntType > apply( final RandomAccessibleInterval< R > labels, final boolean[] accepted )
+	{
+		final Converter< R, IntType > converter = ( in, out ) -> {
+			final int label = ( int ) in.getRealDouble();
+			out.set( ( label > 0 && label < accepted.length && accepted[ label ] ) ? label : 0 );
+		};
+		return Converters.convert( labels, converter, new IntType() );
+	}
+}
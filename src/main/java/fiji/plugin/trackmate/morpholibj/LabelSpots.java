@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotBase;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Converts 3D label images to spheroid spots, without meshes.
+ * <p>
+ * The label image is read in a single raster pass, that accumulates the
+ * voxel count and the coordinate sums of each label in primitive arrays
+ * indexed by label. Spots are then created in parallel over labels, at the
+ * centroid of each label, with the radius of the sphere of the same volume
+ * and the number of voxels as quality. No per-object collection is
+ * created. Labels rejected by a {@link LabelFilter} are filtered in the
+ * same pass.
+ * <p>
+ * The quality is the number of voxels of the object within the detection
+ * interval. It may differ from the quality of the spots with a mesh, created
+ * by the TrackMate label image detector, so quality thresholds should be
+ * set again when switching between the two.
+ */
+final class LabelSpots
+{
+
+	private LabelSpots()
+	{}
+
+	/**
+	 * Creates one spot per label of the specified label image.
+	 *
+	 * @param labels
+	 *            the 3D label image. Label values must be positive integers,
+	 *            0 being the background.
+	 * @param intensity
+	 *            the intensity image, in the same coordinates as the label
+	 *            image. Only read if the filter uses the mean intensity.
+	 * @param interval
+	 *            the interval in which to read labels. Objects are clipped to
+	 *            it.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param filter
+	 *            the filter for labels, or <code>null</code>.
+	 * @param numThreads
+	 *            the number of threads to use to create spots.
+	 * @return a new list of spots.
+	 * @throws InterruptedException
+	 *             if the computation is interrupted.
+	 * @throws ExecutionException
+	 *             if the creation of one spot fails.
+	 */
+	static < R extends RealType< R >, T extends RealType< T > > List< Spot > convert(
+			final RandomAccessibleInterval< R > labels,
+			final RandomAccessibleInterval< T > intensity,
+			final Interval interval,
+			final double[] calibration,
+			final LabelFilter filter,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		final boolean useIntensity = filter != null && filter.usesIntensity();
+		int capacity = 1024;
+		long[] counts = new long[ capacity ];
+		long[] sumX = new long[ capacity ];
+		long[] sumY = new long[ capacity ];
+		long[] sumZ = new long[ capacity ];
+		double[] sumI = new double[ useIntensity ? capacity : 0 ];
+		int maxLabel = 0;
+
+		final Cursor< R > cursor = Views.flatIterable( Views.interval( labels, interval ) ).localizingCursor();
+		final Cursor< T > values = useIntensity ? Views.flatIterable( Views.interval( intensity, interval ) ).cursor() : null;
+		while ( cursor.hasNext() )
+		{
+			final int label = ( int ) cursor.next().getRealDouble();
+			final double value = useIntensity ? values.next().getRealDouble() : 0.;
+			if ( label <= 0 )
+				continue;
+			if ( label >= capacity )
+			{
+				capacity = Math.max( 2 * capacity, label + 1 );
+				counts = Arrays.copyOf( counts, capacity );
+				sumX = Arrays.copyOf( sumX, capacity );
+				sumY = Arrays.copyOf( sumY, capacity );
+				sumZ = Arrays.copyOf( sumZ, capacity );
+				if ( useIntensity )
+					sumI = Arrays.copyOf( sumI, capacity );
+			}
+			counts[ label ]++;
+			if ( useIntensity )
+				sumI[ label ] += value;
+			sumX[ label ] += cursor.getLongPosition( 0 );
+			sumY[ label ] += cursor.getLongPosition( 1 );
+			sumZ[ label ] += cursor.getLongPosition( 2 );
+			maxLabel = Math.max( maxLabel, label );
+		}
+
+		final double voxelVolume = calibration[ 0 ] * calibration[ 1 ] * calibration[ 2 ];
+		final long[] n = counts;
+		final long[] sx = sumX;
+		final long[] sy = sumY;
+		final long[] sz = sumZ;
+		final double[] si = sumI;
+		final int nLabels = maxLabel;
+		final Spot[] spots = new Spot[ nLabels + 1 ];
+		final IntConsumer create = l -> {
+			if ( n[ l ] == 0 )
+				return;
+			if ( filter != null && !filter.accept( n[ l ], useIntensity ? si[ l ] : 0. ) )
+				return;
+			final double x = calibration[ 0 ] * sx[ l ] / n[ l ];
+			final double y = calibration[ 1 ] * sy[ l ] / n[ l ];
+			final double z = calibration[ 2 ] * sz[ l ] / n[ l ];
+			final double radius = Math.cbrt( 3. * n[ l ] * voxelVolume / ( 4. * Math.PI ) );
+			spots[ l ] = new SpotBase( x, y, z, radius, n[ l ] );
+		};
+		if ( numThreads > 1 )
+		{
+			// Bounded to the detector threads, not the common pool.
+			final ForkJoinPool pool = ScratchBufferPool.newForkJoinPool( numThreads );
+			try
+			{
+				pool.submit( () -> IntStream.rangeClosed( 1, nLabels ).parallel().forEach( create ) ).get();
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+		else
+		{
+			IntStream.rangeClosed( 1, nLabels ).forEach( create );
+		}
+
+		final List< Spot > result = new ArrayList<>();
+		for ( final Spot spot : spots )
+			if ( spot != null )
+				result.add( spot );
+		return result;
+	}
+}
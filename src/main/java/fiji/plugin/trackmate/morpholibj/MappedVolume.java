@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Fraction;
+
+/**
+ * A volume of 32-bit values stored off-heap, in a temporary memory-mapped
+ * file. Values can be read and written as floats or ints, by their index in
+ * raster order. The file is mapped in chunks of 1 GB, and is initially
+ * filled with zeros.
+ * <p>
+ * The operating system pages the volume in and out as needed, so volumes
+ * larger than the heap can be processed. Access is fastest in raster order.
+ */
+final class MappedVolume implements IntAccess, Closeable
+{
+
+	/** Number of elements per chunk, as a power of 2. */
+	private static final int CHUNK_SHIFT = 28;
+
+	private static final int CHUNK_MASK = ( 1 << CHUNK_SHIFT ) - 1;
+
+	private final MappedByteBuffer[] chunks;
+
+	private final Path file;
+
+	final int size;
+
+	/**
+	 * Creates a volume of the specified number of elements, in the default
+	 * temporary directory.
+	 *
+	 * @param size
+	 *            the number of elements.
+	 * @throws IOException
+	 *             if the file cannot be created or mapped.
+	 */
+	MappedVolume( final int size ) throws IOException
+	{
+		this( size, null );
+	}
+
+	/**
+	 * Creates a volume of the specified number of elements, in the specified
+	 * directory. The default temporary directory is often a RAM-backed file
+	 * system, which defeats the purpose of an off-heap volume: volumes larger
+	 * than the memory should be put on a disk.
+	 *
+	 * @param size
+	 *            the number of elements.
+	 * @param directory
+	 *            the directory in which to create the backing file, or
+	 *            <code>null</code> to use the default temporary directory.
+	 * @throws IOException
+	 *             if the file cannot be created or mapped.
+	 */
+	MappedVolume( final int size, final Path directory ) throws IOException
+	{
+		this.size = size;
+		this.file = directory == null
+				? Files.createTempFile( "trackmate-morpholibj-", ".vol" )
+				: Files.createTempFile( directory, "trackmate-morpholibj-", ".vol" );
+		final int nChunks = Math.max( 1, ( int ) ( ( size + ( long ) CHUNK_MASK ) >>> CHUNK_SHIFT ) );
+		this.chunks = new MappedByteBuffer[ nChunks ];
+		try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE ))
+		{
+			for ( int c = 0; c < nChunks; c++ )
+			{
+				final long first = ( long ) c << CHUNK_SHIFT;
+				final long length = Math.min( 1L << CHUNK_SHIFT, size - first );
+				chunks[ c ] = channel.map( FileChannel.MapMode.READ_WRITE, 4L * first, 4L * length );
+				chunks[ c ].order( ByteOrder.nativeOrder() );
+			}
+		}
+		catch ( final IOException e )
+		{
+			close();
+			throw e;
+		}
+	}
+
+	float getFloat( final int index )
+	{
+		return chunks[ index >>> CHUNK_SHIFT ].getFloat( ( index & CHUNK_MASK ) << 2 );
+	}
+
+	void setFloat( final int index, final float value )
+	{
+		chunks[ index >>> CHUNK_SHIFT ].putFloat( ( index & CHUNK_MASK ) << 2, value );
+	}
+
+	@Override
+	public int getValue( final int index )
+	{
+		return chunks[ index >>> CHUNK_SHIFT ].getInt( ( index & CHUNK_MASK ) << 2 );
+	}
+
+	@Override
+	public void setValue( final int index, final int value )
+	{
+		chunks[ index >>> CHUNK_SHIFT ].putInt( ( index & CHUNK_MASK ) << 2, value );
+	}
+
+	/**
+	 * Returns an image of the specified dimensions backed by this volume,
+	 * read as ints.
+	 *
+	 * @param dims
+	 *            the dimensions. Their product must be the size of the
+	 *            volume.
+	 * @return a new image.
+	 */
+	ArrayImg< IntType, MappedVolume > toIntImg( final long[] dims )
+	{
+		final ArrayImg< IntType, MappedVolume > img = new ArrayImg<>( this, dims, new Fraction() );
+		img.setLinkedType( new IntType( img ) );
+		return img;
+	}
+
+	/**
+	 * Deletes the file backing this volume. Its pages are released when the
+	 * volume is garbage collected. On platforms that do not allow deleting
+	 * mapped files, the file is deleted when the JVM exits.
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			Files.deleteIfExists( file );
+		}
+		catch ( final IOException e )
+		{
+			file.toFile().deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+
+/**
+ * The dynamics of the regional minima of an image, from which the labeled
+ * extended minima can be computed for any tolerance without reconstructing
+ * the image.
+ * <p>
+ * The dynamic of a regional minimum is the height one has to climb from it
+ * to reach a deeper minimum. It is computed here by processing the pixels
+ * by increasing value and merging their connected components with a
+ * union-find: when two components meet, the one with the shallower minimum
+ * dies at the level of the current pixel, which is its pass value.
+ * <p>
+ * For a tolerance <code>h</code>, a minimum of value <code>m</code>
+ * survives if its pass value is strictly above <code>m + h</code>, and its
+ * extended minimum is then the connected component of the pixels of value
+ * lower than or equal to <code>m + h</code> that contains it. This gives the
+ * same markers as {@link FusedMinima}, which computes the regional minima of
+ * the reconstruction by erosion of the image plus <code>h</code>.
+ */
+final class MinimaDynamics
+{
+
+	private final float[] values;
+
+	private final VoxelGrid grid;
+
+	/** The pixel where each component was born. */
+	private int[] seeds;
+
+	/** The value at which each component died. */
+	private float[] passes;
+
+	private int nComponents;
+
+	/**
+	 * Computes the dynamics of the regional minima of the specified image.
+	 *
+	 * @param values
+	 *            the image, in raster order. Is not modified, and must not be
+	 *            modified while this object is used.
+	 * @param levels
+	 *            the levels of the pixels, as computed by
+	 *            {@link ImgLib2Watershed#toLevels(float[], int[])}.
+	 * @param nLevels
+	 *            the number of levels.
+	 * @param grid
+	 *            the image geometry.
+	 */
+	MinimaDynamics( final float[] values, final int[] levels, final int nLevels, final VoxelGrid grid )
+	{
+		this.values = values;
+		this.grid = grid;
+		this.seeds = new int[ 1024 ];
+		this.passes = new float[ 1024 ];
+
+		/*
+		 * Sort pixels by level, with a counting sort. Pixels of the same level
+		 * stay in raster order.
+		 */
+
+		final int[] order = new int[ grid.size ];
+		final int[] starts = new int[ nLevels + 1 ];
+		for ( int p = 0; p < grid.size; p++ )
+			starts[ levels[ p ] + 1 ]++;
+		for ( int l = 0; l < nLevels; l++ )
+			starts[ l + 1 ] += starts[ l ];
+		for ( int p = 0; p < grid.size; p++ )
+			order[ starts[ levels[ p ] ]++ ] = p;
+
+		/*
+		 * Merge components by increasing value. The root of a component is
+		 * always the pixel where its deepest minimum was born.
+		 */
+
+		final int nk = grid.offsets.length;
+		final int[] parent = new int[ grid.size ];
+		Arrays.fill( parent, -1 );
+		for ( final int p : order )
+		{
+			parent[ p ] = p;
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( parent[ q ] < 0 )
+					continue;
+				final int rp = find( parent, p );
+				final int rq = find( parent, q );
+				if ( rp == rq )
+					continue;
+
+				// The shallower minimum dies. Ties: the largest index dies.
+				final boolean pDies = values[ rp ] > values[ rq ] || ( values[ rp ] == values[ rq ] && rp > rq );
+				final int dying = pDies ? rp : rq;
+				final int surviving = pDies ? rq : rp;
+				parent[ dying ] = surviving;
+
+				/*
+				 * A component dying at its own value is not a regional
+				 * minimum, and never survives. Most pixels are in this case.
+				 */
+				if ( values[ p ] > values[ dying ] )
+					add( dying, values[ p ] );
+			}
+		}
+
+		// Components that never met a deeper one.
+		for ( int p = 0; p < grid.size; p++ )
+			if ( parent[ p ] == p )
+				add( p, Float.POSITIVE_INFINITY );
+	}
+
+	/**
+	 * Computes the labeled extended minima for the specified tolerance.
+	 *
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the extended minima.
+	 * @param maxValue
+	 *            the maximal value the pixel type can hold. The image plus
+	 *            the tolerance is clipped to this value, as in MorphoLibJ.
+	 * @param stats
+	 *            the statistics in which to record the memory allocated and
+	 *            the number of markers.
+	 * @return a label array, in raster order, borrowed from the
+	 *         {@link ScratchBufferPool} of the current thread. Labels start
+	 *         at 1 and are assigned in raster order of the first pixel of
+	 *         each minimum, as in {@link FusedMinima}.
+	 */
+	int[] markers( final double tolerance, final double maxValue, final MorphoLibJDetectorStats stats )
+	{
+		final int[] labels = ScratchBufferPool.get().ints( grid.size, true, stats );
+		final int nk = grid.offsets.length;
+		final IntFifo queue = new IntFifo();
+		int nLabels = 0;
+		for ( int c = 0; c < nComponents; c++ )
+		{
+			final int seed = seeds[ c ];
+			final float threshold = ( float ) Math.min( values[ seed ] + tolerance, maxValue );
+			if ( passes[ c ] <= threshold || labels[ seed ] != 0 )
+				continue;
+
+			// Flood the pixels below the threshold from the seed.
+			nLabels++;
+			labels[ seed ] = nLabels;
+			queue.add( seed );
+			while ( !queue.isEmpty() )
+			{
+				final int p = queue.poll();
+				final int x = grid.x( p );
+				final int y = grid.y( p );
+				final int z = grid.z( p );
+				for ( int k = 0; k < nk; k++ )
+				{
+					if ( !grid.isInside( x, y, z, k ) )
+						continue;
+					final int q = p + grid.offsets[ k ];
+					if ( labels[ q ] == 0 && values[ q ] <= threshold )
+					{
+						labels[ q ] = nLabels;
+						queue.add( q );
+					}
+				}
+			}
+		}
+
+		// Relabel in raster order.
+		final int[] lut = new int[ nLabels + 1 ];
+		int next = 0;
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			final int l = labels[ p ];
+			if ( l == 0 )
+				continue;
+			if ( lut[ l ] == 0 )
+				lut[ l ] = ++next;
+			labels[ p ] = lut[ l ];
+		}
+		stats.addMarkers( nLabels );
+		return labels;
+	}
+
+	private void add( final int seed, final float pass )
+	{
+		if ( nComponents == seeds.length )
+		{
+			seeds = Arrays.copyOf( seeds, 2 * nComponents );
+			passes = Arrays.copyOf( passes, 2 * nComponents );
+		}
+		seeds[ nComponents ] = seed;
+		passes[ nComponents ] = pass;
+		nComponents++;
+	}
+
+	private static int find( final int[] parent, int p )
+	{
+		while ( parent[ p ] != p )
+		{
+			parent[ p ] = parent[ parent[ p ] ];
+			p = parent[ p ];
+		}
+		return p;
+	}
+}
@@ -21,31 +21,49 @@
  */
 package fiji.plugin.trackmate.morpholibj;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.LabelImageDetector;
 import fiji.plugin.trackmate.detection.SpotDetector;
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.plugin.Duplicator;
-import inra.ijpb.binary.BinaryImages;
-import inra.ijpb.morphology.MinimaAndMaxima3D;
 import inra.ijpb.watershed.Watershed;
 import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.img.basictypes.IntArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
-public class MorphoLibJDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >
+public class MorphoLibJDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded
 {
 	private final static String BASE_ERROR_MESSAGE = "MorphoLibJDetector: ";
 
+	static final String PREPROCESSING_OFF_HEAP_ERROR = "A preprocessing cannot be used with the block-wise mode or the off-heap backend: "
+			+ "the filtered image would be held on the heap.";
+
 	protected final Interval interval;
 
 	protected List< Spot > spots = new ArrayList<>();
@@ -56,6 +74,8 @@ public class MorphoLibJDetector< T extends RealType< T > & NativeType< T > > imp
 
 	protected long processingTime;
 
+	protected MorphoLibJDetectorStats stats = new MorphoLibJDetectorStats();
+
 	private final ImgPlus< T > img;
 
 	private final double tolerance;
@@ -64,19 +84,101 @@ public class MorphoLibJDetector< T extends RealType< T > & NativeType< T > > imp
 
 	private final boolean simplify;
 
+	private final int margin;
+
+	private final boolean tiled;
+
+	private final WatershedBackend backend;
+
+	private int numThreads;
+
+	private long[] blockSize;
+
+	private Path tempDirectory;
+
+	private boolean computeMeshes = true;
+
+	private boolean perSlice;
+
+	private boolean linkSlices;
+
+	private LabelFilter filter = new LabelFilter( 0, 0, 0. );
+
+	private Preprocessing preprocessing = Preprocessing.NONE;
+
+	private double sigma;
+
+	private PreviewCache previewCache;
+
+	private TemporalSeeds temporalSeeds;
+
+	private int seedChannel;
+
+	private int seedFrame;
+
+	private int seedErosion;
+
+	private boolean seedsPublished;
+
+	private LabelCache labelCache;
+
+	/** Why the label cache asked for could not be opened, if it could not. */
+	private String labelCacheError;
+
+	private String labelCacheKey;
+
+	private int previewChannel;
+
+	private int previewFrame;
+
+	/**
+	 * Creates a MorphoLibJ detector.
+	 *
+	 * @param img
+	 *            the single-channel, single time-point image to segment.
+	 * @param interval
+	 *            the interval in which to detect objects.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity used in the morphological segmentation.
+	 * @param simplify
+	 *            whether to simplify the contours of 2D objects.
+	 * @param margin
+	 *            the margin, in pixels, by which the interval is expanded
+	 *            before segmentation. Only the expanded interval is copied
+	 *            and segmented, so that basins touching the interval border
+	 *            are still properly delineated.
+	 * @param tiled
+	 *            if <code>true</code> and more than one thread is allowed, the
+	 *            image is split in overlapping tiles segmented in parallel.
+	 *            The margin is used as overlap between tiles, and must be at
+	 *            least 1. The result only matches the serial segmentation if
+	 *            the margin is larger than the objects crossing the tile
+	 *            seams. Ignored with the off-heap backend.
+	 * @param backend
+	 *            the watershed implementation to use.
+	 */
 	public MorphoLibJDetector(
 			final ImgPlus< T > img,
 			final Interval interval,
 			final double tolerance,
 			final Connectivity connectivity,
-			final boolean simplify )
+			final boolean simplify,
+			final int margin,
+			final boolean tiled,
+			final WatershedBackend backend )
 	{
 		this.img = img;
 		this.tolerance = tolerance;
 		this.connectivity = connectivity;
 		this.interval = DetectionUtils.squeeze( interval );
 		this.simplify = simplify;
+		this.margin = Math.max( 0, margin );
+		this.tiled = tiled;
+		this.backend = backend;
 		this.baseErrorMessage = BASE_ERROR_MESSAGE;
+		setNumThreads();
 	}
 
 	@Override
@@ -87,45 +189,670 @@ public class MorphoLibJDetector< T extends RealType< T > & NativeType< T > > imp
 			errorMessage = baseErrorMessage + "Image is null.";
 			return false;
 		}
+		if ( labelCacheError != null )
+		{
+			errorMessage = baseErrorMessage + labelCacheError;
+			releaseTemporalSeeds();
+			return false;
+		}
+		if ( tiled && margin < 1 )
+		{
+			errorMessage = baseErrorMessage + "The tiled mode requires a margin of at least 1 pixel, used as overlap between tiles.";
+			releaseTemporalSeeds();
+			return false;
+		}
+		if ( preprocessing != Preprocessing.NONE && ( blockSize != null || backend == WatershedBackend.OFF_HEAP ) )
+		{
+			errorMessage = baseErrorMessage + PREPROCESSING_OFF_HEAP_ERROR;
+			releaseTemporalSeeds();
+			return false;
+		}
 		return true;
 	}
 
 	@Override
 	public boolean process()
 	{
-		final boolean dams = false; // Do we care about dams?
+		seedsPublished = false;
+		try
+		{
+			return processFrame();
+		}
+		finally
+		{
+			releaseTemporalSeeds();
+		}
+	}
+
+	private boolean processFrame()
+	{
 		final long start = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+		stats = new MorphoLibJDetectorStats();
 
 		/*
-		 * We have to duplicate the image because MorphoLibJ does not like
-		 * virtual stacks.
+		 * Only segment the detection interval, expanded by the margin and
+		 * clipped to the image bounds.
 		 */
-		final ImagePlus tmp = ImageJFunctions.wrap( img, "tmpwrapped" );
-		final ImagePlus tp = new Duplicator().run( tmp );
+		final Interval crop = Intervals.intersect( Intervals.expand( interval, margin ), img );
+		final RandomAccessibleInterval< T > source = Views.zeroMin( Views.interval( img, crop ) );
 
-		final int conn = connectivity.getConnectivity();
-		final ImageStack regionalMinima = MinimaAndMaxima3D.extendedMinima( tp.getImageStack(), tolerance, conn );
-		final ImageStack imposedMinima = MinimaAndMaxima3D.imposeMinima( tp.getImageStack(), regionalMinima, conn );
-		final ImageStack labeledMinima = BinaryImages.componentsLabeling( regionalMinima, conn, 32 );
-		final ImageStack resultStack = Watershed.computeWatershed( imposedMinima, labeledMinima, conn, dams );
+		/*
+		 * Look up the on-disk cache first.
+		 */
+		labelCacheKey = null;
+		if ( labelCache != null && backend != WatershedBackend.OFF_HEAP && blockSize == null && !isSeeded( source ) )
+		{
+			final long t0 = System.nanoTime();
+			labelCacheKey = LabelCache.key( source, cacheParameters() );
+			final long t1 = System.nanoTime();
+			stats.addTime( Stage.HASHING, t1 - t0 );
+			final ArrayImg< IntType, IntArray > cached = labelCache.get( labelCacheKey, stats );
+			stats.addTime( Stage.CACHE, System.nanoTime() - t1 );
+			if ( cached != null )
+			{
+				labelCacheKey = null;
+				final boolean ok = detect( cached, crop );
+				ImgLib2Watershed.release( cached );
+				if ( !ok )
+					return false;
+				finish( start, startNanos );
+				return true;
+			}
+		}
+
+		final boolean ok;
+		if ( preprocessing != Preprocessing.NONE )
+		{
+			// Filter the crop once, in the buffer all backends read from.
+			final PlanarImg< FloatType, FloatArray > filtered;
+			try
+			{
+				filtered = Preprocessor.apply( source, preprocessing,
+						Preprocessor.toPixels( sigma, TMUtils.getSpatialCalibration( img ), source.numDimensions() ),
+						connectivity, numThreads, stats );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				errorMessage = baseErrorMessage + "Problem preprocessing the image: " + e.getMessage();
+				return false;
+			}
+			ok = segment( filtered, crop );
+			// The preview cache may keep a reference to the filtered planes.
+			if ( previewCache == null )
+				Preprocessor.release( filtered );
+		}
+		else
+		{
+			ok = segment( source, crop );
+		}
+		if ( !ok )
+			return false;
+		finish( start, startNanos );
+		return true;
+	}
+
+	/**
+	 * Segments the specified crop with the backend and mode of this detector,
+	 * and creates spots from the labels.
+	 *
+	 * @param source
+	 *            the crop to segment, with a zero min.
+	 * @param crop
+	 *            the crop interval, in the source image.
+	 * @return <code>true</code> if the segmentation succeeded.
+	 */
+	private < S extends RealType< S > & NativeType< S > > boolean segment( final RandomAccessibleInterval< S > source, final Interval crop )
+	{
+		final boolean ok;
+		if ( blockSize != null || backend == WatershedBackend.OFF_HEAP )
+		{
+			// Labels are kept off-heap. The tiled mode is ignored.
+			final MappedVolume labels;
+			try
+			{
+				if ( blockSize != null )
+				{
+					labels = BlockwiseWatershed.segment( source, Intervals.minAsLongArray( crop ), blockSize, tolerance, connectivity, backend, margin, numThreads, tempDirectory, stats );
+				}
+				else
+				{
+					labels = OffHeapWatershed.segment( source, tolerance, connectivity, tempDirectory, stats );
+					stats.setLabels( stats.getMarkers() );
+				}
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = baseErrorMessage + "Problem creating memory-mapped files: " + e.getMessage();
+				return false;
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				errorMessage = baseErrorMessage + "Problem segmenting blocks: " + e.getMessage();
+				return false;
+			}
+			try
+			{
+				ok = detect( labels.toIntImg( Intervals.dimensionsAsLongArray( source ) ), crop );
+			}
+			finally
+			{
+				labels.close();
+			}
+		}
+		else if ( perSlice && source.numDimensions() == 3 )
+		{
+			final Img< IntType > labelImage;
+			try
+			{
+				labelImage = SliceWatershed.segment( source, tolerance, connectivity, backend, linkSlices, numThreads, stats );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				errorMessage = baseErrorMessage + "Problem segmenting slices: " + e.getMessage();
+				return false;
+			}
+			ok = detect( labelImage, crop );
+		}
+		else if ( previewCache != null && !( tiled && numThreads > 1 ) && backend != WatershedBackend.HIERARCHICAL )
+		{
+			final Img< IntType > labelImage = previewCache.segment( source, crop, previewChannel, previewFrame, preprocessingParameters(), tolerance, connectivity, backend, stats );
+			stats.setLabels( stats.getMarkers() );
+			ok = detect( labelImage, crop );
+		}
+		else if ( isSeeded( source ) )
+		{
+			final int[] previous;
+			try
+			{
+				previous = temporalSeeds.take( seedChannel, seedFrame - 1 );
+			}
+			catch ( final InterruptedException e )
+			{
+				errorMessage = baseErrorMessage + "Interrupted while waiting for the previous frame.";
+				return false;
+			}
+			final int[] markers = new int[ ( int ) Intervals.numElements( source ) ];
+			final ArrayImg< IntType, IntArray > labelImage = SeededMinima.segment( source, previous, tolerance, connectivity, backend, seedErosion, markers, stats );
+			temporalSeeds.publish( seedChannel, seedFrame, markers );
+			seedsPublished = true;
+			stats.setLabels( stats.getMarkers() );
+			ok = detect( labelImage, crop );
+			ImgLib2Watershed.release( labelImage );
+		}
+		else if ( tiled && numThreads > 1 )
+		{
+			final Img< IntType > labelImage;
+			try
+			{
+				labelImage = TiledWatershed.segment( source, tolerance, connectivity, backend, margin, numThreads, stats );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				errorMessage = baseErrorMessage + "Problem segmenting tiles: " + e.getMessage();
+				return false;
+			}
+			ok = detect( labelImage, crop );
+		}
+		else if ( backend == WatershedBackend.IMGLIB2 || backend == WatershedBackend.HIERARCHICAL )
+		{
+			final ArrayImg< IntType, IntArray > labelImage = ( backend == WatershedBackend.IMGLIB2 )
+					? ImgLib2Watershed.segment( source, tolerance, connectivity, stats )
+					: WatershedHierarchy.segment( source, tolerance, connectivity, stats );
+			stats.setLabels( stats.getMarkers() );
+			ok = detect( labelImage, crop );
+			// Spots do not reference the label image.
+			ImgLib2Watershed.release( labelImage );
+		}
+		else
+		{
+			final long t0 = System.nanoTime();
+			final ImageStack shared = ZeroCopyStacks.wrap( source );
+			final ImageStack input;
+			if ( shared != null )
+			{
+				stats.addBytesSaved( ZeroCopyStacks.sizeInBytes( shared ) );
+				input = shared;
+			}
+			else
+			{
+				input = copy( source, stats );
+			}
+			stats.addTime( Stage.COPY, System.nanoTime() - t0 );
+
+			final ImageStack resultStack = watershed( input, tolerance, connectivity, stats );
+			if ( shared == null )
+				ScratchBufferPool.get().releaseAll( input.getImageArray() );
+			stats.setLabels( stats.getMarkers() );
+			final Img< T > labelImage = ImageJFunctions.wrap( new ImagePlus( "watershed", resultStack ) );
+			ok = detect( labelImage, crop );
+		}
+		return ok;
+	}
+
+	/**
+	 * Returns a string describing the preprocessing, used in the keys of the
+	 * caches.
+	 */
+	private String preprocessingParameters()
+	{
+		return Preprocessor.describe( preprocessing, sigma );
+	}
+
+	private void finish( final long start, final long startNanos )
+	{
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		stats.setTotalTime( System.nanoTime() - startNanos );
+		if ( MorphoLibJMetrics.isEnabled() )
+			MorphoLibJMetrics.publish( stats );
+	}
+
+	/**
+	 * Returns a string describing the parameters that change the label
+	 * image, used in the key of the on-disk cache.
+	 */
+	private String cacheParameters()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( backend.name() );
+		str.append( ' ' ).append( connectivity.getConnectivity() );
+		str.append( ' ' ).append( tolerance );
+		if ( preprocessing != Preprocessing.NONE )
+			str.append( ' ' ).append( preprocessingParameters() );
+		if ( perSlice && img.numDimensions() == 3 )
+			str.append( " slices " ).append( linkSlices );
+		else if ( tiled && numThreads > 1 )
+			str.append( " tiled " ).append( numThreads ).append( ' ' ).append( margin );
+		return str.toString();
+	}
+
+	/**
+	 * Creates the spots of a label image that was computed elsewhere over
+	 * the crop of this detector, with its filters and shape settings, instead
+	 * of segmenting the image.
+	 *
+	 * @param labelImage
+	 *            the label image, with a zero min.
+	 * @param crop
+	 *            the crop interval the labels were computed over, in the
+	 *            source image.
+	 * @return <code>true</code> if the spots were created.
+	 */
+	< R extends RealType< R > & NativeType< R > > boolean processLabels( final RandomAccessibleInterval< R > labelImage, final Interval crop )
+	{
+		final long start = System.currentTimeMillis();
+		stats = new MorphoLibJDetectorStats();
+		labelCacheKey = null;
+		if ( !detect( labelImage, crop ) )
+			return false;
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/**
+	 * Converts the specified label image, computed over the crop interval, to
+	 * spots.
+	 */
+	private < R extends RealType< R > & NativeType< R > > boolean detect( final RandomAccessibleInterval< R > labelImage, final Interval crop )
+	{
+		if ( labelCacheKey != null )
+		{
+			final long t0 = System.nanoTime();
+			labelCache.put( labelCacheKey, labelImage );
+			stats.addTime( Stage.CACHE, System.nanoTime() - t0 );
+		}
 
-		final ImagePlus resultImage = new ImagePlus( "watershed", resultStack );
-		final Img< T > labelImage = ImageJFunctions.wrap( resultImage );
+		final long start = System.nanoTime();
+
+		// Shift the labels back to the coordinates of the source image.
+		final RandomAccessibleInterval< R > labels = Views.translate( labelImage, Intervals.minAsLongArray( crop ) );
 		final double[] calibration = TMUtils.getSpatialCalibration( img );
 
-		final LabelImageDetector< T > lbldetector = new LabelImageDetector<>( labelImage, interval, calibration, simplify );
+		if ( !computeMeshes && labels.numDimensions() == 3 )
+		{
+			try
+			{
+				spots = LabelSpots.convert( labels, img, interval, calibration, filter.isActive() ? filter : null, numThreads );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				errorMessage = baseErrorMessage + "Problem creating spots: " + e.getMessage();
+				return false;
+			}
+		}
+		else if ( filter.isActive() )
+		{
+			// Rejected labels never reach shape extraction.
+			final boolean[] accepted = filter.accepted( labels, img, interval );
+			if ( !extractShapes( LabelFilter.apply( labels, accepted ), calibration ) )
+				return false;
+		}
+		else if ( !extractShapes( labels, calibration ) )
+		{
+			return false;
+		}
+
+		stats.setSpots( spots.size() );
+		stats.addTime( Stage.SPOTS, System.nanoTime() - start );
+		return true;
+	}
+
+	/**
+	 * Creates spots with a contour or a mesh from the specified label image,
+	 * in the coordinates of the source image.
+	 */
+	private < L extends RealType< L > & NativeType< L > > boolean extractShapes( final RandomAccessibleInterval< L > labels, final double[] calibration )
+	{
+		final LabelImageDetector< L > lbldetector = new LabelImageDetector<>( labels, interval, calibration, simplify );
 		if ( !lbldetector.checkInput() || !lbldetector.process() )
 		{
 			errorMessage = baseErrorMessage + lbldetector.getErrorMessage();
 			return false;
 		}
 		spots = lbldetector.getResult();
-
-		final long end = System.currentTimeMillis();
-		this.processingTime = end - start;
 		return true;
 	}
 
+	/**
+	 * Returns an {@link ImageStack} with the content of the specified image.
+	 * The pixel arrays of the image are shared with the stack when possible,
+	 * and copied otherwise, for instance for virtual or cell-backed images.
+	 *
+	 * @param source
+	 *            the image.
+	 * @param stats
+	 *            the statistics in which to record the memory allocated or
+	 *            saved.
+	 * @return a stack. Must not be modified.
+	 */
+	static < T extends RealType< T > & NativeType< T > > ImageStack toImageStack( final RandomAccessibleInterval< T > source, final MorphoLibJDetectorStats stats )
+	{
+		final ImageStack stack = ZeroCopyStacks.wrap( source );
+		if ( stack != null )
+		{
+			stats.addBytesSaved( ZeroCopyStacks.sizeInBytes( stack ) );
+			return stack;
+		}
+		return copy( source, stats );
+	}
+
+	/**
+	 * Copies the specified image into an {@link ImageStack}. We have to
+	 * duplicate the image because MorphoLibJ does not like virtual stacks.
+	 * Unsigned 8-bit and 16-bit images give stacks of the same bit depth,
+	 * other images give 32-bit stacks.
+	 *
+	 * @param source
+	 *            the image.
+	 * @param stats
+	 *            the statistics in which to record the memory allocated.
+	 * @return a new stack, whose planes are borrowed from the
+	 *         {@link ScratchBufferPool} of the current thread.
+	 */
+	static < T extends RealType< T > & NativeType< T > > ImageStack copy( final RandomAccessibleInterval< T > source, final MorphoLibJDetectorStats stats )
+	{
+		final int width = ( int ) source.dimension( 0 );
+		final int height = source.numDimensions() > 1 ? ( int ) source.dimension( 1 ) : 1;
+		final int depth = source.numDimensions() > 2 ? ( int ) source.dimension( 2 ) : 1;
+		final int planeSize = width * height;
+		final T type = Util.getTypeFromInterval( source );
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+
+		final ImageStack stack = new ImageStack( width, height );
+		final Cursor< T > cursor = Views.flatIterable( source ).cursor();
+		for ( int z = 0; z < depth; z++ )
+		{
+			if ( type instanceof UnsignedByteType )
+			{
+				final byte[] plane = pool.bytes( planeSize, stats );
+				for ( int i = 0; i < planeSize; i++ )
+					plane[ i ] = ( byte ) ( int ) cursor.next().getRealFloat();
+				stack.addSlice( "", plane );
+			}
+			else if ( type instanceof UnsignedShortType )
+			{
+				final short[] plane = pool.shorts( planeSize, stats );
+				for ( int i = 0; i < planeSize; i++ )
+					plane[ i ] = ( short ) ( int ) cursor.next().getRealFloat();
+				stack.addSlice( "", plane );
+			}
+			else
+			{
+				final float[] plane = pool.floats( planeSize, stats );
+				for ( int i = 0; i < planeSize; i++ )
+					plane[ i ] = cursor.next().getRealFloat();
+				stack.addSlice( "", plane );
+			}
+		}
+		return stack;
+	}
+
+	/**
+	 * Runs the MorphoLibJ marker-controlled watershed on the specified stack,
+	 * using the extended minima as markers. The input stack is not modified.
+	 *
+	 * @param input
+	 *            the stack to segment.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param stats
+	 *            the statistics in which to record the time spent in each
+	 *            stage, the memory allocated and the number of markers.
+	 * @return a new stack containing the labels.
+	 */
+	static ImageStack watershed(
+			final ImageStack input,
+			final double tolerance,
+			final Connectivity connectivity,
+			final MorphoLibJDetectorStats stats )
+	{
+		final boolean dams = false; // Do we care about dams?
+		final int conn = connectivity.getConnectivity();
+		/*
+		 * Extended minima, imposition and labeling in one stage. See
+		 * FusedMinima for why the imposition can be skipped.
+		 */
+		final ImageStack labeledMinima = FusedMinima.markers( input, tolerance, connectivity, stats );
+
+		final long start = System.nanoTime();
+		final ImageStack result = Watershed.computeWatershed( input, labeledMinima, conn, dams );
+		FusedMinima.release( labeledMinima );
+		stats.addBytesAllocated( ZeroCopyStacks.sizeInBytes( result ) );
+		stats.addTime( Stage.FLOODING, System.nanoTime() - start );
+		return result;
+	}
+
+	/**
+	 * Makes this detector read label images from the specified on-disk
+	 * cache when possible, and write the label images it computes to it.
+	 *
+	 * @param cache
+	 *            the cache, or <code>null</code> to not use a cache.
+	 */
+	public void setLabelCache( final LabelCache cache )
+	{
+		this.labelCache = cache;
+		this.labelCacheError = null;
+	}
+
+	/**
+	 * Makes {@link #checkInput()} fail with the specified message, because
+	 * the label cache asked for could not be opened.
+	 */
+	void setLabelCacheError( final String message )
+	{
+		this.labelCache = null;
+		this.labelCacheError = message;
+	}
+
+	/**
+	 * Sets whether 3D objects are returned as spots with a mesh, or as
+	 * spheres of the same volume, which is much faster to compute. 2D
+	 * objects always have a contour.
+	 *
+	 * @param computeMeshes
+	 *            whether to compute meshes for 3D objects.
+	 */
+	public void setComputeMeshes( final boolean computeMeshes )
+	{
+		this.computeMeshes = computeMeshes;
+	}
+
+	/**
+	 * Makes this detector discard objects by size and mean intensity before
+	 * creating spots. Sizes are numbers of pixels within the detection
+	 * interval.
+	 *
+	 * @param minSize
+	 *            the minimal size of objects, or 0 for no minimum.
+	 * @param maxSize
+	 *            the maximal size of objects, or 0 for no maximum.
+	 * @param minMeanIntensity
+	 *            the minimal mean intensity of objects, or 0 for no minimum.
+	 */
+	public void setObjectFilter( final long minSize, final long maxSize, final double minMeanIntensity )
+	{
+		this.filter = new LabelFilter( minSize, maxSize, minMeanIntensity );
+	}
+
+	/**
+	 * Makes this detector filter the image before segmenting it. The filter
+	 * is applied to the copy of the detection interval that is segmented, in
+	 * parallel over planes, so the source image is not modified.
+	 *
+	 * @param preprocessing
+	 *            the filter to apply.
+	 * @param sigma
+	 *            the standard deviation of the Gaussian smoothing, in
+	 *            physical units. Ignored for the other filters.
+	 */
+	public void setPreprocessing( final Preprocessing preprocessing, final double sigma )
+	{
+		this.preprocessing = preprocessing;
+		this.sigma = sigma;
+	}
+
+	/**
+	 * Makes this detector segment the Z planes of 3D images independently,
+	 * in parallel, as 2D images. See {@link SliceWatershed}. Ignored for 2D
+	 * images, in the block-wise mode and with the off-heap backend.
+	 *
+	 * @param perSlice
+	 *            whether to segment Z planes independently.
+	 * @param link
+	 *            whether to link the objects of adjacent planes that overlap
+	 *            into 3D objects.
+	 */
+	public void setPerSlice( final boolean perSlice, final boolean link )
+	{
+		this.perSlice = perSlice;
+		this.linkSlices = link;
+	}
+
+	/**
+	 * Makes this detector segment the image block by block, with the
+	 * specified block size. See {@link BlockwiseWatershed}. The margin is
+	 * used as halo around blocks, and the blocks are segmented in parallel.
+	 *
+	 * @param blockSize
+	 *            the block size along each dimension, in pixels, or
+	 *            <code>null</code> to segment the image as a whole.
+	 */
+	public void setBlockSize( final long[] blockSize )
+	{
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Sets the directory in which the memory-mapped volumes of the block-wise
+	 * mode and of the off-heap backend are created. The default temporary
+	 * directory is often a RAM-backed file system: volumes larger than the
+	 * memory should be put on a disk.
+	 *
+	 * @param directory
+	 *            the directory, or <code>null</code> to use the default
+	 *            temporary directory.
+	 */
+	public void setTempDirectory( final Path directory )
+	{
+		this.tempDirectory = directory;
+	}
+
+	/**
+	 * Makes this detector seed its frame with the markers of the previous
+	 * frame, taken from the specified store, and publish its own markers to
+	 * it. See {@link SeededMinima}. Only used with the MorphoLibJ and ImgLib2
+	 * backends, outside of the block-wise, per-slice and tiled modes, which
+	 * take precedence. The on-disk cache is not used for seeded frames. The
+	 * frame must have been registered in the store.
+	 *
+	 * @param seeds
+	 *            the store of markers, shared by the detectors of all frames.
+	 * @param channel
+	 *            the channel of the image to segment.
+	 * @param frame
+	 *            the time-point of the image to segment.
+	 * @param erosion
+	 *            the number of erosions applied to the previous markers.
+	 */
+	void setTemporalSeeds( final TemporalSeeds seeds, final int channel, final int frame, final int erosion )
+	{
+		this.temporalSeeds = seeds;
+		this.seedChannel = channel;
+		this.seedFrame = frame;
+		this.seedErosion = erosion;
+	}
+
+	/**
+	 * Returns whether the frame is segmented from the markers of the previous
+	 * frame, that is, whether no other mode takes precedence.
+	 */
+	private boolean isSeeded( final Interval source )
+	{
+		return temporalSeeds != null
+				&& previewCache == null
+				&& ( backend == WatershedBackend.MORPHOLIBJ || backend == WatershedBackend.IMGLIB2 )
+				&& blockSize == null
+				&& !( perSlice && source.numDimensions() == 3 )
+				&& !tiled;
+	}
+
+	/**
+	 * Publishes no markers for the frame of this detector, if it has not
+	 * published its markers yet, so that the next frame does not wait for
+	 * them. Called on every path that ends without segmenting the frame.
+	 */
+	void releaseTemporalSeeds()
+	{
+		if ( temporalSeeds != null && !seedsPublished )
+		{
+			temporalSeeds.publish( seedChannel, seedFrame, null );
+			seedsPublished = true;
+		}
+	}
+
+	/**
+	 * Makes this detector reuse and update the specified preview cache,
+	 * instead of running the whole segmentation. The cache is not used in the
+	 * tiled mode.
+	 *
+	 * @param cache
+	 *            the cache.
+	 * @param channel
+	 *            the channel of the image to segment.
+	 * @param frame
+	 *            the time-point of the image to segment.
+	 */
+	void setPreviewCache( final PreviewCache cache, final int channel, final int frame )
+	{
+		this.previewCache = cache;
+		this.previewChannel = channel;
+		this.previewFrame = frame;
+	}
+
 	@Override
 	public List< Spot > getResult()
 	{
@@ -143,4 +870,46 @@ public class MorphoLibJDetector< T extends RealType< T > & NativeType< T > > imp
 	{
 		return processingTime;
 	}
+
+	/**
+	 * Returns the processing statistics of the last call to
+	 * {@link #process()}: time spent in each stage, memory allocated and
+	 * saved, number of markers, labels and spots.
+	 *
+	 * @return the statistics.
+	 */
+	public MorphoLibJDetectorStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * Returns the number of bytes that did not have to be copied in the last
+	 * call to {@link #process()}, because the input image could be passed to
+	 * MorphoLibJ without being duplicated.
+	 *
+	 * @return the number of bytes saved.
+	 */
+	public long getBytesSaved()
+	{
+		return stats.getBytesSaved();
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
 }
@@ -26,7 +26,25 @@ import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPL
 import static fiji.plugin.trackmate.gui.Fonts.BIG_FONT;
 import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
 import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.ICON;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_BACKEND;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_BLOCK_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_CHANNELS;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_COMPUTE_MESHES;
 import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_CONNECTIVITY;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_LABEL_CACHE_DIR;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_LABEL_CACHE_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_LINK_SLICES;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MARGIN;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MAX_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MIN_MEAN_INTENSITY;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MIN_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_PER_SLICE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_PREPROCESSING;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_SEED_EROSION;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_SMOOTHING_SIGMA;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TEMPORAL_SEEDING;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TEMP_DIR;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TILED;
 import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TOLERANCE;
 
 import java.awt.Dimension;
@@ -34,19 +52,28 @@ import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
+import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
 import javax.swing.JSlider;
+import javax.swing.JTable;
+import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
@@ -55,6 +82,11 @@ import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
 import fiji.plugin.trackmate.util.DetectionPreview;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 
 public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 {
@@ -63,8 +95,13 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 
 	private static final NumberFormat THRESHOLD_FORMAT = new DecimalFormat( "#.##" );
 
+	private static final NumberFormat MARGIN_FORMAT = NumberFormat.getIntegerInstance();
+
 	private static final String TITLE = MorphoLibJDetectorFactory.NAME;
 
+	/** Number of tolerances tested by the tolerance sweep. */
+	private static final int N_SWEEP = 20;
+
 	private final JSlider sliderChannel;
 
 	private final JFormattedTextField ftfTolerance;
@@ -73,11 +110,49 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 
 	private final JComboBox< Connectivity > cmbboxConnectivity;
 
+	private final JFormattedTextField ftfMargin;
+
+	private final JCheckBox chkboxTiled;
+
+	private final JComboBox< WatershedBackend > cmbboxBackend;
+
+	private final JFormattedTextField ftfBlockSize;
+
+	private final JTextField tfTempDir;
+
+	private final JCheckBox chkboxMeshes;
+
+	private final JFormattedTextField ftfMinSize;
+
+	private final JFormattedTextField ftfMaxSize;
+
+	private final JFormattedTextField ftfMinIntensity;
+
+	private final JTextField tfChannels;
+
+	private final JCheckBox chkboxPerSlice;
+
+	private final JCheckBox chkboxLinkSlices;
+
+	private final JComboBox< Preprocessing > cmbboxPreprocessing;
+
+	private final JFormattedTextField ftfSigma;
+
+	private final JCheckBox chkboxTemporal;
+
+	private final JFormattedTextField ftfSeedErosion;
+
+	private final JTextField tfCacheDir;
+
+	private final JFormattedTextField ftfCacheSize;
+
+	private final PreviewCache previewCache = new PreviewCache();
+
 	public MorphoLibJDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 144, 0, 32 };
-		gridBagLayout.rowHeights = new int[] { 0, 84, 0, 27, 0, 0, 150 };
+		gridBagLayout.rowHeights = new int[] { 0, 84, 0, 27, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 150 };
 		gridBagLayout.columnWeights = new double[] { 0.0, 1.0, 0.0 };
 		setLayout( gridBagLayout );
 
@@ -214,6 +289,465 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 		gbcChkboxSimplify.gridy = 5;
 		add( chkboxSimplify, gbcChkboxSimplify );
 
+		/*
+		 * Margin.
+		 */
+
+		final JLabel lblMargin = new JLabel( "Crop margin (pixels):" );
+		lblMargin.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblMargin = new GridBagConstraints();
+		gbcLblMargin.anchor = GridBagConstraints.EAST;
+		gbcLblMargin.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblMargin.gridx = 0;
+		gbcLblMargin.gridy = 6;
+		add( lblMargin, gbcLblMargin );
+
+		ftfMargin = new JFormattedTextField( MARGIN_FORMAT );
+		ftfMargin.setFont( SMALL_FONT );
+		ftfMargin.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfMargin.setHorizontalAlignment( SwingConstants.CENTER );
+		final GridBagConstraints gbcMargin = new GridBagConstraints();
+		gbcMargin.gridwidth = 2;
+		gbcMargin.fill = GridBagConstraints.HORIZONTAL;
+		gbcMargin.insets = new Insets( 0, 5, 5, 0 );
+		gbcMargin.gridx = 1;
+		gbcMargin.gridy = 6;
+		add( ftfMargin, gbcMargin );
+
+		/*
+		 * Tiled.
+		 */
+
+		final JLabel lblTiled = new JLabel( "Parallel tiles:" );
+		lblTiled.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblTiled = new GridBagConstraints();
+		gbcLblTiled.anchor = GridBagConstraints.EAST;
+		gbcLblTiled.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblTiled.gridx = 0;
+		gbcLblTiled.gridy = 7;
+		add( lblTiled, gbcLblTiled );
+
+		this.chkboxTiled = new JCheckBox();
+		chkboxTiled.setToolTipText( "<html>Splits the image in tiles segmented in parallel, overlapping by the crop margin, "
+				+ "which must be at least 1. The result is approximate: it only matches the serial segmentation "
+				+ "if the margin is larger than the objects crossing the tile seams.</html>" );
+		final GridBagConstraints gbcChkboxTiled = new GridBagConstraints();
+		gbcChkboxTiled.anchor = GridBagConstraints.WEST;
+		gbcChkboxTiled.insets = new Insets( 0, 5, 5, 5 );
+		gbcChkboxTiled.gridx = 1;
+		gbcChkboxTiled.gridy = 7;
+		add( chkboxTiled, gbcChkboxTiled );
+
+		/*
+		 * Backend.
+		 */
+
+		final JLabel lblBackend = new JLabel( "Implementation:" );
+		lblBackend.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblBackend = new GridBagConstraints();
+		gbcLblBackend.anchor = GridBagConstraints.EAST;
+		gbcLblBackend.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblBackend.gridx = 0;
+		gbcLblBackend.gridy = 8;
+		add( lblBackend, gbcLblBackend );
+
+		this.cmbboxBackend = new JComboBox<>( new Vector<>( Arrays.asList( WatershedBackend.values() ) ) );
+		( ( JLabel ) cmbboxBackend.getRenderer() ).setHorizontalAlignment( SwingConstants.CENTER );
+		cmbboxBackend.setFont( SMALL_FONT );
+		final GridBagConstraints gbcCmbboxBackend = new GridBagConstraints();
+		gbcCmbboxBackend.gridwidth = 2;
+		gbcCmbboxBackend.insets = new Insets( 0, 5, 5, 0 );
+		gbcCmbboxBackend.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxBackend.gridx = 1;
+		gbcCmbboxBackend.gridy = 8;
+		add( cmbboxBackend, gbcCmbboxBackend );
+
+		/*
+		 * Label cache.
+		 */
+
+		final JLabel lblCacheDir = new JLabel( "Label cache folder:" );
+		lblCacheDir.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblCacheDir = new GridBagConstraints();
+		gbcLblCacheDir.anchor = GridBagConstraints.EAST;
+		gbcLblCacheDir.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblCacheDir.gridx = 0;
+		gbcLblCacheDir.gridy = 9;
+		add( lblCacheDir, gbcLblCacheDir );
+
+		tfCacheDir = new JTextField();
+		tfCacheDir.setFont( SMALL_FONT );
+		tfCacheDir.setToolTipText( "<html>Folder in which label images are cached across sessions. "
+				+ "<br>Leave empty to not use a cache.</html>" );
+		final GridBagConstraints gbcCacheDir = new GridBagConstraints();
+		gbcCacheDir.gridwidth = 2;
+		gbcCacheDir.fill = GridBagConstraints.HORIZONTAL;
+		gbcCacheDir.insets = new Insets( 0, 5, 5, 0 );
+		gbcCacheDir.gridx = 1;
+		gbcCacheDir.gridy = 9;
+		add( tfCacheDir, gbcCacheDir );
+
+		final JLabel lblCacheSize = new JLabel( "Label cache size (MB):" );
+		lblCacheSize.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblCacheSize = new GridBagConstraints();
+		gbcLblCacheSize.anchor = GridBagConstraints.EAST;
+		gbcLblCacheSize.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblCacheSize.gridx = 0;
+		gbcLblCacheSize.gridy = 10;
+		add( lblCacheSize, gbcLblCacheSize );
+
+		ftfCacheSize = new JFormattedTextField( MARGIN_FORMAT );
+		ftfCacheSize.setFont( SMALL_FONT );
+		ftfCacheSize.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfCacheSize.setHorizontalAlignment( SwingConstants.CENTER );
+		final GridBagConstraints gbcCacheSize = new GridBagConstraints();
+		gbcCacheSize.gridwidth = 2;
+		gbcCacheSize.fill = GridBagConstraints.HORIZONTAL;
+		gbcCacheSize.insets = new Insets( 0, 5, 5, 0 );
+		gbcCacheSize.gridx = 1;
+		gbcCacheSize.gridy = 10;
+		add( ftfCacheSize, gbcCacheSize );
+
+		/*
+		 * Block size.
+		 */
+
+		final JLabel lblBlockSize = new JLabel( "Block size (pixels):" );
+		lblBlockSize.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblBlockSize = new GridBagConstraints();
+		gbcLblBlockSize.anchor = GridBagConstraints.EAST;
+		gbcLblBlockSize.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblBlockSize.gridx = 0;
+		gbcLblBlockSize.gridy = 11;
+		add( lblBlockSize, gbcLblBlockSize );
+
+		ftfBlockSize = new JFormattedTextField( MARGIN_FORMAT );
+		ftfBlockSize.setFont( SMALL_FONT );
+		ftfBlockSize.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfBlockSize.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfBlockSize.setToolTipText( "<html>If positive, images are segmented block by block, "
+				+ "<br>with the crop margin as overlap between blocks. "
+				+ "<br>Blocks are aligned on the cells of cell images. 0 disables.</html>" );
+		final GridBagConstraints gbcBlockSize = new GridBagConstraints();
+		gbcBlockSize.gridwidth = 2;
+		gbcBlockSize.fill = GridBagConstraints.HORIZONTAL;
+		gbcBlockSize.insets = new Insets( 0, 5, 5, 0 );
+		gbcBlockSize.gridx = 1;
+		gbcBlockSize.gridy = 11;
+		add( ftfBlockSize, gbcBlockSize );
+
+		final JLabel lblTempDir = new JLabel( "Temporary folder:" );
+		lblTempDir.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblTempDir = new GridBagConstraints();
+		gbcLblTempDir.anchor = GridBagConstraints.EAST;
+		gbcLblTempDir.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblTempDir.gridx = 0;
+		gbcLblTempDir.gridy = 12;
+		add( lblTempDir, gbcLblTempDir );
+
+		tfTempDir = new JTextField();
+		tfTempDir.setFont( SMALL_FONT );
+		tfTempDir.setToolTipText( "<html>Folder in which the memory-mapped files of the block-wise mode "
+				+ "<br>and of the off-heap backend are created. Should be on a disk: "
+				+ "<br>the default temporary folder is often held in memory. "
+				+ "<br>Leave empty to use the default temporary folder.</html>" );
+		final GridBagConstraints gbcTempDir = new GridBagConstraints();
+		gbcTempDir.gridwidth = 2;
+		gbcTempDir.fill = GridBagConstraints.HORIZONTAL;
+		gbcTempDir.insets = new Insets( 0, 5, 5, 0 );
+		gbcTempDir.gridx = 1;
+		gbcTempDir.gridy = 12;
+		add( tfTempDir, gbcTempDir );
+
+		/*
+		 * Meshes.
+		 */
+
+		final JLabel lblMeshes = new JLabel( "Compute 3D meshes:" );
+		lblMeshes.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblMeshes = new GridBagConstraints();
+		gbcLblMeshes.anchor = GridBagConstraints.EAST;
+		gbcLblMeshes.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblMeshes.gridx = 0;
+		gbcLblMeshes.gridy = 13;
+		add( lblMeshes, gbcLblMeshes );
+
+		this.chkboxMeshes = new JCheckBox();
+		chkboxMeshes.setToolTipText( "<html>If unchecked, 3D objects are returned as spheres "
+				+ "<br>of the same volume, which is much faster. "
+				+ "<br>The quality of the spheres is their number of voxels, "
+				+ "<br>which may differ from the quality of the spots with a mesh: "
+				+ "<br>set quality thresholds again after changing this option.</html>" );
+		final GridBagConstraints gbcChkboxMeshes = new GridBagConstraints();
+		gbcChkboxMeshes.anchor = GridBagConstraints.WEST;
+		gbcChkboxMeshes.insets = new Insets( 0, 5, 5, 5 );
+		gbcChkboxMeshes.gridx = 1;
+		gbcChkboxMeshes.gridy = 13;
+		add( chkboxMeshes, gbcChkboxMeshes );
+		if ( DetectionUtils.is2D( settings.imp ) )
+		{
+			lblMeshes.setVisible( false );
+			chkboxMeshes.setVisible( false );
+		}
+
+		/*
+		 * Object filter.
+		 */
+
+		final JLabel lblMinSize = new JLabel( "Min object size (pixels):" );
+		lblMinSize.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblMinSize = new GridBagConstraints();
+		gbcLblMinSize.anchor = GridBagConstraints.EAST;
+		gbcLblMinSize.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblMinSize.gridx = 0;
+		gbcLblMinSize.gridy = 14;
+		add( lblMinSize, gbcLblMinSize );
+
+		ftfMinSize = new JFormattedTextField( MARGIN_FORMAT );
+		ftfMinSize.setFont( SMALL_FONT );
+		ftfMinSize.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfMinSize.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfMinSize.setToolTipText( "Smaller objects are discarded. 0 disables." );
+		final GridBagConstraints gbcMinSize = new GridBagConstraints();
+		gbcMinSize.gridwidth = 2;
+		gbcMinSize.fill = GridBagConstraints.HORIZONTAL;
+		gbcMinSize.insets = new Insets( 0, 5, 5, 0 );
+		gbcMinSize.gridx = 1;
+		gbcMinSize.gridy = 14;
+		add( ftfMinSize, gbcMinSize );
+
+		final JLabel lblMaxSize = new JLabel( "Max object size (pixels):" );
+		lblMaxSize.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblMaxSize = new GridBagConstraints();
+		gbcLblMaxSize.anchor = GridBagConstraints.EAST;
+		gbcLblMaxSize.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblMaxSize.gridx = 0;
+		gbcLblMaxSize.gridy = 15;
+		add( lblMaxSize, gbcLblMaxSize );
+
+		ftfMaxSize = new JFormattedTextField( MARGIN_FORMAT );
+		ftfMaxSize.setFont( SMALL_FONT );
+		ftfMaxSize.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfMaxSize.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfMaxSize.setToolTipText( "Larger objects, such as the background, are discarded. 0 disables." );
+		final GridBagConstraints gbcMaxSize = new GridBagConstraints();
+		gbcMaxSize.gridwidth = 2;
+		gbcMaxSize.fill = GridBagConstraints.HORIZONTAL;
+		gbcMaxSize.insets = new Insets( 0, 5, 5, 0 );
+		gbcMaxSize.gridx = 1;
+		gbcMaxSize.gridy = 15;
+		add( ftfMaxSize, gbcMaxSize );
+
+		final JLabel lblMinIntensity = new JLabel( "Min mean intensity:" );
+		lblMinIntensity.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblMinIntensity = new GridBagConstraints();
+		gbcLblMinIntensity.anchor = GridBagConstraints.EAST;
+		gbcLblMinIntensity.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblMinIntensity.gridx = 0;
+		gbcLblMinIntensity.gridy = 16;
+		add( lblMinIntensity, gbcLblMinIntensity );
+
+		ftfMinIntensity = new JFormattedTextField( THRESHOLD_FORMAT );
+		ftfMinIntensity.setFont( SMALL_FONT );
+		ftfMinIntensity.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfMinIntensity.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfMinIntensity.setToolTipText( "Objects with a lower mean intensity are discarded. 0 disables." );
+		final GridBagConstraints gbcMinIntensity = new GridBagConstraints();
+		gbcMinIntensity.gridwidth = 2;
+		gbcMinIntensity.fill = GridBagConstraints.HORIZONTAL;
+		gbcMinIntensity.insets = new Insets( 0, 5, 5, 0 );
+		gbcMinIntensity.gridx = 1;
+		gbcMinIntensity.gridy = 16;
+		add( ftfMinIntensity, gbcMinIntensity );
+
+		/*
+		 * Channels.
+		 */
+
+		final JLabel lblChannels = new JLabel( "Channels (channel:tolerance):" );
+		lblChannels.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblChannels = new GridBagConstraints();
+		gbcLblChannels.anchor = GridBagConstraints.EAST;
+		gbcLblChannels.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblChannels.gridx = 0;
+		gbcLblChannels.gridy = 17;
+		add( lblChannels, gbcLblChannels );
+
+		tfChannels = new JTextField();
+		tfChannels.setFont( SMALL_FONT );
+		tfChannels.setToolTipText( "<html>Channels to segment concurrently, each with its own tolerance, "
+				+ "<br>for instance <code>1:30, 2:50</code>. Leave empty to segment the channel "
+				+ "<br>selected above with the tolerance above.</html>" );
+		final GridBagConstraints gbcChannels = new GridBagConstraints();
+		gbcChannels.gridwidth = 2;
+		gbcChannels.fill = GridBagConstraints.HORIZONTAL;
+		gbcChannels.insets = new Insets( 0, 5, 5, 0 );
+		gbcChannels.gridx = 1;
+		gbcChannels.gridy = 17;
+		add( tfChannels, gbcChannels );
+
+		/*
+		 * Per-slice segmentation.
+		 */
+
+		final JLabel lblPerSlice = new JLabel( "Segment Z planes in 2D:" );
+		lblPerSlice.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblPerSlice = new GridBagConstraints();
+		gbcLblPerSlice.anchor = GridBagConstraints.EAST;
+		gbcLblPerSlice.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblPerSlice.gridx = 0;
+		gbcLblPerSlice.gridy = 18;
+		add( lblPerSlice, gbcLblPerSlice );
+
+		this.chkboxPerSlice = new JCheckBox();
+		chkboxPerSlice.setToolTipText( "Segments each Z plane independently, in parallel." );
+		final GridBagConstraints gbcChkboxPerSlice = new GridBagConstraints();
+		gbcChkboxPerSlice.anchor = GridBagConstraints.WEST;
+		gbcChkboxPerSlice.insets = new Insets( 0, 5, 5, 5 );
+		gbcChkboxPerSlice.gridx = 1;
+		gbcChkboxPerSlice.gridy = 18;
+		add( chkboxPerSlice, gbcChkboxPerSlice );
+
+		final JLabel lblLinkSlices = new JLabel( "Link objects across planes:" );
+		lblLinkSlices.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblLinkSlices = new GridBagConstraints();
+		gbcLblLinkSlices.anchor = GridBagConstraints.EAST;
+		gbcLblLinkSlices.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblLinkSlices.gridx = 0;
+		gbcLblLinkSlices.gridy = 19;
+		add( lblLinkSlices, gbcLblLinkSlices );
+
+		this.chkboxLinkSlices = new JCheckBox();
+		chkboxLinkSlices.setToolTipText( "Links the 2D objects of adjacent planes that overlap into 3D objects." );
+		final GridBagConstraints gbcChkboxLinkSlices = new GridBagConstraints();
+		gbcChkboxLinkSlices.anchor = GridBagConstraints.WEST;
+		gbcChkboxLinkSlices.insets = new Insets( 0, 5, 5, 5 );
+		gbcChkboxLinkSlices.gridx = 1;
+		gbcChkboxLinkSlices.gridy = 19;
+		add( chkboxLinkSlices, gbcChkboxLinkSlices );
+		if ( DetectionUtils.is2D( settings.imp ) )
+		{
+			lblPerSlice.setVisible( false );
+			chkboxPerSlice.setVisible( false );
+			lblLinkSlices.setVisible( false );
+			chkboxLinkSlices.setVisible( false );
+		}
+
+		/*
+		 * Preprocessing.
+		 */
+
+		final JLabel lblPreprocessing = new JLabel( "Preprocessing:" );
+		lblPreprocessing.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblPreprocessing = new GridBagConstraints();
+		gbcLblPreprocessing.anchor = GridBagConstraints.EAST;
+		gbcLblPreprocessing.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblPreprocessing.gridx = 0;
+		gbcLblPreprocessing.gridy = 20;
+		add( lblPreprocessing, gbcLblPreprocessing );
+
+		this.cmbboxPreprocessing = new JComboBox<>( new Vector<>( Arrays.asList( Preprocessing.values() ) ) );
+		( ( JLabel ) cmbboxPreprocessing.getRenderer() ).setHorizontalAlignment( SwingConstants.CENTER );
+		cmbboxPreprocessing.setFont( SMALL_FONT );
+		cmbboxPreprocessing.setToolTipText( "<html>Filter applied to the image before segmentation, "
+				+ "<br>so that objects are delineated by bright contours. "
+				+ "<br>The filtered image is held in memory: not available "
+				+ "<br>with the block-wise mode or the off-heap backend.</html>" );
+		final GridBagConstraints gbcCmbboxPreprocessing = new GridBagConstraints();
+		gbcCmbboxPreprocessing.gridwidth = 2;
+		gbcCmbboxPreprocessing.insets = new Insets( 0, 5, 5, 0 );
+		gbcCmbboxPreprocessing.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxPreprocessing.gridx = 1;
+		gbcCmbboxPreprocessing.gridy = 20;
+		add( cmbboxPreprocessing, gbcCmbboxPreprocessing );
+
+		final JLabel lblSigma = new JLabel( "Smoothing sigma:" );
+		lblSigma.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblSigma = new GridBagConstraints();
+		gbcLblSigma.anchor = GridBagConstraints.EAST;
+		gbcLblSigma.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblSigma.gridx = 0;
+		gbcLblSigma.gridy = 21;
+		add( lblSigma, gbcLblSigma );
+
+		ftfSigma = new JFormattedTextField( THRESHOLD_FORMAT );
+		ftfSigma.setFont( SMALL_FONT );
+		ftfSigma.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfSigma.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfSigma.setToolTipText( "Standard deviation of the Gaussian smoothing, in physical units." );
+		final GridBagConstraints gbcSigma = new GridBagConstraints();
+		gbcSigma.gridwidth = 2;
+		gbcSigma.fill = GridBagConstraints.HORIZONTAL;
+		gbcSigma.insets = new Insets( 0, 5, 5, 0 );
+		gbcSigma.gridx = 1;
+		gbcSigma.gridy = 21;
+		add( ftfSigma, gbcSigma );
+
+		/*
+		 * Temporal seeding.
+		 */
+
+		final JLabel lblTemporal = new JLabel( "Seed with previous frame:" );
+		lblTemporal.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblTemporal = new GridBagConstraints();
+		gbcLblTemporal.anchor = GridBagConstraints.EAST;
+		gbcLblTemporal.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblTemporal.gridx = 0;
+		gbcLblTemporal.gridy = 22;
+		add( lblTemporal, gbcLblTemporal );
+
+		this.chkboxTemporal = new JCheckBox();
+		chkboxTemporal.setToolTipText( "<html>Seeds each frame with the markers of the previous frame, "
+				+ "<br>and only searches for new markers where they no longer fit. "
+				+ "<br>Frames are then segmented one after the other. "
+				+ "<br>Ignored in the block-wise, per-slice and tiled modes, "
+				+ "<br>and with the hierarchical and off-heap backends.</html>" );
+		final GridBagConstraints gbcChkboxTemporal = new GridBagConstraints();
+		gbcChkboxTemporal.anchor = GridBagConstraints.WEST;
+		gbcChkboxTemporal.insets = new Insets( 0, 5, 5, 5 );
+		gbcChkboxTemporal.gridx = 1;
+		gbcChkboxTemporal.gridy = 22;
+		add( chkboxTemporal, gbcChkboxTemporal );
+
+		final JLabel lblSeedErosion = new JLabel( "Seed erosion (pixels):" );
+		lblSeedErosion.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblSeedErosion = new GridBagConstraints();
+		gbcLblSeedErosion.anchor = GridBagConstraints.EAST;
+		gbcLblSeedErosion.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblSeedErosion.gridx = 0;
+		gbcLblSeedErosion.gridy = 23;
+		add( lblSeedErosion, gbcLblSeedErosion );
+
+		ftfSeedErosion = new JFormattedTextField( MARGIN_FORMAT );
+		ftfSeedErosion.setFont( SMALL_FONT );
+		ftfSeedErosion.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfSeedErosion.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfSeedErosion.setToolTipText( "Should be larger than the motion of objects between frames." );
+		final GridBagConstraints gbcSeedErosion = new GridBagConstraints();
+		gbcSeedErosion.gridwidth = 2;
+		gbcSeedErosion.fill = GridBagConstraints.HORIZONTAL;
+		gbcSeedErosion.insets = new Insets( 0, 5, 5, 0 );
+		gbcSeedErosion.gridx = 1;
+		gbcSeedErosion.gridy = 23;
+		add( ftfSeedErosion, gbcSeedErosion );
+
+		/*
+		 * Tolerance sweep.
+		 */
+
+		final JButton btnSweep = new JButton( "Tolerance sweep" );
+		btnSweep.setFont( SMALL_FONT );
+		btnSweep.setToolTipText( "<html>Segments the current frame at " + N_SWEEP + " tolerances "
+				+ "around the current one, <br>and reports the number and median size of objects "
+				+ "for each. <br>Double-click on a row to use its tolerance.</html>" );
+		final GridBagConstraints gbcBtnSweep = new GridBagConstraints();
+		gbcBtnSweep.anchor = GridBagConstraints.EAST;
+		gbcBtnSweep.gridwidth = 3;
+		gbcBtnSweep.insets = new Insets( 0, 5, 5, 5 );
+		gbcBtnSweep.gridx = 0;
+		gbcBtnSweep.gridy = 24;
+		add( btnSweep, gbcBtnSweep );
+
 		/*
 		 * Logger.
 		 */
@@ -224,7 +758,7 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 		gbcBtnPreview.fill = GridBagConstraints.BOTH;
 		gbcBtnPreview.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnPreview.gridx = 0;
-		gbcBtnPreview.gridy = 6;
+		gbcBtnPreview.gridy = 25;
 
 		final DetectionPreview detectionPreview = DetectionPreview.create()
 				.model( model )
@@ -240,6 +774,15 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 		 */
 
 		GuiUtils.selectAllOnFocus( ftfTolerance );
+		GuiUtils.selectAllOnFocus( ftfMargin );
+		GuiUtils.selectAllOnFocus( ftfCacheSize );
+		GuiUtils.selectAllOnFocus( ftfBlockSize );
+		GuiUtils.selectAllOnFocus( ftfMinSize );
+		GuiUtils.selectAllOnFocus( ftfMaxSize );
+		GuiUtils.selectAllOnFocus( ftfMinIntensity );
+		GuiUtils.selectAllOnFocus( ftfSigma );
+		GuiUtils.selectAllOnFocus( ftfSeedErosion );
+		btnSweep.addActionListener( e -> sweep( settings, btnSweep ) );
 
 		/*
 		 * Deal with channels: the slider and channel labels are only visible if
@@ -267,15 +810,85 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 		}
 	}
 
+	/**
+	 * Segments the current frame at several tolerances around the current
+	 * one, in a separate thread, and displays the results.
+	 */
+	private < T extends RealType< T > & NativeType< T > > void sweep( final Settings settings, final JButton button )
+	{
+		if ( null == settings.imp )
+			return;
+
+		final Map< String, Object > detectorSettings = getSettings();
+		final double tolerance = ( double ) detectorSettings.get( KEY_TOLERANCE );
+		final double center = tolerance > 0. ? tolerance : 1.;
+		final double[] tolerances = new double[ N_SWEEP ];
+		for ( int i = 0; i < N_SWEEP; i++ )
+			tolerances[ i ] = center / 4. * Math.pow( 16., i / ( N_SWEEP - 1. ) );
+
+		button.setEnabled( false );
+		new Thread( () -> {
+			try
+			{
+				@SuppressWarnings( "unchecked" )
+				final ImgPlus< T > img = TMUtils.rawWraps( settings.imp );
+				final Interval interval = TMUtils.getInterval( img, settings );
+				final int frame = settings.imp.getFrame() - 1;
+				final List< ToleranceSweep.Result > results = ToleranceSweep.run( img, detectorSettings, interval, frame, tolerances, false );
+				SwingUtilities.invokeLater( () -> showSweep( results ) );
+			}
+			catch ( final RuntimeException | Error e )
+			{
+				// Unsupported settings, failed preprocessing, out of memory...
+				final String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+				SwingUtilities.invokeLater( () -> JOptionPane.showMessageDialog( this, message, "Tolerance sweep", JOptionPane.ERROR_MESSAGE, ICON ) );
+			}
+			finally
+			{
+				SwingUtilities.invokeLater( () -> button.setEnabled( true ) );
+			}
+		}, "TrackMate-MorphoLibJ tolerance sweep" ).start();
+	}
+
+	private void showSweep( final List< ToleranceSweep.Result > results )
+	{
+		final String[] columns = new String[] { "Tolerance", "Objects", "Median size" };
+		final Object[][] rows = new Object[ results.size() ][];
+		for ( int i = 0; i < rows.length; i++ )
+		{
+			final ToleranceSweep.Result result = results.get( i );
+			rows[ i ] = new Object[] {
+					THRESHOLD_FORMAT.format( result.getTolerance() ),
+					result.getCount(),
+					String.format( "%.1f", result.getMedianSize() ) };
+		}
+		final JTable table = new JTable( rows, columns );
+		table.setDefaultEditor( Object.class, null );
+		table.setFont( SMALL_FONT );
+		table.addMouseListener( new MouseAdapter()
+		{
+			@Override
+			public void mouseClicked( final MouseEvent e )
+			{
+				final int row = table.rowAtPoint( e.getPoint() );
+				if ( e.getClickCount() == 2 && row >= 0 )
+					ftfTolerance.setValue( results.get( row ).getTolerance() );
+			}
+		} );
+		final JScrollPane scrollPane = new JScrollPane( table );
+		scrollPane.setPreferredSize( new Dimension( 300, 300 ) );
+		JOptionPane.showMessageDialog( this, scrollPane, "Tolerance sweep", JOptionPane.PLAIN_MESSAGE, ICON );
+	}
+
 	private SpotDetectorFactoryBase< ? > getDetectorFactory()
 	{
-		return new MorphoLibJDetectorFactory<>();
+		return new PreviewDetectorFactory<>( previewCache );
 	}
 
 	@Override
 	public Map< String, Object > getSettings()
 	{
-		final HashMap< String, Object > settings = new HashMap<>( 4 );
+		final HashMap< String, Object > settings = new HashMap<>( 21 );
 
 		final int targetChannel = sliderChannel.getValue();
 		settings.put( KEY_TARGET_CHANNEL, targetChannel );
@@ -289,6 +902,57 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 		final boolean simplify = chkboxSimplify.isSelected();
 		settings.put( KEY_SIMPLIFY_CONTOURS, simplify );
 
+		final int margin = ( ( Number ) ftfMargin.getValue() ).intValue();
+		settings.put( KEY_MARGIN, margin );
+
+		final boolean tiled = chkboxTiled.isSelected();
+		settings.put( KEY_TILED, tiled );
+
+		final WatershedBackend backend = ( WatershedBackend ) cmbboxBackend.getSelectedItem();
+		settings.put( KEY_BACKEND, backend.name() );
+
+		settings.put( KEY_LABEL_CACHE_DIR, tfCacheDir.getText().trim() );
+
+		final int cacheSize = ( ( Number ) ftfCacheSize.getValue() ).intValue();
+		settings.put( KEY_LABEL_CACHE_SIZE, cacheSize );
+
+		final int blockSize = ( ( Number ) ftfBlockSize.getValue() ).intValue();
+		settings.put( KEY_BLOCK_SIZE, Math.max( 0, blockSize ) );
+
+		settings.put( KEY_TEMP_DIR, tfTempDir.getText().trim() );
+
+		final boolean computeMeshes = chkboxMeshes.isSelected();
+		settings.put( KEY_COMPUTE_MESHES, computeMeshes );
+
+		final int minSize = ( ( Number ) ftfMinSize.getValue() ).intValue();
+		settings.put( KEY_MIN_SIZE, Math.max( 0, minSize ) );
+
+		final int maxSize = ( ( Number ) ftfMaxSize.getValue() ).intValue();
+		settings.put( KEY_MAX_SIZE, Math.max( 0, maxSize ) );
+
+		final double minIntensity = ( ( Number ) ftfMinIntensity.getValue() ).doubleValue();
+		settings.put( KEY_MIN_MEAN_INTENSITY, minIntensity );
+
+		settings.put( KEY_CHANNELS, tfChannels.getText().trim() );
+
+		final boolean perSlice = chkboxPerSlice.isSelected();
+		settings.put( KEY_PER_SLICE, perSlice );
+
+		final boolean linkSlices = chkboxLinkSlices.isSelected();
+		settings.put( KEY_LINK_SLICES, linkSlices );
+
+		final Preprocessing preprocessing = ( Preprocessing ) cmbboxPreprocessing.getSelectedItem();
+		settings.put( KEY_PREPROCESSING, preprocessing.name() );
+
+		final double sigma = ( ( Number ) ftfSigma.getValue() ).doubleValue();
+		settings.put( KEY_SMOOTHING_SIGMA, sigma );
+
+		final boolean temporal = chkboxTemporal.isSelected();
+		settings.put( KEY_TEMPORAL_SEEDING, temporal );
+
+		final int seedErosion = ( ( Number ) ftfSeedErosion.getValue() ).intValue();
+		settings.put( KEY_SEED_EROSION, Math.max( 0, seedErosion ) );
+
 		return settings;
 	}
 
@@ -299,9 +963,57 @@ public class MorphoLibJDetectorConfigurationPanel extends ConfigurationPanel
 		ftfTolerance.setValue( settings.get( KEY_TOLERANCE ) );
 		cmbboxConnectivity.setSelectedItem( Connectivity.valueFor( ( int ) settings.get( KEY_CONNECTIVITY ) ) );
 		chkboxSimplify.setSelected( ( boolean ) settings.get( KEY_SIMPLIFY_CONTOURS ) );
+		ftfMargin.setValue( settings.getOrDefault( KEY_MARGIN, MorphoLibJDetectorFactory.DEFAULT_MARGIN ) );
+		chkboxTiled.setSelected( ( boolean ) settings.getOrDefault( KEY_TILED, MorphoLibJDetectorFactory.DEFAULT_TILED ) );
+		cmbboxBackend.setSelectedItem( WatershedBackend.valueFor( ( String ) settings.getOrDefault( KEY_BACKEND, MorphoLibJDetectorFactory.DEFAULT_BACKEND ) ) );
+		tfCacheDir.setText( ( String ) settings.getOrDefault( KEY_LABEL_CACHE_DIR, MorphoLibJDetectorFactory.DEFAULT_LABEL_CACHE_DIR ) );
+		ftfCacheSize.setValue( settings.getOrDefault( KEY_LABEL_CACHE_SIZE, MorphoLibJDetectorFactory.DEFAULT_LABEL_CACHE_SIZE ) );
+		ftfBlockSize.setValue( settings.getOrDefault( KEY_BLOCK_SIZE, MorphoLibJDetectorFactory.DEFAULT_BLOCK_SIZE ) );
+		tfTempDir.setText( ( String ) settings.getOrDefault( KEY_TEMP_DIR, MorphoLibJDetectorFactory.DEFAULT_TEMP_DIR ) );
+		chkboxMeshes.setSelected( ( boolean ) settings.getOrDefault( KEY_COMPUTE_MESHES, MorphoLibJDetectorFactory.DEFAULT_COMPUTE_MESHES ) );
+		ftfMinSize.setValue( settings.getOrDefault( KEY_MIN_SIZE, MorphoLibJDetectorFactory.DEFAULT_MIN_SIZE ) );
+		ftfMaxSize.setValue( settings.getOrDefault( KEY_MAX_SIZE, MorphoLibJDetectorFactory.DEFAULT_MAX_SIZE ) );
+		ftfMinIntensity.setValue( settings.getOrDefault( KEY_MIN_MEAN_INTENSITY, MorphoLibJDetectorFactory.DEFAULT_MIN_MEAN_INTENSITY ) );
+		tfChannels.setText( ( String ) settings.getOrDefault( KEY_CHANNELS, MorphoLibJDetectorFactory.DEFAULT_CHANNELS ) );
+		chkboxPerSlice.setSelected( ( boolean ) settings.getOrDefault( KEY_PER_SLICE, MorphoLibJDetectorFactory.DEFAULT_PER_SLICE ) );
+		chkboxLinkSlices.setSelected( ( boolean ) settings.getOrDefault( KEY_LINK_SLICES, MorphoLibJDetectorFactory.DEFAULT_LINK_SLICES ) );
+		cmbboxPreprocessing.setSelectedItem( Preprocessing.valueFor( ( String ) settings.getOrDefault( KEY_PREPROCESSING, MorphoLibJDetectorFactory.DEFAULT_PREPROCESSING ) ) );
+		ftfSigma.setValue( settings.getOrDefault( KEY_SMOOTHING_SIGMA, MorphoLibJDetectorFactory.DEFAULT_SMOOTHING_SIGMA ) );
+		chkboxTemporal.setSelected( ( boolean ) settings.getOrDefault( KEY_TEMPORAL_SEEDING, MorphoLibJDetectorFactory.DEFAULT_TEMPORAL_SEEDING ) );
+		ftfSeedErosion.setValue( settings.getOrDefault( KEY_SEED_EROSION, MorphoLibJDetectorFactory.DEFAULT_SEED_EROSION ) );
 	}
 
 	@Override
 	public void clean()
-	{}
+	{
+		previewCache.clear();
+	}
+
+	/**
+	 * A detector factory whose detectors reuse the results of the previous
+	 * preview when possible.
+	 */
+	private static final class PreviewDetectorFactory< T extends RealType< T > & NativeType< T > > extends MorphoLibJDetectorFactory< T >
+	{
+
+		private final PreviewCache cache;
+
+		private PreviewDetectorFactory( final PreviewCache cache )
+		{
+			this.cache = cache;
+		}
+
+		@Override
+		protected MorphoLibJDetector< T > getChannelDetector( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final int frame, final int channel )
+		{
+			// Previews segment single frames: no seeds to hand over.
+			final Map< String, Object > previewSettings = new HashMap<>( settings );
+			previewSettings.put( KEY_TEMPORAL_SEEDING, false );
+			final MorphoLibJDetector< T > detector = super.getChannelDetector( img, previewSettings, interval, frame, channel );
+			// The cache holds one channel: do not share it between channels.
+			if ( parseChannels( ( String ) settings.getOrDefault( KEY_CHANNELS, DEFAULT_CHANNELS ) ).isEmpty() )
+				detector.setPreviewCache( cache, channel - 1, frame );
+			return detector;
+		}
+	}
 }
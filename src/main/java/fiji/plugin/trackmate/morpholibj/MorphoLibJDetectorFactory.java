@@ -25,7 +25,16 @@ import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNE
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.swing.ImageIcon;
@@ -39,9 +48,14 @@ import fiji.plugin.trackmate.detection.SpotDetector;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
+import fiji.plugin.trackmate.io.IOUtils;
 import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imglib2.Interval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
@@ -59,12 +73,202 @@ public class MorphoLibJDetectorFactory< T extends RealType< T > & NativeType< T
 	/**
 	 * The key to the parameter that stores the connectivity to use in
 	 * morphological segmentation. Accepted values are integers, 6 (for straight
-	 * connectivity) or 26 (for diagonal connectivity).
+	 * connectivity) or 26 (for diagonal connectivity). In 2D and in the
+	 * per-slice mode, they stand for 4 and 8.
 	 */
 	public static final String KEY_CONNECTIVITY = "CONNECTIVITY";
 
 	public static final Integer DEFAULT_CONNECTIVITY = Connectivity.DIAGONAL.getConnectivity();
 
+	/**
+	 * The key to the parameter that stores the margin, in pixels, by which the
+	 * detection interval is expanded before segmentation. Only this expanded
+	 * region is copied and segmented. Accepted values are positive integers.
+	 */
+	public static final String KEY_MARGIN = "MARGIN";
+
+	public static final Integer DEFAULT_MARGIN = Integer.valueOf( 20 );
+
+	/**
+	 * The key to the parameter that stores whether the image is split in
+	 * overlapping tiles segmented in parallel. The crop margin is used as
+	 * overlap between tiles, and must be at least 1 in this mode. The result
+	 * is an approximation of the serial segmentation, whatever the margin
+	 * (see {@link TiledWatershed}). Accepted values are booleans.
+	 */
+	public static final String KEY_TILED = "TILED";
+
+	public static final Boolean DEFAULT_TILED = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that stores the watershed implementation to
+	 * use. Accepted values are the names of the {@link WatershedBackend}
+	 * constants, as strings.
+	 */
+	public static final String KEY_BACKEND = "BACKEND";
+
+	public static final String DEFAULT_BACKEND = WatershedBackend.MORPHOLIBJ.name();
+
+	/**
+	 * The key to the parameter that stores the directory of the on-disk
+	 * cache of label images. Accepted values are strings. An empty string
+	 * disables the cache.
+	 */
+	public static final String KEY_LABEL_CACHE_DIR = "LABEL_CACHE_DIR";
+
+	public static final String DEFAULT_LABEL_CACHE_DIR = "";
+
+	/**
+	 * The key to the parameter that stores the maximal size of the on-disk
+	 * cache of label images, in megabytes. Accepted values are positive
+	 * integers.
+	 */
+	public static final String KEY_LABEL_CACHE_SIZE = "LABEL_CACHE_SIZE";
+
+	public static final Integer DEFAULT_LABEL_CACHE_SIZE = Integer.valueOf( 1024 );
+
+	/**
+	 * The key to the parameter that stores the size of the blocks, in pixels,
+	 * in which the image is segmented block by block. For cell images, it is
+	 * rounded up to a multiple of the cell size. The result is an
+	 * approximation of the segmentation of the whole image (see
+	 * {@link BlockwiseWatershed}). Accepted values are positive integers. 0
+	 * disables the block-wise segmentation.
+	 */
+	public static final String KEY_BLOCK_SIZE = "BLOCK_SIZE";
+
+	public static final Integer DEFAULT_BLOCK_SIZE = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the directory in which the
+	 * memory-mapped volumes of the block-wise mode and of the off-heap backend
+	 * are created. Accepted values are strings. An empty string uses the
+	 * default temporary directory, which is often a RAM-backed file system.
+	 */
+	public static final String KEY_TEMP_DIR = "TEMP_DIR";
+
+	public static final String DEFAULT_TEMP_DIR = "";
+
+	/**
+	 * The key to the parameter that stores whether 3D objects are returned
+	 * with a mesh. If not, they are returned as spheres of the same volume,
+	 * which is much faster. Accepted values are booleans.
+	 * <p>
+	 * The quality of the spheres is their number of voxels within the
+	 * detection interval. The quality of the spots with a mesh is the one
+	 * given by the TrackMate label image detector, which may differ: quality
+	 * thresholds should be set again after changing this parameter.
+	 */
+	public static final String KEY_COMPUTE_MESHES = "COMPUTE_MESHES";
+
+	public static final Boolean DEFAULT_COMPUTE_MESHES = Boolean.TRUE;
+
+	/**
+	 * The key to the parameter that stores the minimal size of objects, in
+	 * pixels. Smaller objects are discarded before creating spots. Accepted
+	 * values are positive integers. 0 disables the minimum.
+	 */
+	public static final String KEY_MIN_SIZE = "MIN_SIZE";
+
+	public static final Integer DEFAULT_MIN_SIZE = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the maximal size of objects, in
+	 * pixels. Larger objects, such as the background basin, are discarded
+	 * before creating spots. Accepted values are positive integers. 0
+	 * disables the maximum.
+	 */
+	public static final String KEY_MAX_SIZE = "MAX_SIZE";
+
+	public static final Integer DEFAULT_MAX_SIZE = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the minimal mean intensity of
+	 * objects. Darker objects are discarded before creating spots. Accepted
+	 * values are doubles. 0 disables the minimum.
+	 */
+	public static final String KEY_MIN_MEAN_INTENSITY = "MIN_MEAN_INTENSITY";
+
+	public static final Double DEFAULT_MIN_MEAN_INTENSITY = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the channels to segment in the
+	 * multi-channel mode, each with its own tolerance. Accepted values are
+	 * strings of comma-separated <code>channel:tolerance</code> pairs, with
+	 * 1-based channels, for instance <code>"1:30, 2:50"</code>. An empty
+	 * string disables the multi-channel mode: only the target channel is
+	 * segmented, with the tolerance of {@link #KEY_TOLERANCE}.
+	 */
+	public static final String KEY_CHANNELS = "CHANNELS";
+
+	public static final String DEFAULT_CHANNELS = "";
+
+	/**
+	 * The key to the parameter that stores whether the Z planes of 3D images
+	 * are segmented independently, in parallel, as 2D images. Accepted
+	 * values are booleans.
+	 */
+	public static final String KEY_PER_SLICE = "PER_SLICE";
+
+	public static final Boolean DEFAULT_PER_SLICE = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that stores whether, in the per-slice mode,
+	 * the objects of adjacent planes that overlap are linked into 3D
+	 * objects. Accepted values are booleans.
+	 */
+	public static final String KEY_LINK_SLICES = "LINK_SLICES";
+
+	public static final Boolean DEFAULT_LINK_SLICES = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that stores the filter applied to the image
+	 * before segmentation, for instance to turn a nuclear or cytoplasmic
+	 * stain into bright contours. Accepted values are the names of the
+	 * {@link Preprocessing} constants, as strings.
+	 * <p>
+	 * The filtered image is held on the heap, so a preprocessing cannot be
+	 * combined with the block-wise mode or the off-heap backend, whose point
+	 * is to bound the memory used.
+	 */
+	public static final String KEY_PREPROCESSING = "PREPROCESSING";
+
+	public static final String DEFAULT_PREPROCESSING = Preprocessing.NONE.name();
+
+	/**
+	 * The key to the parameter that stores the standard deviation of the
+	 * Gaussian smoothing, in physical units. Accepted values are positive
+	 * doubles.
+	 */
+	public static final String KEY_SMOOTHING_SIGMA = "SMOOTHING_SIGMA";
+
+	public static final Double DEFAULT_SMOOTHING_SIGMA = Double.valueOf( 1. );
+
+	/**
+	 * The key to the parameter that stores whether each frame is seeded with
+	 * the markers of the previous frame, so that labels follow the previous
+	 * frame and the pixels resolved by the seeds are not searched again for
+	 * extended minima. Each frame waits for the
+	 * previous one, from the first frame detected to the last one (see
+	 * {@link TemporalSeeds}). Only used with the MorphoLibJ and ImgLib2
+	 * backends, and ignored in the block-wise, per-slice and tiled modes,
+	 * which take precedence. The on-disk label cache is not used for seeded
+	 * frames. Accepted values are booleans.
+	 */
+	public static final String KEY_TEMPORAL_SEEDING = "TEMPORAL_SEEDING";
+
+	public static final Boolean DEFAULT_TEMPORAL_SEEDING = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that stores the number of erosions applied to
+	 * the markers of the previous frame before using them as seeds. It should
+	 * be larger than the motion of objects between frames, in pixels.
+	 * Accepted values are positive integers.
+	 */
+	public static final String KEY_SEED_EROSION = "SEED_EROSION";
+
+	public static final Integer DEFAULT_SEED_EROSION = Integer.valueOf( 3 );
+
 	/** A string key identifying this factory. */
 	public static final String DETECTOR_KEY = "MORPHOLIBJ_DETECTOR";
 
@@ -91,24 +295,316 @@ public class MorphoLibJDetectorFactory< T extends RealType< T > & NativeType< T
 
 	public static final ImageIcon ICON = new ImageIcon( GuiUtils.getResource( "images/TrackMateMorphoLibJ-logo-64px.png", MorphoLibJDetectorFactory.class ) );
 
+	private String errorMessage;
+
+	/** Markers handed over from each frame to the next. */
+	private final TemporalSeeds temporalSeeds = new TemporalSeeds();
+
 	@Override
 	public SpotDetector< T > getDetector( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final int frame )
 	{
-		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
-		final ImgPlus< T > input = TMUtils.hyperSlice( img, channel, frame );
+		final Map< Integer, Double > channels = parseChannels( ( String ) settings.getOrDefault( KEY_CHANNELS, DEFAULT_CHANNELS ) );
+		if ( channels.isEmpty() )
+			return getChannelDetector( img, settings, interval, frame, ( Integer ) settings.get( KEY_TARGET_CHANNEL ) );
+
+		final List< MorphoLibJDetector< T > > detectors = new ArrayList<>( channels.size() );
+		final int[] channelArray = new int[ channels.size() ];
+		int i = 0;
+		for ( final Map.Entry< Integer, Double > entry : channels.entrySet() )
+		{
+			final Map< String, Object > channelSettings = new HashMap<>( settings );
+			channelSettings.put( KEY_TOLERANCE, entry.getValue() );
+			detectors.add( getChannelDetector( img, channelSettings, interval, frame, entry.getKey() ) );
+			channelArray[ i++ ] = entry.getKey();
+		}
+		return new MultiChannelDetector<>( detectors, channelArray );
+	}
+
+	/**
+	 * Creates a detector for one channel and one frame of the specified
+	 * image.
+	 *
+	 * @param img
+	 *            the image, possibly multi-channel and multi time-points.
+	 * @param settings
+	 *            the detector settings.
+	 * @param interval
+	 *            the interval in which to detect objects.
+	 * @param frame
+	 *            the time-point to segment.
+	 * @param channel
+	 *            the channel to segment, 1-based.
+	 * @return a new detector.
+	 */
+	protected MorphoLibJDetector< T > getChannelDetector( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final int frame, final int channel )
+	{
+		final ImgPlus< T > input = TMUtils.hyperSlice( img, channel - 1, frame );
+		final MorphoLibJDetector< T > detector = createDetector( input, settings, interval );
+		// The hyperslice hides the cells of the full image.
+		final int blockSize = ( Integer ) settings.getOrDefault( KEY_BLOCK_SIZE, DEFAULT_BLOCK_SIZE );
+		if ( blockSize > 0 )
+			detector.setBlockSize( blockSize( img, blockSize ) );
+		if ( ( boolean ) settings.getOrDefault( KEY_TEMPORAL_SEEDING, DEFAULT_TEMPORAL_SEEDING ) )
+		{
+			final int timeAxis = img.dimensionIndex( Axes.TIME );
+			temporalSeeds.register( channel, frame, timeAxis < 0 ? 1 : ( int ) img.dimension( timeAxis ) );
+			detector.setTemporalSeeds( temporalSeeds, channel, frame, ( Integer ) settings.getOrDefault( KEY_SEED_EROSION, DEFAULT_SEED_EROSION ) );
+		}
+		return detector;
+	}
 
+	/**
+	 * Creates a detector for the specified single-channel, single time-point
+	 * image, configured with the specified settings.
+	 *
+	 * @param input
+	 *            the image to segment.
+	 * @param settings
+	 *            the detector settings.
+	 * @param interval
+	 *            the interval in which to detect objects.
+	 * @return a new detector.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > MorphoLibJDetector< T > createDetector(
+			final ImgPlus< T > input,
+			final Map< String, Object > settings,
+			final Interval interval )
+	{
 		final double tolerance = ( double ) settings.get( KEY_TOLERANCE );
 		final int conn = ( Integer ) settings.get( KEY_CONNECTIVITY );
 		final boolean simplify = ( boolean ) settings.get( KEY_SIMPLIFY_CONTOURS );
+		final int margin = ( Integer ) settings.getOrDefault( KEY_MARGIN, DEFAULT_MARGIN );
+		final boolean tiled = ( boolean ) settings.getOrDefault( KEY_TILED, DEFAULT_TILED );
+		final WatershedBackend backend = WatershedBackend.valueFor( ( String ) settings.getOrDefault( KEY_BACKEND, DEFAULT_BACKEND ) );
 		final MorphoLibJDetector< T > detector = new MorphoLibJDetector<>(
 				input,
 				interval,
 				tolerance,
 				Connectivity.valueFor( conn ),
-				simplify );
+				simplify,
+				margin,
+				tiled,
+				backend );
+
+		detector.setObjectFilter(
+				( Integer ) settings.getOrDefault( KEY_MIN_SIZE, DEFAULT_MIN_SIZE ),
+				( Integer ) settings.getOrDefault( KEY_MAX_SIZE, DEFAULT_MAX_SIZE ),
+				( Double ) settings.getOrDefault( KEY_MIN_MEAN_INTENSITY, DEFAULT_MIN_MEAN_INTENSITY ) );
+		detector.setPerSlice(
+				( boolean ) settings.getOrDefault( KEY_PER_SLICE, DEFAULT_PER_SLICE ),
+				( boolean ) settings.getOrDefault( KEY_LINK_SLICES, DEFAULT_LINK_SLICES ) );
+		detector.setPreprocessing(
+				Preprocessing.valueFor( ( String ) settings.getOrDefault( KEY_PREPROCESSING, DEFAULT_PREPROCESSING ) ),
+				( Double ) settings.getOrDefault( KEY_SMOOTHING_SIGMA, DEFAULT_SMOOTHING_SIGMA ) );
+		detector.setComputeMeshes( ( boolean ) settings.getOrDefault( KEY_COMPUTE_MESHES, DEFAULT_COMPUTE_MESHES ) );
+		final int blockSize = ( Integer ) settings.getOrDefault( KEY_BLOCK_SIZE, DEFAULT_BLOCK_SIZE );
+		if ( blockSize > 0 )
+			detector.setBlockSize( blockSize( input, blockSize ) );
+
+		final String tempDir = ( String ) settings.getOrDefault( KEY_TEMP_DIR, DEFAULT_TEMP_DIR );
+		if ( tempDir != null && !tempDir.trim().isEmpty() )
+			detector.setTempDirectory( Paths.get( tempDir.trim() ) );
+
+		final String cacheDir = ( String ) settings.getOrDefault( KEY_LABEL_CACHE_DIR, DEFAULT_LABEL_CACHE_DIR );
+		if ( cacheDir != null && !cacheDir.trim().isEmpty() )
+		{
+			final int cacheSize = ( Integer ) settings.getOrDefault( KEY_LABEL_CACHE_SIZE, DEFAULT_LABEL_CACHE_SIZE );
+			try
+			{
+				detector.setLabelCache( LabelCache.open( Paths.get( cacheDir.trim() ), cacheSize * 1024L * 1024L ) );
+			}
+			catch ( final IOException | InvalidPathException e )
+			{
+				detector.setLabelCacheError( "Cannot open the label cache folder " + cacheDir.trim() + ": " + e.getMessage() );
+			}
+		}
 		return detector;
 	}
 
+	/**
+	 * Parses the value of the {@link #KEY_CHANNELS} parameter. Malformed
+	 * pairs are ignored.
+	 *
+	 * @param str
+	 *            the string to parse.
+	 * @return a new map from 1-based channel to tolerance, in the order of
+	 *         the string.
+	 */
+	public static Map< Integer, Double > parseChannels( final String str )
+	{
+		final Map< Integer, Double > channels = new LinkedHashMap<>();
+		if ( str == null )
+			return channels;
+		for ( final String pair : str.split( "," ) )
+		{
+			final String[] tokens = pair.split( ":" );
+			if ( tokens.length != 2 )
+				continue;
+			try
+			{
+				final int channel = Integer.parseInt( tokens[ 0 ].trim() );
+				final double tolerance = Double.parseDouble( tokens[ 1 ].trim() );
+				if ( channel > 0 )
+					channels.put( channel, tolerance );
+			}
+			catch ( final NumberFormatException e )
+			{
+				// Ignore this pair.
+			}
+		}
+		return channels;
+	}
+
+	/**
+	 * Returns the size of blocks along the X, Y and Z axes of the specified
+	 * image. If the image is a cell image, the size is rounded up to a
+	 * multiple of the cell size along each axis, so that blocks are aligned
+	 * on cells.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param size
+	 *            the requested block size, in pixels.
+	 * @return the block size along each spatial axis present in the image.
+	 */
+	static long[] blockSize( final ImgPlus< ? > img, final int size )
+	{
+		final CellGrid grid = ( img.getImg() instanceof AbstractCellImg )
+				? ( ( AbstractCellImg< ?, ?, ?, ? > ) img.getImg() ).getCellGrid()
+				: null;
+		final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		final long[] blockSize = new long[ axes.length ];
+		int n = 0;
+		for ( final AxisType axis : axes )
+		{
+			final int d = img.dimensionIndex( axis );
+			if ( d < 0 )
+				continue;
+			final long cell = ( grid == null ) ? 1 : grid.cellDimension( d );
+			blockSize[ n++ ] = ( ( size + cell - 1 ) / cell ) * cell;
+		}
+		return Arrays.copyOf( blockSize, n );
+	}
+
+	/**
+	 * Segments one frame of the specified image at each of the specified
+	 * tolerances, sharing the minima computation between them. See
+	 * {@link ToleranceSweep}. The size and intensity filters are applied to
+	 * the results.
+	 *
+	 * @param img
+	 *            the image, possibly multi-channel and multi time-points.
+	 * @param settings
+	 *            the detector settings. The tolerance they contain is
+	 *            ignored.
+	 * @param interval
+	 *            the interval in which to detect objects.
+	 * @param frame
+	 *            the time-point to segment.
+	 * @param tolerances
+	 *            the tolerances to test.
+	 * @param keepSpots
+	 *            whether to also create the spots for each tolerance.
+	 * @return the results, one per tolerance, in the same order.
+	 * @throws IllegalArgumentException
+	 *             if the settings use the per-slice or block-wise mode, or the
+	 *             off-heap or hierarchical backend.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< ToleranceSweep.Result > sweepTolerance(
+			final ImgPlus< T > img,
+			final Map< String, Object > settings,
+			final Interval interval,
+			final int frame,
+			final double[] tolerances,
+			final boolean keepSpots )
+	{
+		return ToleranceSweep.run( img, settings, interval, frame, tolerances, keepSpots );
+	}
+
+	@Override
+	public boolean checkSettings( final Map< String, Object > settings )
+	{
+		final StringBuilder errorHolder = new StringBuilder();
+		boolean ok = true;
+		ok = ok & IOUtils.checkParameter( settings, KEY_TARGET_CHANNEL, Integer.class, errorHolder );
+		ok = ok & IOUtils.checkParameter( settings, KEY_TOLERANCE, Double.class, errorHolder );
+		ok = ok & IOUtils.checkParameter( settings, KEY_CONNECTIVITY, Integer.class, errorHolder );
+		ok = ok & IOUtils.checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		// Other parameters are optional, and default when missing.
+		for ( final Map.Entry< String, Object > entry : getDefaultSettings().entrySet() )
+			if ( settings.containsKey( entry.getKey() ) )
+				ok = ok & IOUtils.checkParameter( settings, entry.getKey(), entry.getValue().getClass(), errorHolder );
+		if ( !ok )
+		{
+			errorMessage = errorHolder.toString();
+			return false;
+		}
+
+		final boolean tiled = ( boolean ) settings.getOrDefault( KEY_TILED, DEFAULT_TILED );
+		final int margin = ( Integer ) settings.getOrDefault( KEY_MARGIN, DEFAULT_MARGIN );
+		if ( tiled && margin < 1 )
+		{
+			errorMessage = "The tiled mode requires a margin of at least 1 pixel, used as overlap between tiles.";
+			return false;
+		}
+
+		final Preprocessing preprocessing = Preprocessing.valueFor( ( String ) settings.getOrDefault( KEY_PREPROCESSING, DEFAULT_PREPROCESSING ) );
+		final int blockSize = ( Integer ) settings.getOrDefault( KEY_BLOCK_SIZE, DEFAULT_BLOCK_SIZE );
+		final WatershedBackend backend = WatershedBackend.valueFor( ( String ) settings.getOrDefault( KEY_BACKEND, DEFAULT_BACKEND ) );
+		if ( preprocessing != Preprocessing.NONE && ( blockSize > 0 || backend == WatershedBackend.OFF_HEAP ) )
+		{
+			errorMessage = MorphoLibJDetector.PREPROCESSING_OFF_HEAP_ERROR;
+			return false;
+		}
+
+		final String tempDir = ( ( String ) settings.getOrDefault( KEY_TEMP_DIR, DEFAULT_TEMP_DIR ) ).trim();
+		if ( !tempDir.isEmpty() )
+		{
+			try
+			{
+				if ( !Files.isDirectory( Paths.get( tempDir ) ) )
+				{
+					errorMessage = "The temporary folder does not exist: " + tempDir;
+					return false;
+				}
+			}
+			catch ( final InvalidPathException e )
+			{
+				errorMessage = "Invalid temporary folder: " + tempDir;
+				return false;
+			}
+		}
+
+		final String cacheDir = ( ( String ) settings.getOrDefault( KEY_LABEL_CACHE_DIR, DEFAULT_LABEL_CACHE_DIR ) ).trim();
+		if ( !cacheDir.isEmpty() )
+		{
+			try
+			{
+				// The folder is created if needed, under a writable parent.
+				Path existing = Paths.get( cacheDir ).toAbsolutePath();
+				while ( existing != null && !Files.exists( existing ) )
+					existing = existing.getParent();
+				if ( existing == null || !Files.isDirectory( existing ) || !Files.isWritable( existing ) )
+				{
+					errorMessage = "The label cache folder cannot be created or written to: " + cacheDir;
+					return false;
+				}
+			}
+			catch ( final InvalidPathException e )
+			{
+				errorMessage = "Invalid label cache folder: " + cacheDir;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
 	@Override
 	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
@@ -123,6 +619,24 @@ public class MorphoLibJDetectorFactory< T extends RealType< T > & NativeType< T
 		settings.put( KEY_TOLERANCE, DEFAULT_TOLERANCE );
 		settings.put( KEY_CONNECTIVITY, DEFAULT_CONNECTIVITY );
 		settings.put( KEY_SIMPLIFY_CONTOURS, Boolean.FALSE );
+		settings.put( KEY_MARGIN, DEFAULT_MARGIN );
+		settings.put( KEY_TILED, DEFAULT_TILED );
+		settings.put( KEY_BACKEND, DEFAULT_BACKEND );
+		settings.put( KEY_BLOCK_SIZE, DEFAULT_BLOCK_SIZE );
+		settings.put( KEY_TEMP_DIR, DEFAULT_TEMP_DIR );
+		settings.put( KEY_COMPUTE_MESHES, DEFAULT_COMPUTE_MESHES );
+		settings.put( KEY_MIN_SIZE, DEFAULT_MIN_SIZE );
+		settings.put( KEY_CHANNELS, DEFAULT_CHANNELS );
+		settings.put( KEY_PER_SLICE, DEFAULT_PER_SLICE );
+		settings.put( KEY_LINK_SLICES, DEFAULT_LINK_SLICES );
+		settings.put( KEY_PREPROCESSING, DEFAULT_PREPROCESSING );
+		settings.put( KEY_SMOOTHING_SIGMA, DEFAULT_SMOOTHING_SIGMA );
+		settings.put( KEY_TEMPORAL_SEEDING, DEFAULT_TEMPORAL_SEEDING );
+		settings.put( KEY_SEED_EROSION, DEFAULT_SEED_EROSION );
+		settings.put( KEY_MAX_SIZE, DEFAULT_MAX_SIZE );
+		settings.put( KEY_MIN_MEAN_INTENSITY, DEFAULT_MIN_MEAN_INTENSITY );
+		settings.put( KEY_LABEL_CACHE_DIR, DEFAULT_LABEL_CACHE_DIR );
+		settings.put( KEY_LABEL_CACHE_SIZE, DEFAULT_LABEL_CACHE_SIZE );
 		return settings;
 	}
 
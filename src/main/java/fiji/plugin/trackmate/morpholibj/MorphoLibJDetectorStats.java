@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+/**
+ * Processing statistics of one {@link MorphoLibJDetector} run: time spent in
+ * each stage, memory allocated for intermediate buffers, and number of
+ * markers, labels and spots.
+ * <p>
+ * Stage times are summed over all the threads that contributed to a stage,
+ * so in the tiled mode they can exceed the wall-clock time.
+ */
+public class MorphoLibJDetectorStats
+{
+
+	/**
+	 * The stages of the detection pipeline.
+	 */
+	public enum Stage
+	{
+		COPY( "copy" ),
+		HASHING( "hashing" ),
+		CACHE( "cache" ),
+		PREPROCESSING( "preprocessing" ),
+		MINIMA( "minima" ),
+		FLOODING( "flooding" ),
+		HIERARCHY( "hierarchy" ),
+		STITCHING( "stitching" ),
+		SPOTS( "spots" );
+
+		private final String name;
+
+		Stage( final String name )
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	private final long[] nanos = new long[ Stage.values().length ];
+
+	private long totalNanos;
+
+	private long bytesAllocated;
+
+	private long bytesSaved;
+
+	private int nMarkers;
+
+	private int nLabels;
+
+	private int nSpots;
+
+	public synchronized void addTime( final Stage stage, final long duration )
+	{
+		nanos[ stage.ordinal() ] += duration;
+	}
+
+	public synchronized void addBytesAllocated( final long bytes )
+	{
+		bytesAllocated += bytes;
+	}
+
+	public synchronized void addBytesSaved( final long bytes )
+	{
+		bytesSaved += bytes;
+	}
+
+	public synchronized void addMarkers( final int n )
+	{
+		nMarkers += n;
+	}
+
+	synchronized void setLabels( final int n )
+	{
+		nLabels = n;
+	}
+
+	synchronized void setSpots( final int n )
+	{
+		nSpots = n;
+	}
+
+	synchronized void setTotalTime( final long duration )
+	{
+		totalNanos = duration;
+	}
+
+	/**
+	 * Returns the time spent in the specified stage, in nanoseconds.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @return the time in ns.
+	 */
+	public synchronized long getTime( final Stage stage )
+	{
+		return nanos[ stage.ordinal() ];
+	}
+
+	/**
+	 * Returns the wall-clock time of the whole detection, in nanoseconds.
+	 *
+	 * @return the time in ns.
+	 */
+	public synchronized long getTotalTime()
+	{
+		return totalNanos;
+	}
+
+	/**
+	 * Returns the number of bytes allocated for intermediate images.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long getBytesAllocated()
+	{
+		return bytesAllocated;
+	}
+
+	/**
+	 * Returns the number of bytes that did not have to be allocated, because
+	 * the input image could be used without being copied.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long getBytesSaved()
+	{
+		return bytesSaved;
+	}
+
+	/**
+	 * Returns the number of markers (extended minima) found.
+	 *
+	 * @return the number of markers.
+	 */
+	public synchronized int getMarkers()
+	{
+		return nMarkers;
+	}
+
+	/**
+	 * Returns the number of labels in the watershed result.
+	 *
+	 * @return the number of labels.
+	 */
+	public synchronized int getLabels()
+	{
+		return nLabels;
+	}
+
+	/**
+	 * Returns the number of spots created.
+	 *
+	 * @return the number of spots.
+	 */
+	public synchronized int getSpots()
+	{
+		return nSpots;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( "Total: %.1f ms", totalNanos / 1e6 ) );
+		for ( final Stage stage : Stage.values() )
+			if ( nanos[ stage.ordinal() ] > 0 )
+				str.append( String.format( ", %s: %.1f ms", stage, nanos[ stage.ordinal() ] / 1e6 ) );
+		str.append( String.format( ", allocated: %.1f MB", bytesAllocated / 1e6 ) );
+		str.append( String.format( ", saved: %.1f MB", bytesSaved / 1e6 ) );
+		str.append( String.format( ", markers: %d, labels: %d, spots: %d.", nMarkers, nLabels, nSpots ) );
+		return str.toString();
+	}
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+
+/**
+ * Feed of the processing statistics of all the {@link MorphoLibJDetector}s.
+ * <p>
+ * Each detector publishes its {@link MorphoLibJDetectorStats} here after a
+ * successful run. Statistics are only published if at least one listener is
+ * registered, so the feed costs nothing when unused. The {@link Aggregator}
+ * listener sums statistics across frames, for instance over a batch run.
+ */
+public class MorphoLibJMetrics
+{
+
+	private static final List< Consumer< MorphoLibJDetectorStats > > listeners = new CopyOnWriteArrayList<>();
+
+	private MorphoLibJMetrics()
+	{}
+
+	public static void addListener( final Consumer< MorphoLibJDetectorStats > listener )
+	{
+		listeners.add( listener );
+	}
+
+	public static boolean removeListener( final Consumer< MorphoLibJDetectorStats > listener )
+	{
+		return listeners.remove( listener );
+	}
+
+	static boolean isEnabled()
+	{
+		return !listeners.isEmpty();
+	}
+
+	static void publish( final MorphoLibJDetectorStats stats )
+	{
+		for ( final Consumer< MorphoLibJDetectorStats > listener : listeners )
+			listener.accept( stats );
+	}
+
+	/**
+	 * A listener that sums statistics across detector runs.
+	 */
+	public static class Aggregator implements Consumer< MorphoLibJDetectorStats >
+	{
+
+		private final long[] nanos = new long[ Stage.values().length ];
+
+		private long totalNanos;
+
+		private long maxNanos;
+
+		private long bytesAllocated;
+
+		private long bytesSaved;
+
+		private long nMarkers;
+
+		private long nLabels;
+
+		private long nSpots;
+
+		private int nRuns;
+
+		@Override
+		public synchronized void accept( final MorphoLibJDetectorStats stats )
+		{
+			for ( final Stage stage : Stage.values() )
+				nanos[ stage.ordinal() ] += stats.getTime( stage );
+			totalNanos += stats.getTotalTime();
+			maxNanos = Math.max( maxNanos, stats.getTotalTime() );
+			bytesAllocated += stats.getBytesAllocated();
+			bytesSaved += stats.getBytesSaved();
+			nMarkers += stats.getMarkers();
+			nLabels += stats.getLabels();
+			nSpots += stats.getSpots();
+			nRuns++;
+		}
+
+		public synchronized int getRuns()
+		{
+			return nRuns;
+		}
+
+		public synchronized long getTime( final Stage stage )
+		{
+			return nanos[ stage.ordinal() ];
+		}
+
+		public synchronized long getTotalTime()
+		{
+			return totalNanos;
+		}
+
+		public synchronized long getMaxTime()
+		{
+			return maxNanos;
+		}
+
+		public synchronized long getBytesAllocated()
+		{
+			return bytesAllocated;
+		}
+
+		public synchronized long getBytesSaved()
+		{
+			return bytesSaved;
+		}
+
+		public synchronized long getMarkers()
+		{
+			return nMarkers;
+		}
+
+		public synchronized long getLabels()
+		{
+			return nLabels;
+		}
+
+		public synchronized long getSpots()
+		{
+			return nSpots;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			final StringBuilder str = new StringBuilder();
+			str.append( String.format( "%d runs, total: %.1f s, slowest: %.1f s", nRuns, totalNanos / 1e9, maxNanos / 1e9 ) );
+			for ( final Stage stage : Stage.values() )
+				if ( nanos[ stage.ordinal() ] > 0 )
+					str.append( String.format( ", %s: %.1f s", stage, nanos[ stage.ordinal() ] / 1e9 ) );
+			str.append( String.format( ", allocated: %.1f MB", bytesAllocated / 1e6 ) );
+			str.append( String.format( ", saved: %.1f MB", bytesSaved / 1e6 ) );
+			str.append( String.format( ", markers: %d, labels: %d, spots: %d.", nMarkers, nLabels, nSpots ) );
+			return str.toString();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs one {@link MorphoLibJDetector} per channel of the same frame,
+ * concurrently, and merges their spots. Each spot is tagged with the
+ * channel it was detected in, in the {@link #CHANNEL_FEATURE} feature.
+ * <p>
+ * The threads allowed are split between the channels, so the processing
+ * time is close to the one of the slowest channel.
+ */
+public class MultiChannelDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded
+{
+
+	private final static String BASE_ERROR_MESSAGE = "MultiChannelDetector: ";
+
+	/**
+	 * The spot feature that stores the channel, 1-based, in which the spot
+	 * was detected.
+	 */
+	public static final String CHANNEL_FEATURE = "MORPHOLIBJ_CHANNEL";
+
+	private final List< MorphoLibJDetector< T > > detectors;
+
+	private final int[] channels;
+
+	private List< Spot > spots = new ArrayList<>();
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private int numThreads;
+
+	/**
+	 * Creates a multi-channel detector.
+	 *
+	 * @param detectors
+	 *            the detectors, one per channel.
+	 * @param channels
+	 *            the channel of each detector, 1-based.
+	 */
+	public MultiChannelDetector( final List< MorphoLibJDetector< T > > detectors, final int[] channels )
+	{
+		this.detectors = detectors;
+		this.channels = channels;
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( detectors.isEmpty() || detectors.size() != channels.length )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "No channel to segment.";
+			return false;
+		}
+		for ( final MorphoLibJDetector< T > detector : detectors )
+		{
+			if ( !detector.checkInput() )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + detector.getErrorMessage();
+				// The other channels will not be segmented either.
+				for ( final MorphoLibJDetector< T > other : detectors )
+					other.releaseTemporalSeeds();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		final int nChannels = detectors.size();
+		final int threadsPerChannel = Math.max( 1, numThreads / nChannels );
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, nChannels ) ), ScratchBufferPool.threadFactory() );
+		try
+		{
+			final List< Future< Boolean > > futures = new ArrayList<>( nChannels );
+			for ( final MorphoLibJDetector< T > detector : detectors )
+			{
+				detector.setNumThreads( threadsPerChannel );
+				futures.add( executor.submit( detector::process ) );
+			}
+
+			final List< Spot > merged = new ArrayList<>();
+			for ( int i = 0; i < nChannels; i++ )
+			{
+				final MorphoLibJDetector< T > detector = detectors.get( i );
+				if ( !futures.get( i ).get() )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Channel " + channels[ i ] + ": " + detector.getErrorMessage();
+					return false;
+				}
+				final Double channel = Double.valueOf( channels[ i ] );
+				for ( final Spot spot : detector.getResult() )
+				{
+					spot.putFeature( CHANNEL_FEATURE, channel );
+					merged.add( spot );
+				}
+			}
+			spots = merged;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem segmenting channels: " + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/**
+	 * Returns the detectors, one per channel, for instance to read their
+	 * statistics after {@link #process()}.
+	 *
+	 * @return the detectors.
+	 */
+	public List< MorphoLibJDetector< T > > getDetectors()
+	{
+		return detectors;
+	}
+
+	@Override
+	public List< Spot > getResult()
+	{
+		return spots;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+}
@@ -0,0 +1,446 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Marker-controlled watershed whose input copy and intermediate volumes are
+ * stored off-heap, in memory-mapped files (see {@link MappedVolume}), so
+ * that frames larger than the heap can be segmented.
+ * <p>
+ * This is the pipeline of {@link ImgLib2Watershed}, with three volumes
+ * reused between stages: the input copy, then the queue links; the
+ * reconstruction, then the pixel levels; and the labels. All the passes
+ * over the whole volume are done in raster order, so that the operating
+ * system can page the volumes sequentially. Only the hierarchical queue
+ * heads, the flood-fill fronts and the bounded queue of the reconstruction
+ * are on the heap. The volumes are created in the directory passed to
+ * {@link #segment(RandomAccessibleInterval, double, Connectivity, Path, MorphoLibJDetectorStats)},
+ * which should be on a disk rather than on a RAM-backed file system.
+ * <p>
+ * Pixel levels are computed without sorting: images with integer values in
+ * a 16-bit range are flooded exactly as with {@link ImgLib2Watershed}.
+ * Other images are quantized in 65536 levels for the flooding, and pixels
+ * of the same level are processed in FIFO order.
+ */
+public class OffHeapWatershed
+{
+
+	private static final int N_QUANTIZED_LEVELS = 1 << 16;
+
+	/** Maximal number of pixels in the queue of the reconstruction (64 MB). */
+	static final int MAX_QUEUE_SIZE = 1 << 24;
+
+	private OffHeapWatershed()
+	{}
+
+	/**
+	 * Segments the specified 2D or 3D image.
+	 *
+	 * @param source
+	 *            the image to segment.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param directory
+	 *            the directory in which to create the memory-mapped files, or
+	 *            <code>null</code> to use the default temporary directory.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return the label volume, of the size of the source, in raster order.
+	 *         The background, if any, has label 0. It must be closed when
+	 *         not used anymore.
+	 * @throws IOException
+	 *             if the memory-mapped files cannot be created.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > MappedVolume segment(
+			final RandomAccessibleInterval< T > source,
+			final double tolerance,
+			final Connectivity connectivity,
+			final Path directory,
+			final MorphoLibJDetectorStats stats ) throws IOException
+	{
+		final long t0 = System.nanoTime();
+		final VoxelGrid grid = new VoxelGrid( source, connectivity );
+		try (final MappedVolume values = new MappedVolume( grid.size, directory );
+				final MappedVolume rec = new MappedVolume( grid.size, directory ))
+		{
+			final MappedVolume labels = new MappedVolume( grid.size, directory );
+			try
+			{
+				final Cursor< T > cursor = Views.flatIterable( source ).cursor();
+				int i = 0;
+				while ( cursor.hasNext() )
+					values.setFloat( i++, cursor.next().getRealFloat() );
+				final double maxValue = Views.iterable( source ).firstElement().getMaxValue();
+				final long t1 = System.nanoTime();
+				stats.addTime( Stage.COPY, t1 - t0 );
+
+				// Labeled extended minima.
+				for ( int p = 0; p < grid.size; p++ )
+					rec.setFloat( p, ( float ) Math.min( values.getFloat( p ) + tolerance, maxValue ) );
+				reconstructByErosion( rec, values, grid );
+				stats.addMarkers( labelRegionalMinima( rec, labels, grid ) );
+				final long t2 = System.nanoTime();
+				stats.addTime( Stage.MINIMA, t2 - t1 );
+
+				// Flooding. The reconstruction is not needed anymore.
+				final int nLevels = toLevels( values, rec );
+				flood( rec, nLevels, labels, values, grid );
+				stats.addTime( Stage.FLOODING, System.nanoTime() - t2 );
+				return labels;
+			}
+			catch ( final RuntimeException e )
+			{
+				labels.close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Morphological reconstruction by erosion of the marker over the mask,
+	 * with the hybrid algorithm of Vincent (1993). See
+	 * {@link FusedMinima#reconstructByErosion(float[], float[], VoxelGrid)}.
+	 * <p>
+	 * The propagation queue is on the heap, and can hold a large fraction of
+	 * the pixels. It is bounded to {@link #MAX_QUEUE_SIZE} pixels: when it is
+	 * full, the raster scans are repeated on the partially reconstructed
+	 * marker until the queue suffices, which gives the same result.
+	 */
+	static void reconstructByErosion( final MappedVolume marker, final MappedVolume mask, final VoxelGrid grid )
+	{
+		final IntFifo queue = new IntFifo( 1024, MAX_QUEUE_SIZE );
+		while ( !reconstructByErosion( marker, mask, grid, queue ) )
+			queue.clear();
+	}
+
+	/**
+	 * One forward and backward raster scan, then the propagation of the
+	 * queue.
+	 *
+	 * @return <code>false</code> if the queue overflowed, and the marker is
+	 *         not fully reconstructed yet.
+	 */
+	private static boolean reconstructByErosion( final MappedVolume marker, final MappedVolume mask, final VoxelGrid grid, final IntFifo queue )
+	{
+		final int nk = grid.offsets.length;
+		boolean complete = true;
+
+		// Forward raster scan.
+		int i = 0;
+		for ( int z = 0; z < grid.depth; z++ )
+		{
+			for ( int y = 0; y < grid.height; y++ )
+			{
+				for ( int x = 0; x < grid.width; x++ )
+				{
+					float v = marker.getFloat( i );
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.offsets[ k ] >= 0 || !grid.isInside( x, y, z, k ) )
+							continue;
+						v = Math.min( v, marker.getFloat( i + grid.offsets[ k ] ) );
+					}
+					marker.setFloat( i, Math.max( v, mask.getFloat( i ) ) );
+					i++;
+				}
+			}
+		}
+
+		// Backward raster scan.
+		i = grid.size - 1;
+		for ( int z = grid.depth - 1; z >= 0; z-- )
+		{
+			for ( int y = grid.height - 1; y >= 0; y-- )
+			{
+				for ( int x = grid.width - 1; x >= 0; x-- )
+				{
+					float v = marker.getFloat( i );
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.offsets[ k ] <= 0 || !grid.isInside( x, y, z, k ) )
+							continue;
+						v = Math.min( v, marker.getFloat( i + grid.offsets[ k ] ) );
+					}
+					v = Math.max( v, mask.getFloat( i ) );
+					marker.setFloat( i, v );
+
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.offsets[ k ] <= 0 || !grid.isInside( x, y, z, k ) )
+							continue;
+						final int j = i + grid.offsets[ k ];
+						final float mj = marker.getFloat( j );
+						if ( mj > v && mj > mask.getFloat( j ) )
+						{
+							complete &= queue.offer( i );
+							break;
+						}
+					}
+					i--;
+				}
+			}
+		}
+
+		// Propagation.
+		while ( !queue.isEmpty() )
+		{
+			final int p = queue.poll();
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			final float v = marker.getFloat( p );
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				final float mq = marker.getFloat( q );
+				final float wq = mask.getFloat( q );
+				if ( mq > v && mq != wq )
+				{
+					marker.setFloat( q, Math.max( v, wq ) );
+					complete &= queue.offer( q );
+				}
+			}
+		}
+		return complete;
+	}
+
+	/**
+	 * Labels the regional minima of the specified image, in raster order of
+	 * their first pixel. See
+	 * {@link FusedMinima#labelRegionalMinima(float[], int[], VoxelGrid)}.
+	 * Each plateau is flooded twice, once to find whether it is a minimum
+	 * and once to label it, so that only its front is kept on the heap.
+	 *
+	 * @return the number of regional minima.
+	 */
+	static int labelRegionalMinima( final MappedVolume values, final MappedVolume labels, final VoxelGrid grid )
+	{
+		final int nk = grid.offsets.length;
+		final int visited = -1;
+		final IntFifo queue = new IntFifo();
+		int nLabels = 0;
+		for ( int i = 0; i < grid.size; i++ )
+		{
+			if ( labels.getValue( i ) != 0 )
+				continue;
+
+			// Flood the plateau of pixel i.
+			final float v = values.getFloat( i );
+			boolean isMinimum = true;
+			labels.setValue( i, visited );
+			queue.add( i );
+			while ( !queue.isEmpty() )
+			{
+				final int p = queue.poll();
+				final int x = grid.x( p );
+				final int y = grid.y( p );
+				final int z = grid.z( p );
+				for ( int k = 0; k < nk; k++ )
+				{
+					if ( !grid.isInside( x, y, z, k ) )
+						continue;
+					final int q = p + grid.offsets[ k ];
+					final float vq = values.getFloat( q );
+					if ( vq < v )
+					{
+						isMinimum = false;
+					}
+					else if ( vq == v && labels.getValue( q ) == 0 )
+					{
+						labels.setValue( q, visited );
+						queue.add( q );
+					}
+				}
+			}
+			if ( !isMinimum )
+				continue;
+
+			// Label it.
+			nLabels++;
+			labels.setValue( i, nLabels );
+			queue.add( i );
+			while ( !queue.isEmpty() )
+			{
+				final int p = queue.poll();
+				final int x = grid.x( p );
+				final int y = grid.y( p );
+				final int z = grid.z( p );
+				for ( int k = 0; k < nk; k++ )
+				{
+					if ( !grid.isInside( x, y, z, k ) )
+						continue;
+					final int q = p + grid.offsets[ k ];
+					if ( labels.getValue( q ) == visited && values.getFloat( q ) == v )
+					{
+						labels.setValue( q, nLabels );
+						queue.add( q );
+					}
+				}
+			}
+		}
+
+		for ( int i = 0; i < grid.size; i++ )
+			if ( labels.getValue( i ) == visited )
+				labels.setValue( i, 0 );
+		return nLabels;
+	}
+
+	/**
+	 * Maps pixel values to levels. For images with integer values in a
+	 * 16-bit range, the level is the value minus the minimum. Other images
+	 * are quantized in 65536 levels.
+	 *
+	 * @return the number of levels.
+	 */
+	static int toLevels( final MappedVolume values, final MappedVolume levels )
+	{
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		boolean integral = true;
+		for ( int i = 0; i < values.size; i++ )
+		{
+			final float v = values.getFloat( i );
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+			if ( integral && v != ( int ) v )
+				integral = false;
+		}
+		if ( values.size == 0 )
+			return 0;
+
+		if ( integral && max - min < N_QUANTIZED_LEVELS )
+		{
+			final int imin = ( int ) min;
+			for ( int i = 0; i < values.size; i++ )
+				levels.setValue( i, ( int ) values.getFloat( i ) - imin );
+			return ( int ) ( max - min ) + 1;
+		}
+
+		final double scale = ( max > min ) ? ( N_QUANTIZED_LEVELS - 1 ) / ( ( double ) max - min ) : 0.;
+		for ( int i = 0; i < values.size; i++ )
+			levels.setValue( i, ( int ) ( ( values.getFloat( i ) - min ) * scale ) );
+		return N_QUANTIZED_LEVELS;
+	}
+
+	/**
+	 * Floods the image from the labeled markers, without dams. See
+	 * {@link ImgLib2Watershed#flood(int[], int, int[], VoxelGrid, MorphoLibJDetectorStats)}.
+	 */
+	static void flood( final MappedVolume levels, final int nLevels, final MappedVolume labels, final MappedVolume next, final VoxelGrid grid )
+	{
+		final int nk = grid.offsets.length;
+		final int queued = -1;
+		final int[] head = new int[ nLevels ];
+		final int[] tail = new int[ nLevels ];
+		Arrays.fill( head, -1 );
+
+		// Initialize with the neighbors of markers.
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			if ( labels.getValue( p ) <= 0 )
+				continue;
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( labels.getValue( q ) != 0 )
+					continue;
+				labels.setValue( q, queued );
+				final int level = levels.getValue( q );
+				next.setValue( q, -1 );
+				if ( head[ level ] < 0 )
+					head[ level ] = q;
+				else
+					next.setValue( tail[ level ], q );
+				tail[ level ] = q;
+			}
+		}
+
+		int current = 0;
+		while ( current < nLevels )
+		{
+			final int p = head[ current ];
+			if ( p < 0 )
+			{
+				current++;
+				continue;
+			}
+			head[ current ] = next.getValue( p );
+
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+
+			// Take the label of the first labeled neighbor.
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int l = labels.getValue( p + grid.offsets[ k ] );
+				if ( l > 0 )
+				{
+					labels.setValue( p, l );
+					break;
+				}
+			}
+
+			// Queue unlabeled neighbors.
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( labels.getValue( q ) != 0 )
+					continue;
+				labels.setValue( q, queued );
+				// Lower pixels are flooded next, as in MorphoLibJ.
+				final int level = levels.getValue( q );
+				next.setValue( q, -1 );
+				if ( head[ level ] < 0 )
+					head[ level ] = q;
+				else
+					next.setValue( tail[ level ], q );
+				tail[ level ] = q;
+				current = Math.min( current, level );
+			}
+		}
+	}
+}
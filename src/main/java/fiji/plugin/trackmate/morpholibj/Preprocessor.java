@@ -0,0 +1,400 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Applies a {@link Preprocessing} filter to the region to segment, in the
+ * buffer it is copied to anyway.
+ * <p>
+ * The region is copied once into float planes borrowed from the
+ * {@link ScratchBufferPool}, and filtered in place, in parallel over planes.
+ * Apart from the planes, only a few plane-sized buffers per thread are
+ * allocated. The planes are returned as a {@link PlanarImg}, that the
+ * MorphoLibJ backend can use without copying (see {@link ZeroCopyStacks}).
+ */
+final class Preprocessor
+{
+
+	private Preprocessor()
+	{}
+
+	/**
+	 * Copies and filters the specified 2D or 3D image.
+	 *
+	 * @param source
+	 *            the image to filter.
+	 * @param preprocessing
+	 *            the filter to apply.
+	 * @param sigmas
+	 *            the standard deviation of the Gaussian smoothing along each
+	 *            dimension, in pixels.
+	 * @param connectivity
+	 *            the neighborhood used by the morphological gradient.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return a new image, whose planes are borrowed from the
+	 *         {@link ScratchBufferPool} of the current thread, and may be
+	 *         returned to it with {@link #release(PlanarImg)}.
+	 * @throws InterruptedException
+	 *             if the computation is interrupted.
+	 * @throws ExecutionException
+	 *             if the filtering of one plane fails.
+	 */
+	static < T extends RealType< T > > PlanarImg< FloatType, FloatArray > apply(
+			final RandomAccessibleInterval< T > source,
+			final Preprocessing preprocessing,
+			final double[] sigmas,
+			final Connectivity connectivity,
+			final int numThreads,
+			final MorphoLibJDetectorStats stats ) throws InterruptedException, ExecutionException
+	{
+		final long start = System.nanoTime();
+		final VoxelGrid grid = new VoxelGrid( source, connectivity );
+		final int planeSize = grid.width * grid.height;
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final float[][] planes = new float[ grid.depth ][];
+		for ( int z = 0; z < grid.depth; z++ )
+			planes[ z ] = pool.floats( planeSize, stats );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, grid.depth ) ), ScratchBufferPool.threadFactory() );
+		try
+		{
+			forEach( executor, grid.depth, z -> ImgLib2Watershed.read(
+					( source.numDimensions() > 2 ) ? Views.hyperSlice( source, 2, z ) : source, planes[ z ] ) );
+			final long t1 = System.nanoTime();
+			stats.addTime( Stage.COPY, t1 - start );
+
+			switch ( preprocessing )
+			{
+			case GAUSSIAN:
+				gaussian( planes, grid, sigmas, executor, stats );
+				break;
+			case GRADIENT:
+				gradient( planes, grid, Math.max( 1, Math.min( numThreads, grid.depth ) ), executor, stats );
+				break;
+			case INVERT:
+				invert( planes, executor );
+				break;
+			case NONE:
+			default:
+				break;
+			}
+			stats.addTime( Stage.PREPROCESSING, System.nanoTime() - t1 );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		final List< FloatArray > slices = new ArrayList<>( grid.depth );
+		for ( final float[] plane : planes )
+			slices.add( new FloatArray( plane ) );
+		final PlanarImg< FloatType, FloatArray > img = new PlanarImg<>( slices, Intervals.dimensionsAsLongArray( source ), new Fraction() );
+		img.setLinkedType( new FloatType( img ) );
+		return img;
+	}
+
+	/**
+	 * Returns the planes of the specified image, created by
+	 * {@link #apply(RandomAccessibleInterval, Preprocessing, double[], Connectivity, int, MorphoLibJDetectorStats)},
+	 * to the {@link ScratchBufferPool} of the current thread. The image must
+	 * not be used afterwards.
+	 */
+	static void release( final PlanarImg< FloatType, FloatArray > img )
+	{
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		for ( int z = 0; z < img.numSlices(); z++ )
+			pool.release( img.getPlane( z ).getCurrentStorageArray() );
+	}
+
+	/**
+	 * Returns the specified standard deviation, in physical units, in pixels
+	 * along each of the first n dimensions.
+	 */
+	static double[] toPixels( final double sigma, final double[] calibration, final int n )
+	{
+		final double[] sigmas = new double[ n ];
+		for ( int d = 0; d < n; d++ )
+			sigmas[ d ] = sigma / calibration[ d ];
+		return sigmas;
+	}
+
+	/**
+	 * Returns a string describing the specified preprocessing, used in the
+	 * keys of the caches.
+	 */
+	static String describe( final Preprocessing preprocessing, final double sigma )
+	{
+		if ( preprocessing == Preprocessing.GAUSSIAN )
+			return preprocessing.name() + ' ' + sigma;
+		return preprocessing.name();
+	}
+
+	/**
+	 * Maps each value v to min + max - v, so that dark ridges become bright.
+	 */
+	private static void invert( final float[][] planes, final ExecutorService executor ) throws InterruptedException, ExecutionException
+	{
+		final float[] mins = new float[ planes.length ];
+		final float[] maxs = new float[ planes.length ];
+		forEach( executor, planes.length, z -> {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for ( final float v : planes[ z ] )
+			{
+				min = Math.min( min, v );
+				max = Math.max( max, v );
+			}
+			mins[ z ] = min;
+			maxs[ z ] = max;
+		} );
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for ( int z = 0; z < planes.length; z++ )
+		{
+			min = Math.min( min, mins[ z ] );
+			max = Math.max( max, maxs[ z ] );
+		}
+		final float sum = min + max;
+		forEach( executor, planes.length, z -> {
+			final float[] plane = planes[ z ];
+			for ( int i = 0; i < plane.length; i++ )
+				plane[ i ] = sum - plane[ i ];
+		} );
+	}
+
+	/**
+	 * Separable Gaussian smoothing, with clamped borders. X and Y are
+	 * smoothed plane by plane, Z row by row.
+	 */
+	private static void gaussian( final float[][] planes, final VoxelGrid grid, final double[] sigmas, final ExecutorService executor, final MorphoLibJDetectorStats stats ) throws InterruptedException, ExecutionException
+	{
+		final int width = grid.width;
+		final int height = grid.height;
+		final int depth = grid.depth;
+		final float[] kx = kernel( sigmas[ 0 ] );
+		final float[] ky = kernel( sigmas[ 1 ] );
+		final float[] kz = ( depth > 1 && sigmas.length > 2 ) ? kernel( sigmas[ 2 ] ) : null;
+		stats.addBytesAllocated( 4L * Math.max( width, height ) * depth );
+
+		forEach( executor, depth, z -> {
+			final float[] plane = planes[ z ];
+			final float[] line = new float[ Math.max( width, height ) ];
+			if ( kx != null )
+				for ( int y = 0; y < height; y++ )
+					smooth( plane, y * width, 1, width, kx, line );
+			if ( ky != null )
+				for ( int x = 0; x < width; x++ )
+					smooth( plane, x, width, height, ky, line );
+		} );
+
+		if ( kz == null )
+			return;
+		stats.addBytesAllocated( 4L * depth * height );
+		forEach( executor, height, y -> {
+			final float[] line = new float[ depth ];
+			final float[] out = new float[ depth ];
+			for ( int x = 0; x < width; x++ )
+			{
+				final int i = y * width + x;
+				for ( int z = 0; z < depth; z++ )
+					line[ z ] = planes[ z ][ i ];
+				convolve( line, depth, kz, out );
+				for ( int z = 0; z < depth; z++ )
+					planes[ z ][ i ] = out[ z ];
+			}
+		} );
+	}
+
+	/**
+	 * Returns the half Gaussian kernel of the specified standard deviation,
+	 * normalized, or <code>null</code> if it is not positive.
+	 */
+	private static float[] kernel( final double sigma )
+	{
+		if ( !( sigma > 0. ) )
+			return null;
+		final int radius = Math.max( 1, ( int ) Math.ceil( 3. * sigma ) );
+		final double[] k = new double[ radius + 1 ];
+		double sum = 0.;
+		for ( int i = 0; i <= radius; i++ )
+		{
+			k[ i ] = Math.exp( -0.5 * i * i / ( sigma * sigma ) );
+			sum += ( i == 0 ) ? k[ i ] : 2. * k[ i ];
+		}
+		final float[] kernel = new float[ radius + 1 ];
+		for ( int i = 0; i <= radius; i++ )
+			kernel[ i ] = ( float ) ( k[ i ] / sum );
+		return kernel;
+	}
+
+	/**
+	 * Smooths the line of n values starting at the specified offset, with
+	 * the specified stride, in place.
+	 */
+	private static void smooth( final float[] data, final int offset, final int stride, final int n, final float[] kernel, final float[] line )
+	{
+		for ( int i = 0; i < n; i++ )
+			line[ i ] = data[ offset + i * stride ];
+		final int radius = kernel.length - 1;
+		for ( int i = 0; i < n; i++ )
+		{
+			float sum = kernel[ 0 ] * line[ i ];
+			for ( int k = 1; k <= radius; k++ )
+				sum += kernel[ k ] * ( line[ Math.max( 0, i - k ) ] + line[ Math.min( n - 1, i + k ) ] );
+			data[ offset + i * stride ] = sum;
+		}
+	}
+
+	/**
+	 * Convolves the first n values of the input with the specified symmetric
+	 * kernel, with clamped borders.
+	 */
+	private static void convolve( final float[] in, final int n, final float[] kernel, final float[] out )
+	{
+		final int radius = kernel.length - 1;
+		for ( int i = 0; i < n; i++ )
+		{
+			float sum = kernel[ 0 ] * in[ i ];
+			for ( int k = 1; k <= radius; k++ )
+				sum += kernel[ k ] * ( in[ Math.max( 0, i - k ) ] + in[ Math.min( n - 1, i + k ) ] );
+			out[ i ] = sum;
+		}
+	}
+
+	/**
+	 * Morphological gradient (dilation minus erosion) over the neighborhood
+	 * of the specified grid, including the center.
+	 * <p>
+	 * Planes are split in contiguous chunks, each processed by one thread in
+	 * increasing Z order. A thread keeps a copy of the original values of the
+	 * previous plane, and the planes bounding each chunk are copied before
+	 * any is modified, so that only a few planes per thread are allocated.
+	 */
+	private static void gradient( final float[][] planes, final VoxelGrid grid, final int nChunks, final ExecutorService executor, final MorphoLibJDetectorStats stats ) throws InterruptedException, ExecutionException
+	{
+		final int depth = grid.depth;
+		final int planeSize = grid.width * grid.height;
+		final int[] bounds = new int[ nChunks + 1 ];
+		for ( int c = 0; c <= nChunks; c++ )
+			bounds[ c ] = c * depth / nChunks;
+
+		// Original values of the planes just outside each chunk.
+		final float[][] before = new float[ nChunks ][];
+		final float[][] after = new float[ nChunks ][];
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			before[ c ] = ( bounds[ c ] > 0 ) ? planes[ bounds[ c ] - 1 ].clone() : null;
+			after[ c ] = ( bounds[ c + 1 ] < depth ) ? planes[ bounds[ c + 1 ] ].clone() : null;
+		}
+		stats.addBytesAllocated( 4L * planeSize * 4 * nChunks );
+
+		forEach( executor, nChunks, c -> {
+			float[] previous = before[ c ];
+			float[] original = new float[ planeSize ];
+			final float[] out = new float[ planeSize ];
+			for ( int z = bounds[ c ]; z < bounds[ c + 1 ]; z++ )
+			{
+				final float[] current = planes[ z ];
+				final float[] next = ( z + 1 < bounds[ c + 1 ] ) ? planes[ z + 1 ] : after[ c ];
+				gradient( previous, current, next, grid, out );
+
+				// Keep the original values for the next plane.
+				System.arraycopy( current, 0, original, 0, planeSize );
+				System.arraycopy( out, 0, current, 0, planeSize );
+				final float[] tmp = ( previous == before[ c ] ) ? new float[ planeSize ] : previous;
+				previous = original;
+				original = tmp;
+			}
+		} );
+	}
+
+	private static void gradient( final float[] previous, final float[] current, final float[] next, final VoxelGrid grid, final float[] out )
+	{
+		final int width = grid.width;
+		final int height = grid.height;
+		final int nk = grid.dx.length;
+		int i = 0;
+		for ( int y = 0; y < height; y++ )
+		{
+			for ( int x = 0; x < width; x++ )
+			{
+				float min = current[ i ];
+				float max = min;
+				for ( int k = 0; k < nk; k++ )
+				{
+					final int nx = x + grid.dx[ k ];
+					final int ny = y + grid.dy[ k ];
+					if ( nx < 0 || nx >= width || ny < 0 || ny >= height )
+						continue;
+					final float[] plane = ( grid.dz[ k ] < 0 ) ? previous : ( grid.dz[ k ] > 0 ) ? next : current;
+					if ( plane == null )
+						continue;
+					final float v = plane[ ny * width + nx ];
+					min = Math.min( min, v );
+					max = Math.max( max, v );
+				}
+				out[ i++ ] = max - min;
+			}
+		}
+	}
+
+	/**
+	 * Runs the specified task for each index in [0, n[, with the specified
+	 * executor, and waits for all of them.
+	 */
+	private static void forEach( final ExecutorService executor, final int n, final IntConsumer task ) throws InterruptedException, ExecutionException
+	{
+		final List< Callable< Void > > tasks = new ArrayList<>( n );
+		for ( int i = 0; i < n; i++ )
+		{
+			final int index = i;
+			tasks.add( () -> {
+				task.accept( index );
+				return null;
+			} );
+		}
+		for ( final Future< Void > future : executor.invokeAll( tasks ) )
+			future.get();
+	}
+}
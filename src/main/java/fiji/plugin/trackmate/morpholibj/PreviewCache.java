@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import ij.ImageStack;
+import inra.ijpb.watershed.Watershed;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Caches the intermediate results of the last preview of the configuration
+ * panel, so that changing the tolerance or the contour simplification does
+ * not run the whole segmentation again.
+ * <p>
+ * The cache holds the input of one frame and channel, for one detection
+ * interval, preprocessing, connectivity and backend, together with the pixel levels and the
+ * dynamics of its regional minima (see {@link MinimaDynamics}). A new
+ * tolerance then only requires a threshold on the dynamics and a new
+ * flooding. If the tolerance did not change either, the label image of the
+ * previous preview is returned as is, and only the spots are created again.
+ * <p>
+ * The cache assumes that the image is not modified while the panel is
+ * shown.
+ */
+final class PreviewCache
+{
+
+	private List< Object > key;
+
+	private ImageStack input;
+
+	private float[] values;
+
+	private VoxelGrid grid;
+
+	private int[] levels;
+
+	private int nLevels;
+
+	private double maxValue;
+
+	private MinimaDynamics dynamics;
+
+	private double tolerance = Double.NaN;
+
+	private int nMarkers;
+
+	private ArrayImg< IntType, IntArray > labels;
+
+	/**
+	 * Segments the specified crop of a frame, reusing the results of the
+	 * previous call when possible.
+	 *
+	 * @param source
+	 *            the crop to segment, with a zero min.
+	 * @param crop
+	 *            the crop interval, in the frame.
+	 * @param channel
+	 *            the channel of the frame.
+	 * @param frame
+	 *            the time-point of the frame.
+	 * @param preprocessing
+	 *            a description of the filter applied to the source, if any.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param backend
+	 *            the watershed implementation to use for the flooding.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return the label image. It is owned by the cache and must not be
+	 *         modified.
+	 */
+	synchronized < T extends RealType< T > & NativeType< T > > ArrayImg< IntType, IntArray > segment(
+			final RandomAccessibleInterval< T > source,
+			final Interval crop,
+			final int channel,
+			final int frame,
+			final String preprocessing,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final MorphoLibJDetectorStats stats )
+	{
+		final List< Object > newKey = Arrays.asList( channel, frame, Util.printInterval( crop ), preprocessing, connectivity, backend );
+		if ( !newKey.equals( key ) )
+		{
+			clear();
+			final long t0 = System.nanoTime();
+			grid = new VoxelGrid( source, connectivity );
+			values = ImgLib2Watershed.read( source, new float[ grid.size ] );
+			if ( backend == WatershedBackend.MORPHOLIBJ )
+			{
+				input = MorphoLibJDetector.toImageStack( source, stats );
+				maxValue = FusedMinima.maxValue( input );
+			}
+			else
+			{
+				maxValue = Views.iterable( source ).firstElement().getMaxValue();
+			}
+			stats.addBytesAllocated( 4L * grid.size );
+			final long t1 = System.nanoTime();
+			stats.addTime( Stage.COPY, t1 - t0 );
+
+			levels = new int[ grid.size ];
+			nLevels = ImgLib2Watershed.toLevels( values, levels );
+			dynamics = new MinimaDynamics( values, levels, nLevels, grid );
+			stats.addBytesAllocated( 4L * grid.size );
+			stats.addTime( Stage.MINIMA, System.nanoTime() - t1 );
+			key = newKey;
+		}
+		else if ( tolerance == this.tolerance )
+		{
+			stats.addMarkers( nMarkers );
+			return labels;
+		}
+
+		final long t2 = System.nanoTime();
+		final int before = stats.getMarkers();
+		final int[] markers = dynamics.markers( tolerance, maxValue, stats );
+		nMarkers = stats.getMarkers() - before;
+		final long t3 = System.nanoTime();
+		stats.addTime( Stage.MINIMA, t3 - t2 );
+
+		final int[] result;
+		if ( backend == WatershedBackend.MORPHOLIBJ )
+		{
+			final ImageStack markerStack = FusedMinima.toStack( markers, input.getWidth(), input.getHeight(), input.getSize(), stats );
+			ScratchBufferPool.get().release( markers );
+			final ImageStack resultStack = Watershed.computeWatershed( input, markerStack, connectivity.getConnectivity(), false );
+			FusedMinima.release( markerStack );
+			result = TiledWatershed.toArray( resultStack );
+		}
+		else
+		{
+			// Kept by the cache, never returned to the pool.
+			ImgLib2Watershed.flood( levels, nLevels, markers, grid, stats );
+			result = markers;
+		}
+		stats.addTime( Stage.FLOODING, System.nanoTime() - t3 );
+
+		this.tolerance = tolerance;
+		this.labels = ArrayImgs.ints( result, Intervals.dimensionsAsLongArray( source ) );
+		return labels;
+	}
+
+	/**
+	 * Discards the cached results.
+	 */
+	synchronized void clear()
+	{
+		key = null;
+		input = null;
+		values = null;
+		grid = null;
+		levels = null;
+		dynamics = null;
+		tolerance = Double.NaN;
+		labels = null;
+	}
+}
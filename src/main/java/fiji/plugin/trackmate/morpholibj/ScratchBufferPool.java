@@ -0,0 +1,363 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of primitive arrays used as scratch buffers by the watershed
+ * engines, owned by one thread.
+ * <p>
+ * Detectors borrow buffers from the pool of the current thread and return
+ * them when they are done. Buffers are keyed by primitive type and length,
+ * so that a worker thread processing frames of identical size reuses the
+ * same buffers from frame to frame, and steady-state detection allocates
+ * close to nothing. The amount of memory retained by all the pools together
+ * is bounded by a global budget: buffers returned beyond this budget are left
+ * to the garbage collector.
+ * <p>
+ * Pools are thread-local and outlive a single detection: the detection
+ * threads of TrackMate keep their buffers from one frame to the next. The
+ * buffers retained by a pool are reclaimed in two ways. The executors created
+ * by the detectors use {@link #threadFactory()} or
+ * {@link #newForkJoinPool(int)}, whose threads clear their pool when they
+ * terminate. And a daemon thread clears the pools that have not been used for
+ * {@value #IDLE_TIMEOUT_SECONDS} seconds, which covers the threads we do not
+ * create, and the threads that died without clearing their pool.
+ */
+final class ScratchBufferPool
+{
+
+	/** Maximal number of bytes retained by the pools of all threads. */
+	private static volatile long maxRetainedBytes = 1L << 28;
+
+	/** Number of bytes retained by the pools of all threads. */
+	private static final AtomicLong RETAINED_BYTES = new AtomicLong();
+
+	/** Delay after which the buffers of an unused pool are dropped. */
+	static final long IDLE_TIMEOUT_SECONDS = 30;
+
+	/** The pools that currently retain buffers. */
+	private static final Set< ScratchBufferPool > RETAINING = ConcurrentHashMap.newKeySet();
+
+	private static final ThreadLocal< ScratchBufferPool > POOLS = ThreadLocal.withInitial( ScratchBufferPool::new );
+
+	private final Map< Key, ArrayDeque< Object > > free = new HashMap<>();
+
+	private long retainedBytes;
+
+	private volatile long lastUse;
+
+	private ScratchBufferPool()
+	{}
+
+	/**
+	 * Returns the pool of the current thread.
+	 *
+	 * @return the pool.
+	 */
+	static ScratchBufferPool get()
+	{
+		return POOLS.get();
+	}
+
+	/**
+	 * Returns a thread factory whose threads clear their pool when they
+	 * terminate.
+	 *
+	 * @return a new thread factory.
+	 */
+	static ThreadFactory threadFactory()
+	{
+		final ThreadFactory factory = Executors.defaultThreadFactory();
+		return r -> factory.newThread( () -> {
+			try
+			{
+				r.run();
+			}
+			finally
+			{
+				get().clear();
+			}
+		} );
+	}
+
+	/**
+	 * Creates a fork-join pool whose worker threads clear their pool when
+	 * they terminate.
+	 *
+	 * @param parallelism
+	 *            the number of worker threads.
+	 * @return a new pool.
+	 */
+	static ForkJoinPool newForkJoinPool( final int parallelism )
+	{
+		return new ForkJoinPool( parallelism, ClearingWorkerThread::new, null, false );
+	}
+
+	/**
+	 * Sets the maximal number of bytes retained by the pools of all threads
+	 * together. Defaults to 256 MB.
+	 *
+	 * @param bytes
+	 *            the number of bytes. Use 0 to disable pooling.
+	 */
+	static void setMaxRetainedBytes( final long bytes )
+	{
+		maxRetainedBytes = bytes;
+	}
+
+	/**
+	 * Borrows a float array of the specified length. Its content is
+	 * undefined.
+	 */
+	float[] floats( final int length, final MorphoLibJDetectorStats stats )
+	{
+		final Object array = take( float[].class, length );
+		if ( array != null )
+			return ( float[] ) array;
+		stats.addBytesAllocated( 4L * length );
+		return new float[ length ];
+	}
+
+	/**
+	 * Borrows an int array of the specified length. If <code>clear</code> is
+	 * <code>false</code>, its content is undefined.
+	 */
+	int[] ints( final int length, final boolean clear, final MorphoLibJDetectorStats stats )
+	{
+		final Object array = take( int[].class, length );
+		if ( array != null )
+		{
+			final int[] ints = ( int[] ) array;
+			if ( clear )
+				Arrays.fill( ints, 0 );
+			return ints;
+		}
+		stats.addBytesAllocated( 4L * length );
+		return new int[ length ];
+	}
+
+	/**
+	 * Borrows a short array of the specified length. Its content is
+	 * undefined.
+	 */
+	short[] shorts( final int length, final MorphoLibJDetectorStats stats )
+	{
+		final Object array = take( short[].class, length );
+		if ( array != null )
+			return ( short[] ) array;
+		stats.addBytesAllocated( 2L * length );
+		return new short[ length ];
+	}
+
+	/**
+	 * Borrows a byte array of the specified length. Its content is
+	 * undefined.
+	 */
+	byte[] bytes( final int length, final MorphoLibJDetectorStats stats )
+	{
+		final Object array = take( byte[].class, length );
+		if ( array != null )
+			return ( byte[] ) array;
+		stats.addBytesAllocated( length );
+		return new byte[ length ];
+	}
+
+	/**
+	 * Returns a primitive array to the pool. The caller must not use it
+	 * afterwards.
+	 *
+	 * @param array
+	 *            the array to return. Arrays of unsupported types, and
+	 *            <code>null</code>, are ignored.
+	 */
+	synchronized void release( final Object array )
+	{
+		final long size = sizeInBytes( array );
+		if ( size <= 0 || !reserve( size ) )
+			return;
+		free.computeIfAbsent( new Key( array.getClass(), Array.getLength( array ) ), k -> new ArrayDeque<>() ).push( array );
+		retainedBytes += size;
+		lastUse = System.nanoTime();
+		if ( RETAINING.add( this ) )
+			Reaper.start();
+	}
+
+	/**
+	 * Returns all the arrays of the specified objects to the pool.
+	 */
+	void releaseAll( final Object[] arrays )
+	{
+		for ( final Object array : arrays )
+			release( array );
+	}
+
+	/**
+	 * Drops all the arrays retained by this pool, and gives their memory
+	 * back to the global budget.
+	 */
+	synchronized void clear()
+	{
+		free.clear();
+		RETAINED_BYTES.addAndGet( -retainedBytes );
+		retainedBytes = 0;
+		RETAINING.remove( this );
+	}
+
+	/**
+	 * Reserves the specified number of bytes in the global budget.
+	 *
+	 * @return <code>false</code> if the budget is exhausted.
+	 */
+	private static boolean reserve( final long size )
+	{
+		while ( true )
+		{
+			final long current = RETAINED_BYTES.get();
+			if ( current + size > maxRetainedBytes )
+				return false;
+			if ( RETAINED_BYTES.compareAndSet( current, current + size ) )
+				return true;
+		}
+	}
+
+	private synchronized Object take( final Class< ? > klass, final int length )
+	{
+		lastUse = System.nanoTime();
+		final ArrayDeque< Object > deque = free.get( new Key( klass, length ) );
+		if ( deque == null || deque.isEmpty() )
+			return null;
+		final Object array = deque.pop();
+		final long size = sizeInBytes( array );
+		retainedBytes -= size;
+		RETAINED_BYTES.addAndGet( -size );
+		return array;
+	}
+
+	private static long sizeInBytes( final Object array )
+	{
+		if ( array instanceof float[] )
+			return 4L * ( ( float[] ) array ).length;
+		if ( array instanceof int[] )
+			return 4L * ( ( int[] ) array ).length;
+		if ( array instanceof short[] )
+			return 2L * ( ( short[] ) array ).length;
+		if ( array instanceof byte[] )
+			return ( ( byte[] ) array ).length;
+		return 0;
+	}
+
+	/**
+	 * Clears the pools that have not been used for
+	 * {@value ScratchBufferPool#IDLE_TIMEOUT_SECONDS} seconds. Started the first time a pool retains a
+	 * buffer.
+	 */
+	private static final class Reaper
+	{
+
+		static
+		{
+			final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor( r -> {
+				final Thread thread = new Thread( r, "ScratchBufferPool reaper" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			executor.scheduleWithFixedDelay( Reaper::reap, IDLE_TIMEOUT_SECONDS, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+		}
+
+		/** Initializes the class, which starts the reaper thread once. */
+		private static void start()
+		{}
+
+		private static void reap()
+		{
+			final long timeout = TimeUnit.SECONDS.toNanos( IDLE_TIMEOUT_SECONDS );
+			for ( final ScratchBufferPool pool : RETAINING )
+			{
+				synchronized ( pool )
+				{
+					if ( System.nanoTime() - pool.lastUse > timeout )
+						pool.clear();
+				}
+			}
+		}
+	}
+
+	private static final class ClearingWorkerThread extends ForkJoinWorkerThread
+	{
+
+		private ClearingWorkerThread( final ForkJoinPool pool )
+		{
+			super( pool );
+		}
+
+		@Override
+		protected void onTermination( final Throwable exception )
+		{
+			get().clear();
+			super.onTermination( exception );
+		}
+	}
+
+	private static final class Key
+	{
+
+		private final Class< ? > klass;
+
+		private final int length;
+
+		private Key( final Class< ? > klass, final int length )
+		{
+			this.klass = klass;
+			this.length = length;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return klass == other.klass && length == other.length;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * klass.hashCode() + length;
+		}
+	}
+}
@@ -0,0 +1,419 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import ij.ImageStack;
+import inra.ijpb.watershed.Watershed;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Extended minima of a frame of a time-lapse, computed locally from the
+ * markers of the previous frame.
+ * <p>
+ * The extended minimum containing a pixel can be found without
+ * reconstructing the whole image: starting from a regional minimum at level
+ * m, flood the pixels at level m + tolerance or lower. If no pixel lower
+ * than m is reached, the flooded pixels are exactly the extended minimum.
+ * Otherwise, restart from the lower pixel. Here:
+ * <ol>
+ * <li>the markers of the previous frame are eroded, so that their cores are
+ * still inside the same objects after a small motion;
+ * <li>the extended minimum under each core is found by flooding from the
+ * lowest pixel of the core, in the order of the previous labels, so that
+ * labels are stable over time;
+ * <li>the regional minima left outside the flooded pixels, where objects
+ * appeared, divided or moved away from their cores, are flooded the same
+ * way, to find the extended minima the seeds missed. Finding them only takes
+ * a scan for pixels without a lower neighbor: the flooded pixels are not
+ * visited again.
+ * </ol>
+ * The markers found are exactly the extended minima of the frame, so they
+ * are the same as the markers computed from scratch, up to the order of the
+ * labels. Seeding only makes the labels follow the previous frame, and
+ * spares the floods of the pixels already resolved by the cores.
+ */
+final class SeededMinima
+{
+
+	private static final int RESOLVED = -1;
+
+	private SeededMinima()
+	{}
+
+	/**
+	 * Segments the specified frame, seeded by the markers of the previous
+	 * frame.
+	 *
+	 * @param source
+	 *            the crop to segment.
+	 * @param previous
+	 *            the markers of the previous frame, over a crop of the same
+	 *            size, or <code>null</code> to compute the markers from
+	 *            scratch.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param backend
+	 *            the watershed implementation used for the flooding.
+	 * @param erosion
+	 *            the number of erosions applied to the previous markers.
+	 * @param markers
+	 *            an array of the size of the source, filled with the markers
+	 *            of this frame, to seed the next one.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return a new label image, of the same size as the source. Its storage
+	 *         array may be returned to the {@link ScratchBufferPool} of the
+	 *         current thread once the label image is not used anymore.
+	 */
+	static < T extends RealType< T > & NativeType< T > > ArrayImg< IntType, IntArray > segment(
+			final RandomAccessibleInterval< T > source,
+			final int[] previous,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final int erosion,
+			final int[] markers,
+			final MorphoLibJDetectorStats stats )
+	{
+		final long t0 = System.nanoTime();
+		final VoxelGrid grid = new VoxelGrid( source, connectivity );
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final float[] values = pool.floats( grid.size, stats );
+		ImgLib2Watershed.read( source, values );
+		final double maxValue = Views.iterable( source ).firstElement().getMaxValue();
+		final long t1 = System.nanoTime();
+		stats.addTime( Stage.COPY, t1 - t0 );
+
+		final int[] labels = ( previous != null && previous.length == grid.size )
+				? markers( values, grid, previous, tolerance, maxValue, erosion, stats )
+				: FusedMinima.markers( values, grid, tolerance, maxValue, stats );
+		System.arraycopy( labels, 0, markers, 0, grid.size );
+		final long t2 = System.nanoTime();
+		stats.addTime( Stage.MINIMA, t2 - t1 );
+
+		final int[] result;
+		if ( backend == WatershedBackend.MORPHOLIBJ )
+		{
+			final ImageStack shared = ZeroCopyStacks.wrap( source );
+			final ImageStack input = ( shared != null ) ? shared : MorphoLibJDetector.copy( source, stats );
+			final ImageStack markerStack = FusedMinima.toStack( labels, grid.width, grid.height, grid.depth, stats );
+			pool.release( labels );
+			final ImageStack resultStack = Watershed.computeWatershed( input, markerStack, connectivity.getConnectivity(), false );
+			FusedMinima.release( markerStack );
+			if ( shared == null )
+				pool.releaseAll( input.getImageArray() );
+			result = TiledWatershed.toArray( resultStack );
+		}
+		else
+		{
+			ImgLib2Watershed.flood( values, labels, grid, stats );
+			result = labels;
+		}
+		pool.release( values );
+		stats.addTime( Stage.FLOODING, System.nanoTime() - t2 );
+		return ArrayImgs.ints( result, Intervals.dimensionsAsLongArray( source ) );
+	}
+
+	/**
+	 * Computes the labeled extended minima of the specified image, seeded by
+	 * the markers of the previous frame.
+	 *
+	 * @param values
+	 *            the image, in raster order. Is not modified.
+	 * @param grid
+	 *            the image geometry.
+	 * @param previous
+	 *            the markers of the previous frame, in raster order.
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the extended minima.
+	 * @param maxValue
+	 *            the maximal value the pixel type can hold.
+	 * @param erosion
+	 *            the number of erosions applied to the previous markers.
+	 * @param stats
+	 *            the statistics in which to record the memory allocated and
+	 *            the number of markers.
+	 * @return a label array, in raster order, borrowed from the
+	 *         {@link ScratchBufferPool} of the current thread.
+	 */
+	static int[] markers( final float[] values, final VoxelGrid grid, final int[] previous, final double tolerance, final double maxValue, final int erosion, final MorphoLibJDetectorStats stats )
+	{
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final int[] labels = pool.ints( grid.size, true, stats );
+		final int[] stamps = pool.ints( grid.size, true, stats );
+		final Flood flood = new Flood( values, grid, labels, stamps, tolerance, maxValue );
+
+		// Cores of the previous markers. Markers eroded away are kept whole.
+		final int[] cores = erode( previous, grid, erosion, stats );
+		int nSeeds = 0;
+		for ( final int l : previous )
+			nSeeds = Math.max( nSeeds, l );
+		final boolean[] hasCore = new boolean[ nSeeds + 1 ];
+		for ( final int l : cores )
+			hasCore[ l ] = true;
+		for ( int p = 0; p < grid.size; p++ )
+			if ( !hasCore[ previous[ p ] ] )
+				cores[ p ] = previous[ p ];
+
+		// Lowest pixel of each core.
+		final int[] lowest = new int[ nSeeds + 1 ];
+		Arrays.fill( lowest, -1 );
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			final int l = cores[ p ];
+			if ( l > 0 && ( lowest[ l ] < 0 || values[ p ] < values[ lowest[ l ] ] ) )
+				lowest[ l ] = p;
+		}
+
+		// Extended minimum under each core, in the order of the labels.
+		for ( int l = 1; l <= nSeeds; l++ )
+		{
+			if ( lowest[ l ] < 0 )
+				continue;
+			int p = descend( values, grid, lowest[ l ] );
+			while ( flood.run( p ) == Flood.LOWER )
+				p = descend( values, grid, flood.lower );
+		}
+		pool.release( cores );
+		stats.addBytesAllocated( 5L * lowest.length );
+
+		/*
+		 * Regional minima left outside the flooded pixels. Every extended
+		 * minimum contains one, so this finds the objects that appeared away
+		 * from the cores. A pixel resolved by a flood cannot start a new
+		 * extended minimum.
+		 */
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			if ( labels[ p ] != 0 || stamps[ p ] == RESOLVED )
+				continue;
+			if ( descend( values, grid, p ) == p )
+				flood.run( p );
+		}
+
+		pool.release( stamps );
+		stats.addMarkers( flood.nLabels );
+		return labels;
+	}
+
+	/**
+	 * Erodes the specified labels the specified number of times, with the
+	 * neighborhood of the grid. Image borders do not erode labels.
+	 *
+	 * @return a label array, borrowed from the {@link ScratchBufferPool} of
+	 *         the current thread.
+	 */
+	static int[] erode( final int[] labels, final VoxelGrid grid, final int erosion, final MorphoLibJDetectorStats stats )
+	{
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final int nk = grid.offsets.length;
+		int[] current = pool.ints( grid.size, false, stats );
+		System.arraycopy( labels, 0, current, 0, grid.size );
+		if ( erosion <= 0 )
+			return current;
+
+		int[] next = pool.ints( grid.size, false, stats );
+		for ( int i = 0; i < erosion; i++ )
+		{
+			for ( int p = 0; p < grid.size; p++ )
+			{
+				final int l = current[ p ];
+				boolean keep = l > 0;
+				if ( keep )
+				{
+					final int x = grid.x( p );
+					final int y = grid.y( p );
+					final int z = grid.z( p );
+					for ( int k = 0; k < nk; k++ )
+					{
+						if ( grid.isInside( x, y, z, k ) && current[ p + grid.offsets[ k ] ] != l )
+						{
+							keep = false;
+							break;
+						}
+					}
+				}
+				next[ p ] = keep ? l : 0;
+			}
+			final int[] tmp = current;
+			current = next;
+			next = tmp;
+		}
+		pool.release( next );
+		return current;
+	}
+
+	/**
+	 * Follows the lowest neighbors from the specified pixel, until reaching a
+	 * pixel with no lower neighbor.
+	 */
+	private static int descend( final float[] values, final VoxelGrid grid, final int start )
+	{
+		final int nk = grid.offsets.length;
+		int p = start;
+		while ( true )
+		{
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			int lowest = p;
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				if ( values[ q ] < values[ lowest ] )
+					lowest = q;
+			}
+			if ( lowest == p )
+				return p;
+			p = lowest;
+		}
+	}
+
+	/**
+	 * Floods the pixels within the tolerance of a starting pixel, to find
+	 * the extended minimum it belongs to.
+	 */
+	private static final class Flood
+	{
+
+		/** The flooded pixels are a new extended minimum. */
+		static final int FOUND = 0;
+
+		/** A pixel lower than the start was reached. */
+		static final int LOWER = 1;
+
+		/** An extended minimum already found was reached. */
+		static final int MERGED = 2;
+
+		private final float[] values;
+
+		private final VoxelGrid grid;
+
+		private final int[] labels;
+
+		private final int[] stamps;
+
+		private final double tolerance;
+
+		private final double maxValue;
+
+		private int[] visited = new int[ 1024 ];
+
+		private int stamp;
+
+		/** The lower pixel reached by the last flood, if any. */
+		int lower = -1;
+
+		/** The number of extended minima found. */
+		int nLabels;
+
+		Flood( final float[] values, final VoxelGrid grid, final int[] labels, final int[] stamps, final double tolerance, final double maxValue )
+		{
+			this.values = values;
+			this.grid = grid;
+			this.labels = labels;
+			this.stamps = stamps;
+			this.tolerance = tolerance;
+			this.maxValue = maxValue;
+		}
+
+		/**
+		 * Floods from the specified pixel. Unless the flood finds a new
+		 * extended minimum, the flooded pixels are marked as resolved: their
+		 * own flood would contain this one, so none of them is in a new
+		 * extended minimum.
+		 */
+		int run( final int start )
+		{
+			stamp++;
+			final float m = values[ start ];
+			// Clipped as in MorphoLibJ, see FusedMinima.
+			final float level = ( float ) Math.min( m + tolerance, maxValue );
+			final int nk = grid.offsets.length;
+			int n = 0;
+			visited[ n++ ] = start;
+			stamps[ start ] = stamp;
+			int outcome = ( labels[ start ] > 0 ) ? MERGED : FOUND;
+			for ( int head = 0; head < n && outcome == FOUND; head++ )
+			{
+				final int p = visited[ head ];
+				final int x = grid.x( p );
+				final int y = grid.y( p );
+				final int z = grid.z( p );
+				for ( int k = 0; k < nk; k++ )
+				{
+					if ( !grid.isInside( x, y, z, k ) )
+						continue;
+					final int q = p + grid.offsets[ k ];
+					if ( stamps[ q ] == stamp )
+						continue;
+					final float v = values[ q ];
+					if ( v > level )
+						continue;
+					if ( v < m )
+					{
+						lower = q;
+						outcome = LOWER;
+						break;
+					}
+					if ( labels[ q ] > 0 )
+					{
+						outcome = MERGED;
+						break;
+					}
+					stamps[ q ] = stamp;
+					if ( n == visited.length )
+						visited = Arrays.copyOf( visited, 2 * n );
+					visited[ n++ ] = q;
+				}
+			}
+
+			if ( outcome == FOUND )
+			{
+				nLabels++;
+				for ( int j = 0; j < n; j++ )
+					labels[ visited[ j ] ] = nLabels;
+			}
+			else
+			{
+				for ( int j = 0; j < n; j++ )
+					stamps[ visited[ j ] ] = RESOLVED;
+			}
+			return outcome;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Slice-parallel version of the marker-controlled watershed, for 3D stacks
+ * whose Z planes should be segmented independently, for instance thick
+ * sections.
+ * <p>
+ * Each Z plane is segmented as a 2D image, with 4- or 8-connectivity (see
+ * {@link Connectivity#getConnectivity2D()}), by a fork-join pool. Labels are
+ * made unique across planes. Optionally, labels of adjacent planes are
+ * linked into 3D objects with a union-find, when they are each other's best
+ * match in overlap.
+ */
+public class SliceWatershed
+{
+
+	private SliceWatershed()
+	{}
+
+	/**
+	 * Segments each Z plane of the specified 3D image.
+	 *
+	 * @param source
+	 *            the 3D image to segment. Must be zero-min.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use in each plane.
+	 * @param backend
+	 *            the watershed implementation used to segment each plane.
+	 * @param link
+	 *            whether to link the labels of adjacent planes into 3D
+	 *            objects.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param stats
+	 *            the statistics in which to record the time spent in each
+	 *            stage, summed over planes, and the memory allocated.
+	 * @return a new label image, of the same size as the source.
+	 * @throws InterruptedException
+	 *             if the computation is interrupted.
+	 * @throws ExecutionException
+	 *             if the segmentation of one plane fails.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img< IntType > segment(
+			final RandomAccessibleInterval< T > source,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final boolean link,
+			final int numThreads,
+			final MorphoLibJDetectorStats stats ) throws InterruptedException, ExecutionException
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( source );
+		final int depth = ( int ) dims[ 2 ];
+		final int planeSize = ( int ) ( dims[ 0 ] * dims[ 1 ] );
+
+		/*
+		 * Segment planes in parallel.
+		 */
+
+		final int[][] planeLabels = new int[ depth ][];
+		final ForkJoinPool pool = ScratchBufferPool.newForkJoinPool( Math.max( 1, numThreads ) );
+		try
+		{
+			pool.submit( () -> IntStream.range( 0, depth ).parallel().forEach( z -> planeLabels[ z ] = TiledWatershed.segmentTile(
+					Views.hyperSlice( source, 2, z ), tolerance, connectivity, backend, stats ) ) ).get();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		final long start = System.nanoTime();
+
+		/*
+		 * Make labels unique across planes.
+		 */
+
+		final ArrayImg< IntType, IntArray > output = ArrayImgs.ints( dims );
+		final int[] out = output.update( null ).getCurrentStorageArray();
+		stats.addBytesAllocated( 4L * out.length );
+		int nLabels = 0;
+		for ( int z = 0; z < depth; z++ )
+		{
+			final int[] labels = planeLabels[ z ];
+			final int offset = z * planeSize;
+			int max = 0;
+			for ( int i = 0; i < planeSize; i++ )
+			{
+				final int l = labels[ i ];
+				out[ offset + i ] = ( l == 0 ) ? 0 : l + nLabels;
+				max = Math.max( max, l );
+			}
+			nLabels += max;
+		}
+
+		/*
+		 * Link labels across planes.
+		 */
+
+		final int[] parent = new int[ nLabels + 1 ];
+		for ( int l = 0; l <= nLabels; l++ )
+			parent[ l ] = l;
+		if ( link )
+		{
+			for ( int z = 0; z < depth - 1; z++ )
+			{
+				final Map< Long, Integer > counts = new HashMap<>();
+				final int offset = z * planeSize;
+				for ( int i = 0; i < planeSize; i++ )
+				{
+					final int la = out[ offset + i ];
+					final int lb = out[ offset + planeSize + i ];
+					if ( la == 0 || lb == 0 )
+						continue;
+					final long key = ( ( long ) la << 32 ) | lb;
+					counts.merge( key, 1, Integer::sum );
+				}
+				TiledWatershed.mergeBestMatches( counts, parent );
+			}
+		}
+
+		final boolean[] present = new boolean[ nLabels + 1 ];
+		for ( int k = 0; k < out.length; k++ )
+		{
+			final int l = TiledWatershed.find( parent, out[ k ] );
+			out[ k ] = l;
+			present[ l ] = true;
+		}
+		int nObjects = 0;
+		for ( int l = 1; l <= nLabels; l++ )
+			if ( present[ l ] )
+				nObjects++;
+		stats.setLabels( nObjects );
+		stats.addTime( Stage.STITCHING, System.nanoTime() - start );
+		return output;
+	}
+}
@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.BLOCK_HEADER_BYTES;
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.CONTOURS;
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.HEADER_BYTES;
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.MAGIC;
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.MESHES;
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.VERSION;
+import static fiji.plugin.trackmate.morpholibj.SpotColumnsWriter.align;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the spot column files written by {@link SpotColumnsWriter}.
+ * <p>
+ * Opening a file only reads the block headers, to index the blocks. Each
+ * block is then memory-mapped on demand, and its columns are exposed as
+ * primitive buffers viewing the mapped file, so that spots can be scanned
+ * without copying them or creating {@link fiji.plugin.trackmate.Spot}
+ * objects. Blocks must be smaller than 2 GB to be mapped.
+ */
+public class SpotColumnsReader implements Closeable
+{
+
+	private final FileChannel channel;
+
+	private final long[] positions;
+
+	private final int[] frames;
+
+	private SpotColumnsReader( final FileChannel channel, final long[] positions, final int[] frames )
+	{
+		this.channel = channel;
+		this.positions = positions;
+		this.frames = frames;
+	}
+
+	/**
+	 * Opens a spot column file and indexes its blocks.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return a new reader.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a spot column file.
+	 */
+	public static SpotColumnsReader open( final Path file ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ );
+		try
+		{
+			final ByteBuffer header = ByteBuffer.allocate( BLOCK_HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+			read( channel, header, 0, HEADER_BYTES );
+			if ( header.getInt() != MAGIC )
+				throw new IOException( "Not a spot column file: " + file );
+			final int version = header.getInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported spot column file version: " + version );
+
+			long[] positions = new long[ 16 ];
+			int[] frames = new int[ 16 ];
+			int nBlocks = 0;
+			long position = HEADER_BYTES;
+			final long size = channel.size();
+			while ( position < size )
+			{
+				read( channel, header, position, BLOCK_HEADER_BYTES );
+				final long bytes = header.getLong();
+				if ( bytes < BLOCK_HEADER_BYTES || position + bytes > size )
+					throw new IOException( "Truncated block at position " + position + " in " + file );
+				if ( nBlocks == positions.length )
+				{
+					positions = Arrays.copyOf( positions, 2 * nBlocks );
+					frames = Arrays.copyOf( frames, 2 * nBlocks );
+				}
+				positions[ nBlocks ] = position;
+				frames[ nBlocks ] = header.getInt();
+				nBlocks++;
+				position += bytes;
+			}
+			return new SpotColumnsReader( channel, Arrays.copyOf( positions, nBlocks ), Arrays.copyOf( frames, nBlocks ) );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void read( final FileChannel channel, final ByteBuffer buffer, final long position, final int bytes ) throws IOException
+	{
+		buffer.clear().limit( bytes );
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new EOFException();
+		buffer.flip();
+	}
+
+	/**
+	 * Returns the number of blocks in the file.
+	 *
+	 * @return the number of blocks.
+	 */
+	public int numBlocks()
+	{
+		return positions.length;
+	}
+
+	/**
+	 * Returns the frame of the specified block, without mapping it.
+	 *
+	 * @param block
+	 *            the block index.
+	 * @return the frame.
+	 */
+	public int frame( final int block )
+	{
+		return frames[ block ];
+	}
+
+	/**
+	 * Memory-maps the specified block.
+	 *
+	 * @param block
+	 *            the block index, in file order.
+	 * @return the block.
+	 * @throws IOException
+	 *             if the block cannot be mapped.
+	 */
+	public Block block( final int block ) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		read( channel, header, positions[ block ], 8 );
+		final long bytes = header.getLong();
+		return new Block( channel.map( FileChannel.MapMode.READ_ONLY, positions[ block ], bytes ).order( ByteOrder.LITTLE_ENDIAN ) );
+	}
+
+	/**
+	 * Closes the file. Blocks already mapped stay readable.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/**
+	 * The spots of one frame, as columns viewing the mapped file.
+	 */
+	public static class Block
+	{
+
+		private final ByteBuffer data;
+
+		private final int frame;
+
+		private final int n;
+
+		private final int payload;
+
+		private final int nPoints;
+
+		private final int nTriangles;
+
+		private Block( final ByteBuffer data )
+		{
+			this.data = data;
+			this.frame = data.getInt( 8 );
+			this.n = data.getInt( 12 );
+			this.payload = data.getInt( 16 );
+			this.nPoints = data.getInt( 20 );
+			this.nTriangles = data.getInt( 24 );
+		}
+
+		/**
+		 * Returns the frame of the spots in this block.
+		 *
+		 * @return the frame.
+		 */
+		public int frame()
+		{
+			return frame;
+		}
+
+		/**
+		 * Returns the number of spots in this block.
+		 *
+		 * @return the number of spots.
+		 */
+		public int size()
+		{
+			return n;
+		}
+
+		/**
+		 * Returns the payload type of this block: {@link SpotColumnsWriter#NONE},
+		 * {@link SpotColumnsWriter#CONTOURS} or
+		 * {@link SpotColumnsWriter#MESHES}.
+		 *
+		 * @return the payload type.
+		 */
+		public int payload()
+		{
+			return payload;
+		}
+
+		/**
+		 * Returns the X positions of the spots.
+		 *
+		 * @return the X column.
+		 */
+		public DoubleBuffer x()
+		{
+			return column( 0 );
+		}
+
+		/**
+		 * Returns the Y positions of the spots.
+		 *
+		 * @return the Y column.
+		 */
+		public DoubleBuffer y()
+		{
+			return column( 1 );
+		}
+
+		/**
+		 * Returns the Z positions of the spots.
+		 *
+		 * @return the Z column.
+		 */
+		public DoubleBuffer z()
+		{
+			return column( 2 );
+		}
+
+		/**
+		 * Returns the radii of the spots.
+		 *
+		 * @return the radius column.
+		 */
+		public DoubleBuffer radius()
+		{
+			return column( 3 );
+		}
+
+		/**
+		 * Returns the qualities of the spots.
+		 *
+		 * @return the quality column.
+		 */
+		public DoubleBuffer quality()
+		{
+			return column( 4 );
+		}
+
+		/**
+		 * Returns the volumes of the spots, areas in 2D.
+		 *
+		 * @return the volume column.
+		 */
+		public DoubleBuffer volume()
+		{
+			return column( 5 );
+		}
+
+		/**
+		 * Returns the IDs of the spots.
+		 *
+		 * @return the ID column.
+		 */
+		public LongBuffer id()
+		{
+			return slice( BLOCK_HEADER_BYTES + 48L * n, 8L * n ).asLongBuffer();
+		}
+
+		/**
+		 * Returns the offsets of the contour points, or of the mesh vertices,
+		 * of each spot: the shape of spot <code>i</code> spans the points
+		 * <code>offsets[i]</code> to <code>offsets[i + 1]</code>, excluded.
+		 * Empty if the block has no shapes.
+		 *
+		 * @return the point offsets, <code>n + 1</code> values.
+		 */
+		public IntBuffer pointOffsets()
+		{
+			if ( payload != CONTOURS && payload != MESHES )
+				return IntBuffer.allocate( 0 );
+			return slice( payloadStart(), 4L * ( n + 1 ) ).asIntBuffer();
+		}
+
+		/**
+		 * Returns the offsets of the mesh triangles of each spot. Empty if the
+		 * block has no meshes.
+		 *
+		 * @return the triangle offsets, <code>n + 1</code> values.
+		 */
+		public IntBuffer triangleOffsets()
+		{
+			if ( payload != MESHES )
+				return IntBuffer.allocate( 0 );
+			return slice( payloadStart() + offsetsBytes(), 4L * ( n + 1 ) ).asIntBuffer();
+		}
+
+		/**
+		 * Returns the X coordinates of the contour points, relative to the
+		 * spot centers. Empty if the block has no contours.
+		 *
+		 * @return the X coordinates.
+		 */
+		public DoubleBuffer contourX()
+		{
+			if ( payload != CONTOURS )
+				return DoubleBuffer.allocate( 0 );
+			return slice( payloadStart() + offsetsBytes(), 8L * nPoints ).asDoubleBuffer();
+		}
+
+		/**
+		 * Returns the Y coordinates of the contour points, relative to the
+		 * spot centers. Empty if the block has no contours.
+		 *
+		 * @return the Y coordinates.
+		 */
+		public DoubleBuffer contourY()
+		{
+			if ( payload != CONTOURS )
+				return DoubleBuffer.allocate( 0 );
+			return slice( payloadStart() + offsetsBytes() + 8L * nPoints, 8L * nPoints ).asDoubleBuffer();
+		}
+
+		/**
+		 * Returns the interleaved X, Y, Z coordinates of the mesh vertices,
+		 * relative to the spot centers. Empty if the block has no meshes.
+		 *
+		 * @return the vertex coordinates, <code>3 &times; vertices</code>
+		 *         values.
+		 */
+		public FloatBuffer meshVertices()
+		{
+			if ( payload != MESHES )
+				return FloatBuffer.allocate( 0 );
+			return slice( payloadStart() + 2 * offsetsBytes(), 12L * nPoints ).asFloatBuffer();
+		}
+
+		/**
+		 * Returns the vertex indices of the mesh triangles, relative to the
+		 * first vertex of their spot. Empty if the block has no meshes.
+		 *
+		 * @return the vertex indices, <code>3 &times; triangles</code> values.
+		 */
+		public IntBuffer meshTriangles()
+		{
+			if ( payload != MESHES )
+				return IntBuffer.allocate( 0 );
+			return slice( payloadStart() + 2 * offsetsBytes() + align( 12L * nPoints ), 12L * nTriangles ).asIntBuffer();
+		}
+
+		private DoubleBuffer column( final int c )
+		{
+			return slice( BLOCK_HEADER_BYTES + 8L * c * n, 8L * n ).asDoubleBuffer();
+		}
+
+		private long payloadStart()
+		{
+			return BLOCK_HEADER_BYTES + 56L * n;
+		}
+
+		private long offsetsBytes()
+		{
+			return align( 4L * ( n + 1 ) );
+		}
+
+		private ByteBuffer slice( final long start, final long bytes )
+		{
+			final ByteBuffer view = data.duplicate();
+			view.position( ( int ) start ).limit( ( int ) ( start + bytes ) );
+			return view.slice().order( ByteOrder.LITTLE_ENDIAN );
+		}
+	}
+}
@@ -0,0 +1,403 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotMesh;
+import fiji.plugin.trackmate.SpotRoi;
+import net.imglib2.mesh.Mesh;
+import net.imglib2.mesh.Triangles;
+import net.imglib2.mesh.Vertices;
+
+/**
+ * Writes detected spots in a compact columnar binary file, that can be
+ * memory-mapped and scanned without creating {@link Spot} objects, see
+ * {@link SpotColumnsReader}.
+ * <p>
+ * The file starts with a 16-byte header (magic number, version, and 8
+ * reserved bytes), followed by one block per frame, in the order they are
+ * written. All values are little-endian, and all arrays start at a multiple
+ * of 8 bytes from the block start. A block holds:
+ * <ol>
+ * <li>a 32-byte header: the block size in bytes, including the header, as a
+ * long; then the frame, the number of spots <code>n</code>, the payload
+ * type, the number of shape points or mesh vertices, the number of mesh
+ * triangles and a padding int;
+ * <li>the columns, each an array of <code>n</code> values: X, Y, Z, radius,
+ * quality and volume as doubles, then the spot ID as a long;
+ * <li>the optional shape payload. For {@link #CONTOURS}: the offsets of the
+ * contour of each spot in the point arrays as <code>n + 1</code> ints, then
+ * the X and Y coordinates of the points as doubles. For {@link #MESHES}: the
+ * vertex offsets and the triangle offsets as <code>n + 1</code> ints each,
+ * then the vertex coordinates as <code>3 &times; vertices</code> floats, and
+ * the vertex indices of the triangles, local to each spot, as
+ * <code>3 &times; triangles</code> ints.
+ * </ol>
+ * Shape coordinates are relative to the spot center, as in {@link SpotRoi}
+ * and {@link SpotMesh}. The volume is the area of the contour for 2D spots,
+ * the volume of the mesh for 3D spots, and the volume of the sphere of the
+ * spot radius otherwise.
+ */
+public class SpotColumnsWriter implements Closeable
+{
+
+	/** Magic number of the spot column files, "TMSC". */
+	public static final int MAGIC = 0x544D5343;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_BYTES = 16;
+
+	public static final int BLOCK_HEADER_BYTES = 32;
+
+	/** Payload type of blocks without shapes. */
+	public static final int NONE = 0;
+
+	/** Payload type of blocks with 2D contours. */
+	public static final int CONTOURS = 1;
+
+	/** Payload type of blocks with 3D meshes. */
+	public static final int MESHES = 2;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+
+	private final boolean shapes;
+
+	private final ByteBuffer buffer = newBuffer();
+
+	private SpotColumnsWriter( final FileChannel channel, final boolean shapes )
+	{
+		this.channel = channel;
+		this.shapes = shapes;
+	}
+
+	/**
+	 * Creates a new spot column file, replacing the existing one if any, and
+	 * writes its header.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @param shapes
+	 *            whether to write the contours and meshes of the spots.
+	 * @return a new writer.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 */
+	public static SpotColumnsWriter create( final Path file, final boolean shapes ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		final SpotColumnsWriter writer = new SpotColumnsWriter( channel, shapes );
+		writeHeader( channel, writer.buffer );
+		return writer;
+	}
+
+	/**
+	 * Appends the spots of one frame to the file. Frames may be written in
+	 * any order, and from several threads.
+	 *
+	 * @param frame
+	 *            the frame of the spots.
+	 * @param spots
+	 *            the spots to write.
+	 * @throws IOException
+	 *             if the spots cannot be written.
+	 */
+	public synchronized void write( final int frame, final List< Spot > spots ) throws IOException
+	{
+		writeBlock( channel, frame, spots, shapes, buffer );
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		channel.close();
+	}
+
+	static ByteBuffer newBuffer()
+	{
+		return ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	/**
+	 * Writes the file header to the specified channel.
+	 */
+	static void writeHeader( final WritableByteChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		buffer.clear();
+		buffer.putInt( MAGIC ).putInt( VERSION ).putLong( 0L );
+		flush( channel, buffer );
+	}
+
+	/**
+	 * Writes one frame block to the specified channel. The buffer is used as
+	 * a staging area, and must have room for at least one block header.
+	 */
+	static void writeBlock( final WritableByteChannel channel, final int frame, final List< Spot > spots, final boolean shapes, final ByteBuffer buffer ) throws IOException
+	{
+		final int n = spots.size();
+
+		// Payload type and size.
+		int payload = NONE;
+		if ( shapes )
+		{
+			for ( final Spot spot : spots )
+			{
+				if ( spot instanceof SpotMesh )
+					payload = MESHES;
+				else if ( spot instanceof SpotRoi && payload == NONE )
+					payload = CONTOURS;
+			}
+		}
+		long nPoints = 0;
+		long nTriangles = 0;
+		for ( final Spot spot : spots )
+		{
+			nPoints += points( spot, payload );
+			nTriangles += triangles( spot, payload );
+		}
+		final long bytes = BLOCK_HEADER_BYTES + 56L * n + payloadBytes( payload, n, nPoints, nTriangles );
+
+		buffer.clear();
+		buffer.putLong( bytes ).putInt( frame ).putInt( n ).putInt( payload )
+				.putInt( ( int ) nPoints ).putInt( ( int ) nTriangles ).putInt( 0 );
+
+		// Columns.
+		for ( int c = 0; c < 3; c++ )
+			for ( final Spot spot : spots )
+				putDouble( channel, buffer, spot.getDoublePosition( c ) );
+		for ( final Spot spot : spots )
+			putDouble( channel, buffer, spot.getFeature( Spot.RADIUS ).doubleValue() );
+		for ( final Spot spot : spots )
+		{
+			final Double quality = spot.getFeature( Spot.QUALITY );
+			putDouble( channel, buffer, quality == null ? Double.NaN : quality.doubleValue() );
+		}
+		for ( final Spot spot : spots )
+			putDouble( channel, buffer, volume( spot ) );
+		for ( final Spot spot : spots )
+		{
+			ensure( channel, buffer, 8 );
+			buffer.putLong( spot.ID() );
+		}
+
+		// Shapes.
+		if ( payload == CONTOURS )
+		{
+			putOffsets( channel, buffer, spots, payload, false );
+			for ( int c = 0; c < 2; c++ )
+				for ( final Spot spot : spots )
+				{
+					if ( !( spot instanceof SpotRoi ) )
+						continue;
+					final SpotRoi roi = ( SpotRoi ) spot;
+					for ( int i = 0; i < roi.nPoints(); i++ )
+						putDouble( channel, buffer, c == 0 ? roi.xr( i ) : roi.yr( i ) );
+				}
+		}
+		else if ( payload == MESHES )
+		{
+			putOffsets( channel, buffer, spots, payload, false );
+			putOffsets( channel, buffer, spots, payload, true );
+			for ( final Spot spot : spots )
+			{
+				if ( !( spot instanceof SpotMesh ) )
+					continue;
+				final Vertices vertices = ( ( SpotMesh ) spot ).getMesh().vertices();
+				for ( long i = 0; i < vertices.size(); i++ )
+				{
+					ensure( channel, buffer, 12 );
+					buffer.putFloat( vertices.xf( i ) ).putFloat( vertices.yf( i ) ).putFloat( vertices.zf( i ) );
+				}
+			}
+			pad( channel, buffer, 12L * nPoints );
+			for ( final Spot spot : spots )
+			{
+				if ( !( spot instanceof SpotMesh ) )
+					continue;
+				final Triangles triangles = ( ( SpotMesh ) spot ).getMesh().triangles();
+				for ( long i = 0; i < triangles.size(); i++ )
+				{
+					ensure( channel, buffer, 12 );
+					buffer.putInt( ( int ) triangles.vertex0( i ) ).putInt( ( int ) triangles.vertex1( i ) ).putInt( ( int ) triangles.vertex2( i ) );
+				}
+			}
+			pad( channel, buffer, 12L * nTriangles );
+		}
+		flush( channel, buffer );
+	}
+
+	/**
+	 * Returns the size in bytes of the shape payload of a block.
+	 */
+	static long payloadBytes( final int payload, final int n, final long nPoints, final long nTriangles )
+	{
+		switch ( payload )
+		{
+		case CONTOURS:
+			return align( 4L * ( n + 1 ) ) + 16L * nPoints;
+		case MESHES:
+			return 2 * align( 4L * ( n + 1 ) ) + align( 12L * nPoints ) + align( 12L * nTriangles );
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Rounds the specified size up to a multiple of 8.
+	 */
+	static long align( final long bytes )
+	{
+		return ( bytes + 7 ) & ~7L;
+	}
+
+	/**
+	 * Returns the number of contour points or mesh vertices written for the
+	 * specified spot in a block with the specified payload type.
+	 */
+	private static long points( final Spot spot, final int payload )
+	{
+		if ( payload == MESHES && spot instanceof SpotMesh )
+			return ( ( SpotMesh ) spot ).getMesh().vertices().size();
+		if ( payload == CONTOURS && spot instanceof SpotRoi )
+			return ( ( SpotRoi ) spot ).nPoints();
+		return 0;
+	}
+
+	/**
+	 * Returns the number of mesh triangles written for the specified spot in
+	 * a block with the specified payload type.
+	 */
+	private static long triangles( final Spot spot, final int payload )
+	{
+		if ( payload == MESHES && spot instanceof SpotMesh )
+			return ( ( SpotMesh ) spot ).getMesh().triangles().size();
+		return 0;
+	}
+
+	/**
+	 * Writes the offsets of the contour points or mesh vertices of each spot
+	 * in the point arrays, or of its triangles in the triangle array.
+	 */
+	private static void putOffsets( final WritableByteChannel channel, final ByteBuffer buffer, final List< Spot > spots, final int payload, final boolean triangles ) throws IOException
+	{
+		long offset = 0;
+		ensure( channel, buffer, 4 );
+		buffer.putInt( 0 );
+		for ( final Spot spot : spots )
+		{
+			offset += triangles ? triangles( spot, payload ) : points( spot, payload );
+			ensure( channel, buffer, 4 );
+			buffer.putInt( ( int ) offset );
+		}
+		pad( channel, buffer, 4L * ( spots.size() + 1 ) );
+	}
+
+	/**
+	 * Returns the volume of the specified spot: the area of its contour, the
+	 * volume of its mesh, or the volume of the sphere of its radius.
+	 */
+	static double volume( final Spot spot )
+	{
+		if ( spot instanceof SpotRoi )
+		{
+			final SpotRoi roi = ( SpotRoi ) spot;
+			final int np = roi.nPoints();
+			double area = 0.;
+			for ( int i = 0; i < np; i++ )
+			{
+				final int j = ( i + 1 ) % np;
+				area += roi.xr( i ) * roi.yr( j ) - roi.xr( j ) * roi.yr( i );
+			}
+			return Math.abs( area ) / 2.;
+		}
+		if ( spot instanceof SpotMesh )
+		{
+			final Mesh mesh = ( ( SpotMesh ) spot ).getMesh();
+			final Vertices v = mesh.vertices();
+			final Triangles t = mesh.triangles();
+			double volume = 0.;
+			for ( long i = 0; i < t.size(); i++ )
+			{
+				final long a = t.vertex0( i );
+				final long b = t.vertex1( i );
+				final long c = t.vertex2( i );
+				// Signed volume of the tetrahedron with the origin.
+				volume += v.x( a ) * ( v.y( b ) * v.z( c ) - v.z( b ) * v.y( c ) )
+						- v.y( a ) * ( v.x( b ) * v.z( c ) - v.z( b ) * v.x( c ) )
+						+ v.z( a ) * ( v.x( b ) * v.y( c ) - v.y( b ) * v.x( c ) );
+			}
+			return Math.abs( volume ) / 6.;
+		}
+		final double r = spot.getFeature( Spot.RADIUS ).doubleValue();
+		return 4. / 3. * Math.PI * r * r * r;
+	}
+
+	private static void putDouble( final WritableByteChannel channel, final ByteBuffer buffer, final double value ) throws IOException
+	{
+		ensure( channel, buffer, 8 );
+		buffer.putDouble( value );
+	}
+
+	/**
+	 * Writes zeros after an array of the specified size, up to the next
+	 * multiple of 8 bytes.
+	 */
+	private static void pad( final WritableByteChannel channel, final ByteBuffer buffer, final long bytes ) throws IOException
+	{
+		final int padding = ( int ) ( align( bytes ) - bytes );
+		ensure( channel, buffer, padding );
+		for ( int i = 0; i < padding; i++ )
+			buffer.put( ( byte ) 0 );
+	}
+
+	/**
+	 * Flushes the buffer to the channel if it has less than the specified
+	 * number of bytes remaining.
+	 */
+	private static void ensure( final WritableByteChannel channel, final ByteBuffer buffer, final int bytes ) throws IOException
+	{
+		if ( buffer.remaining() < bytes )
+		{
+			flush( channel, buffer );
+			buffer.clear();
+		}
+	}
+
+	private static void flush( final WritableByteChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		buffer.flip();
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+}
@@ -0,0 +1,389 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.DEFAULT_MARGIN;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MARGIN;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.algorithm.OutputAlgorithm;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Streaming frame-by-frame detection with bounded memory, for long
+ * time-lapses.
+ * <p>
+ * A reader thread copies the region to segment of each frame (detection
+ * interval plus margin) into a frame buffer, and hands it to worker threads
+ * through a bounded queue. Each worker segments one frame at a time, emits
+ * its spots, drops the intermediate images, and returns the frame buffer to
+ * a pool, where it is reused for a later frame. At most
+ * <code>2 &times; numThreads</code> frame buffers exist, and at most
+ * <code>numThreads</code> frames are segmented concurrently. Peak memory
+ * therefore depends on the thread count and not on the movie length.
+ * <p>
+ * Spots are collected in a {@link SpotCollection}, unless a spot consumer is
+ * set. In that case spots are passed to it as soon as a frame is done and
+ * are not retained.
+ */
+public class StreamingDetection< T extends RealType< T > & NativeType< T > > implements OutputAlgorithm< SpotCollection >, MultiThreaded, Benchmark
+{
+
+	private final static String BASE_ERROR_MESSAGE = "StreamingDetection: ";
+
+	private final ImgPlus< T > img;
+
+	private final Map< String, Object > settings;
+
+	private final Interval interval;
+
+	private final int minFrame;
+
+	private final int maxFrame;
+
+	private BiConsumer< Integer, List< Spot > > spotConsumer;
+
+	private SpotCollection spots;
+
+	private MorphoLibJMetrics.Aggregator stats = new MorphoLibJMetrics.Aggregator();
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private int numThreads;
+
+	/**
+	 * Creates a streaming detection.
+	 *
+	 * @param img
+	 *            the source image, possibly with several channels and time
+	 *            points.
+	 * @param settings
+	 *            the MorphoLibJ detector settings.
+	 * @param interval
+	 *            the interval in which to detect objects, in the coordinates
+	 *            of one frame.
+	 * @param minFrame
+	 *            the first frame to process, inclusive.
+	 * @param maxFrame
+	 *            the last frame to process, inclusive.
+	 */
+	public StreamingDetection(
+			final ImgPlus< T > img,
+			final Map< String, Object > settings,
+			final Interval interval,
+			final int minFrame,
+			final int maxFrame )
+	{
+		this.img = img;
+		this.settings = settings;
+		this.interval = interval;
+		this.minFrame = minFrame;
+		this.maxFrame = maxFrame;
+		setNumThreads();
+	}
+
+	/**
+	 * Sets a consumer that receives the spots of each frame as soon as they
+	 * are detected, with the frame index. When a consumer is set, spots are
+	 * not stored in the result collection. The consumer may be called from
+	 * several threads at once.
+	 *
+	 * @param spotConsumer
+	 *            the consumer, or <code>null</code> to collect spots in the
+	 *            result.
+	 */
+	public void setSpotConsumer( final BiConsumer< Integer, List< Spot > > spotConsumer )
+	{
+		this.spotConsumer = spotConsumer;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == img )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Image is null.";
+			return false;
+		}
+		if ( minFrame < 0 || maxFrame < minFrame )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Invalid frame range: " + minFrame + " - " + maxFrame + ".";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		spots = new SpotCollection();
+		stats = new MorphoLibJMetrics.Aggregator();
+
+		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
+		final int margin = ( Integer ) settings.getOrDefault( KEY_MARGIN, DEFAULT_MARGIN );
+		final ImgPlus< T > template = TMUtils.hyperSlice( img, channel, minFrame );
+		final Interval crop = Intervals.intersect( Intervals.expand( DetectionUtils.squeeze( interval ), margin ), template );
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final double frameInterval = ( timeDim < 0 ) ? 1. : img.averageScale( timeDim );
+
+		final int nWorkers = Math.max( 1, numThreads );
+		final BlockingQueue< Img< T > > free = new ArrayBlockingQueue<>( 2 * nWorkers );
+		final PlanarImgFactory< T > factory = new PlanarImgFactory<>( template.firstElement().createVariable() );
+		for ( int i = 0; i < 2 * nWorkers; i++ )
+			free.add( factory.create( Intervals.dimensionsAsLongArray( crop ) ) );
+		final BlockingQueue< FrameBuffer< T > > work = new ArrayBlockingQueue<>( nWorkers );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( nWorkers + 1, ScratchBufferPool.threadFactory() );
+		final MorphoLibJMetrics.Aggregator aggregator = stats;
+		final AtomicReference< String > error = new AtomicReference<>();
+		try
+		{
+			/*
+			 * Reader: copies frames into free buffers.
+			 */
+
+			final Future< ? > reader = executor.submit( () -> {
+				try
+				{
+					for ( int frame = minFrame; frame <= maxFrame; frame++ )
+					{
+						final Img< T > buffer = free.take();
+						final RandomAccessibleInterval< T > source = Views.zeroMin( Views.interval( TMUtils.hyperSlice( img, channel, frame ), crop ) );
+						LoopBuilder.setImages( source, buffer ).forEachPixel( ( s, t ) -> t.set( s ) );
+						work.put( new FrameBuffer<>( frame, buffer ) );
+					}
+				}
+				finally
+				{
+					for ( int i = 0; i < nWorkers; i++ )
+						work.put( FrameBuffer.poison() );
+				}
+				return null;
+			} );
+
+			/*
+			 * Workers: segment frames, emit spots and recycle buffers.
+			 */
+
+			final List< Future< ? > > futures = new ArrayList<>( nWorkers );
+			for ( int w = 0; w < nWorkers; w++ )
+			{
+				futures.add( executor.submit( () -> {
+					while ( true )
+					{
+						final FrameBuffer< T > fb = work.take();
+						if ( fb.frame < 0 )
+							return null;
+
+						/*
+						 * After a failure, keep draining the queue so that
+						 * the reader is never blocked. Errors such as an
+						 * OutOfMemoryError are caught too, and the buffer is
+						 * always returned to the pool.
+						 */
+						try
+						{
+							if ( error.get() == null )
+								detect( fb, crop, template, frameInterval, aggregator );
+						}
+						catch ( final Throwable e )
+						{
+							error.compareAndSet( null, "Frame " + fb.frame + ": " + e );
+						}
+						finally
+						{
+							free.put( fb.buffer );
+						}
+					}
+				} ) );
+			}
+
+			reader.get();
+			for ( final Future< ? > future : futures )
+				future.get();
+			if ( error.get() != null )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + error.get();
+				return false;
+			}
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem during detection: " + e.getMessage();
+			executor.shutdownNow();
+			return false;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/**
+	 * Segments one frame and emits its spots.
+	 */
+	private void detect(
+			final FrameBuffer< T > fb,
+			final Interval crop,
+			final ImgPlus< T > template,
+			final double frameInterval,
+			final MorphoLibJMetrics.Aggregator aggregator )
+	{
+		final ImgPlus< T > input = wrap( fb.buffer, crop, template );
+		final MorphoLibJDetector< T > detector = MorphoLibJDetectorFactory.createDetector( input, settings, interval );
+		detector.setNumThreads( 1 );
+		if ( !detector.checkInput() || !detector.process() )
+			throw new IllegalStateException( detector.getErrorMessage() );
+
+		final List< Spot > frameSpots = detector.getResult();
+		for ( final Spot spot : frameSpots )
+			spot.putFeature( Spot.POSITION_T, Double.valueOf( fb.frame * frameInterval ) );
+		aggregator.accept( detector.getStats() );
+		if ( spotConsumer != null )
+		{
+			spotConsumer.accept( fb.frame, frameSpots );
+		}
+		else
+		{
+			synchronized ( spots )
+			{
+				spots.put( fb.frame, frameSpots );
+			}
+		}
+	}
+
+	/**
+	 * Wraps a frame buffer in an {@link ImgPlus} positioned at the crop
+	 * interval, with the calibration of the template.
+	 */
+	private static < T extends RealType< T > & NativeType< T > > ImgPlus< T > wrap( final Img< T > buffer, final Interval crop, final ImgPlus< T > template )
+	{
+		final RandomAccessibleInterval< T > translated = Views.translate( buffer, Intervals.minAsLongArray( crop ) );
+		final Img< T > view = ImgView.wrap( translated, buffer.factory() );
+		final CalibratedAxis[] axes = new CalibratedAxis[ template.numDimensions() ];
+		for ( int d = 0; d < axes.length; d++ )
+			axes[ d ] = template.axis( d ).copy();
+		return new ImgPlus<>( view, template.getName(), axes );
+	}
+
+	/**
+	 * Returns the aggregated processing statistics of the frames segmented by
+	 * the last call to {@link #process()}.
+	 *
+	 * @return the statistics.
+	 */
+	public MorphoLibJMetrics.Aggregator getStats()
+	{
+		return stats;
+	}
+
+	@Override
+	public SpotCollection getResult()
+	{
+		return spots;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	private static final class FrameBuffer< T >
+	{
+
+		private final int frame;
+
+		private final Img< T > buffer;
+
+		private FrameBuffer( final int frame, final Img< T > buffer )
+		{
+			this.frame = frame;
+			this.buffer = buffer;
+		}
+
+		private static < T > FrameBuffer< T > poison()
+		{
+			return new FrameBuffer<>( -1, null );
+		}
+	}
+}
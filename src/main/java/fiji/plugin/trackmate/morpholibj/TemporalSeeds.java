@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands the markers of each frame over to the detector of the next frame,
+ * in the temporal seeding mode (see {@link SeededMinima}).
+ * <p>
+ * The store is used for one run at a time. A run starts with the first
+ * frame registered, and a new run starts when a frame that was already
+ * registered in the current run is registered again: detectors are created
+ * once per frame and per run. All the frames from the first one of the run
+ * to the last one of the image are then expected, so whether a frame waits
+ * for the markers of the previous one does not depend on the order in which
+ * the detectors of the run are created, as long as the first frame comes
+ * first. Frames before it are segmented from scratch.
+ * <p>
+ * A frame that cannot be segmented must publish <code>null</code>, so that
+ * the next frame is segmented from scratch. Waits are bounded by
+ * {@link #MAX_WAIT_MINUTES} in any case. The markers of a frame are dropped
+ * once they have been taken, and are not kept at all when no frame expects
+ * them, as for the last frame of the image. Markers that are not taken
+ * within {@link #MAX_WAIT_MINUTES}, because the run ended before the next
+ * frame, are dropped at the next registration or publication.
+ */
+final class TemporalSeeds
+{
+
+	/** Maximal time a frame waits for the markers of the previous one. */
+	static final long MAX_WAIT_MINUTES = 30;
+
+	private final Map< Long, CompletableFuture< int[] > > markers = new HashMap<>();
+
+	/** First frame of the current run, per channel. */
+	private final Map< Integer, Integer > firstFrames = new HashMap<>();
+
+	/** Frames registered in the current run. */
+	private final Set< Long > registered = new HashSet<>();
+
+	/** Time at which the markers not taken yet were published. */
+	private final Map< Long, Long > published = new HashMap<>();
+
+	/**
+	 * Registers the specified frame, whose markers will be published, and
+	 * expects all the frames after it, up to the last frame of the image.
+	 * Starts a new run if the frame was already registered.
+	 *
+	 * @param channel
+	 *            the channel.
+	 * @param frame
+	 *            the frame.
+	 * @param nFrames
+	 *            the number of frames of the image.
+	 */
+	synchronized void register( final int channel, final int frame, final int nFrames )
+	{
+		expire();
+		if ( !registered.add( key( channel, frame ) ) )
+		{
+			clear();
+			registered.add( key( channel, frame ) );
+		}
+		final Integer first = firstFrames.get( channel );
+		// The last frame of the image has no next frame to seed.
+		final int end = first == null ? nFrames - 1 : first.intValue();
+		if ( first == null || frame < first )
+		{
+			firstFrames.put( channel, frame );
+			for ( int f = frame; f < end; f++ )
+				markers.putIfAbsent( key( channel, f ), new CompletableFuture<>() );
+		}
+	}
+
+	/**
+	 * Publishes the markers of the specified frame.
+	 *
+	 * @param markers
+	 *            the markers, in raster order over the segmented crop, or
+	 *            <code>null</code> if the frame could not be segmented.
+	 */
+	synchronized void publish( final int channel, final int frame, final int[] markers )
+	{
+		expire();
+		final long key = key( channel, frame );
+		final CompletableFuture< int[] > future = this.markers.get( key );
+		// Not expected: no frame will take them.
+		if ( future == null || !future.complete( markers ) )
+			return;
+		published.put( key, System.nanoTime() );
+	}
+
+	/**
+	 * Returns the markers of the specified frame, and forgets them. Waits for
+	 * them, at most {@link #MAX_WAIT_MINUTES}, if the frame is expected but
+	 * not published yet.
+	 *
+	 * @return the markers, or <code>null</code> if the frame is not expected,
+	 *         could not be segmented or took too long.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	int[] take( final int channel, final int frame ) throws InterruptedException
+	{
+		final long key = key( channel, frame );
+		final CompletableFuture< int[] > future;
+		synchronized ( this )
+		{
+			future = markers.get( key );
+		}
+		if ( future == null )
+			return null;
+
+		int[] result;
+		try
+		{
+			result = future.get( MAX_WAIT_MINUTES, TimeUnit.MINUTES );
+		}
+		catch ( final ExecutionException | TimeoutException e )
+		{
+			result = null;
+		}
+		synchronized ( this )
+		{
+			if ( markers.remove( key, future ) )
+				published.remove( key );
+		}
+		return result;
+	}
+
+	/**
+	 * Discards all the markers and ends the current run. Frames waiting for
+	 * markers are segmented from scratch.
+	 */
+	synchronized void clear()
+	{
+		for ( final CompletableFuture< int[] > future : markers.values() )
+			future.complete( null );
+		markers.clear();
+		firstFrames.clear();
+		registered.clear();
+		published.clear();
+	}
+
+	/**
+	 * Drops the markers published more than {@link #MAX_WAIT_MINUTES} ago and
+	 * not taken since.
+	 */
+	private void expire()
+	{
+		final long now = System.nanoTime();
+		final long maxAge = TimeUnit.MINUTES.toNanos( MAX_WAIT_MINUTES );
+		final Iterator< Map.Entry< Long, Long > > it = published.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Long, Long > entry = it.next();
+			if ( now - entry.getValue() > maxAge )
+			{
+				markers.remove( entry.getKey() );
+				it.remove();
+			}
+		}
+	}
+
+	private static long key( final int channel, final int frame )
+	{
+		return ( ( long ) channel << 32 ) | ( frame & 0xFFFFFFFFL );
+	}
+}
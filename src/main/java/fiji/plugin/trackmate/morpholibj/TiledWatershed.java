@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Tile-parallel version of the MorphoLibJ marker-controlled watershed.
+ * <p>
+ * The image is split along its last dimension (Y in 2D, Z in 3D) in
+ * overlapping slabs, each segmented independently by a separate thread. The
+ * labels are then stitched: each pixel receives the label computed by the
+ * tile that owns it, and the labels of two adjacent tiles are merged when
+ * they are each other's best match in the overlap band.
+ * <p>
+ * The stitching is a heuristic, and the result is an approximation of the
+ * serial segmentation, whatever the overlap: extended minima are not local,
+ * so a tile may find minima that the whole image does not have, or miss
+ * some. Objects may then be split, merged or delineated differently, mostly
+ * near the tile seams. A larger overlap makes such differences rarer. The
+ * overlap must be at least one pixel, so that there is a band in which to
+ * stitch labels.
+ */
+public class TiledWatershed
+{
+
+	private TiledWatershed()
+	{}
+
+	/**
+	 * Segments the specified image in parallel tiles.
+	 *
+	 * @param source
+	 *            the image to segment. Must be zero-min.
+	 * @param tolerance
+	 *            the tolerance (dynamic) used to find extended minima.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param backend
+	 *            the watershed implementation used to segment each tile.
+	 * @param overlap
+	 *            the overlap between tiles, in pixels. Must be at least 1.
+	 * @param numThreads
+	 *            the number of threads to use. The image is split in at most
+	 *            this many tiles.
+	 * @param stats
+	 *            the statistics in which to record the time spent in each
+	 *            stage, summed over tiles, and the memory allocated.
+	 * @return a new label image, of the same size as the source.
+	 * @throws InterruptedException
+	 *             if the computation is interrupted.
+	 * @throws ExecutionException
+	 *             if the segmentation of one tile fails.
+	 * @throws IllegalArgumentException
+	 *             if the overlap is smaller than 1.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img< IntType > segment(
+			final RandomAccessibleInterval< T > source,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final int overlap,
+			final int numThreads,
+			final MorphoLibJDetectorStats stats ) throws InterruptedException, ExecutionException
+	{
+		if ( overlap < 1 )
+			throw new IllegalArgumentException( "The overlap between tiles must be at least 1 pixel, got " + overlap + "." );
+		final int n = source.numDimensions();
+		final int axis = n - 1;
+		final long[] dims = Intervals.dimensionsAsLongArray( source );
+		final long size = dims[ axis ];
+		final int nTiles = ( int ) Math.max( 1, Math.min( numThreads, size / ( 2L * overlap + 1 ) ) );
+
+		/*
+		 * Tile layout along the split axis. Tile i owns the core [coreStart[i],
+		 * coreStart[i+1][ and is computed over [tileMin[i], tileMax[i]].
+		 */
+		final long[] coreStart = new long[ nTiles + 1 ];
+		for ( int i = 0; i <= nTiles; i++ )
+			coreStart[ i ] = i * size / nTiles;
+		final long[] tileMin = new long[ nTiles ];
+		final long[] tileMax = new long[ nTiles ];
+		for ( int i = 0; i < nTiles; i++ )
+		{
+			tileMin[ i ] = Math.max( 0, coreStart[ i ] - overlap );
+			tileMax[ i ] = Math.min( size - 1, coreStart[ i + 1 ] - 1 + overlap );
+		}
+
+		/*
+		 * Segment tiles in parallel.
+		 */
+
+		final int[][] tileLabels = new int[ nTiles ][];
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.min( numThreads, nTiles ), ScratchBufferPool.threadFactory() );
+		try
+		{
+			final List< Future< int[] > > futures = new ArrayList<>( nTiles );
+			for ( int i = 0; i < nTiles; i++ )
+			{
+				final long[] min = new long[ n ];
+				final long[] max = new long[ n ];
+				for ( int d = 0; d < n; d++ )
+					max[ d ] = dims[ d ] - 1;
+				min[ axis ] = tileMin[ i ];
+				max[ axis ] = tileMax[ i ];
+				final RandomAccessibleInterval< T > tile = Views.zeroMin( Views.interval( source, min, max ) );
+				futures.add( executor.submit( () -> segmentTile( tile, tolerance, connectivity, backend, stats ) ) );
+			}
+			for ( int i = 0; i < nTiles; i++ )
+				tileLabels[ i ] = futures.get( i ).get();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		final long start = System.nanoTime();
+
+		/*
+		 * Make labels unique across tiles.
+		 */
+
+		final int[] offsets = new int[ nTiles ];
+		int nLabels = 0;
+		for ( int i = 0; i < nTiles; i++ )
+		{
+			offsets[ i ] = nLabels;
+			int max = 0;
+			for ( final int l : tileLabels[ i ] )
+				max = Math.max( max, l );
+			nLabels += max;
+		}
+
+		/*
+		 * Copy the tile cores in the output.
+		 */
+
+		final long stride = Intervals.numElements( dims ) / size;
+		final ArrayImg< IntType, IntArray > output = ArrayImgs.ints( dims );
+		final int[] out = output.update( null ).getCurrentStorageArray();
+		stats.addBytesAllocated( 4L * out.length );
+		for ( int i = 0; i < nTiles; i++ )
+		{
+			final int[] labels = tileLabels[ i ];
+			stats.addBytesAllocated( 4L * labels.length );
+			final int offset = offsets[ i ];
+			for ( long a = coreStart[ i ]; a < coreStart[ i + 1 ]; a++ )
+			{
+				final int from = ( int ) ( ( a - tileMin[ i ] ) * stride );
+				final int to = ( int ) ( a * stride );
+				for ( int j = 0; j < stride; j++ )
+				{
+					final int l = labels[ from + j ];
+					out[ to + j ] = ( l == 0 ) ? 0 : l + offset;
+				}
+			}
+		}
+
+		/*
+		 * Merge labels at the seams.
+		 */
+
+		final int[] parent = new int[ nLabels + 1 ];
+		for ( int l = 0; l <= nLabels; l++ )
+			parent[ l ] = l;
+
+		for ( int i = 0; i < nTiles - 1; i++ )
+		{
+			final Map< Long, Integer > counts = new HashMap<>();
+			final int[] labelsA = tileLabels[ i ];
+			final int[] labelsB = tileLabels[ i + 1 ];
+			for ( long a = tileMin[ i + 1 ]; a <= tileMax[ i ]; a++ )
+			{
+				final int fromA = ( int ) ( ( a - tileMin[ i ] ) * stride );
+				final int fromB = ( int ) ( ( a - tileMin[ i + 1 ] ) * stride );
+				for ( int j = 0; j < stride; j++ )
+				{
+					final int la = labelsA[ fromA + j ];
+					final int lb = labelsB[ fromB + j ];
+					if ( la == 0 || lb == 0 )
+						continue;
+					final long key = ( ( long ) ( la + offsets[ i ] ) << 32 ) | ( lb + offsets[ i + 1 ] );
+					counts.merge( key, 1, Integer::sum );
+				}
+			}
+
+			mergeBestMatches( counts, parent );
+		}
+
+		final boolean[] present = new boolean[ nLabels + 1 ];
+		for ( int k = 0; k < out.length; k++ )
+		{
+			final int l = find( parent, out[ k ] );
+			out[ k ] = l;
+			present[ l ] = true;
+		}
+		int nMerged = 0;
+		for ( int l = 1; l <= nLabels; l++ )
+			if ( present[ l ] )
+				nMerged++;
+		stats.setLabels( nMerged );
+		stats.addTime( Stage.STITCHING, System.nanoTime() - start );
+
+		return output;
+	}
+
+	/**
+	 * Segments one tile with the specified backend.
+	 *
+	 * @return the labels of the tile, in raster order. The array may be
+	 *         returned to the {@link ScratchBufferPool} of the current thread.
+	 */
+	static < T extends RealType< T > & NativeType< T > > int[] segmentTile(
+			final RandomAccessibleInterval< T > tile,
+			final double tolerance,
+			final Connectivity connectivity,
+			final WatershedBackend backend,
+			final MorphoLibJDetectorStats stats )
+	{
+		// Tiles are small enough to be segmented on the heap.
+		if ( backend == WatershedBackend.IMGLIB2 || backend == WatershedBackend.OFF_HEAP )
+			return ImgLib2Watershed.segment( tile, tolerance, connectivity, stats ).update( null ).getCurrentStorageArray();
+		if ( backend == WatershedBackend.HIERARCHICAL )
+			return WatershedHierarchy.segment( tile, tolerance, connectivity, stats ).update( null ).getCurrentStorageArray();
+
+		final long start = System.nanoTime();
+		final ImageStack input = MorphoLibJDetector.toImageStack( tile, stats );
+		stats.addTime( Stage.COPY, System.nanoTime() - start );
+		return toArray( MorphoLibJDetector.watershed( input, tolerance, connectivity, stats ) );
+	}
+
+	/**
+	 * Copies the specified label stack to a new array, in raster order.
+	 */
+	static int[] toArray( final ImageStack stack )
+	{
+		final int planeSize = stack.getWidth() * stack.getHeight();
+		final int[] arr = new int[ planeSize * stack.getSize() ];
+		for ( int z = 0; z < stack.getSize(); z++ )
+		{
+			final ImageProcessor ip = stack.getProcessor( z + 1 );
+			final int offset = z * planeSize;
+			for ( int i = 0; i < planeSize; i++ )
+				arr[ offset + i ] = ( int ) ip.getf( i );
+		}
+		return arr;
+	}
+
+	/**
+	 * Merges the labels that are each other's best match, given the number
+	 * of pixels for each pair of labels. Pairs are encoded as longs, with the
+	 * first label in the high 32 bits.
+	 */
+	static void mergeBestMatches( final Map< Long, Integer > counts, final int[] parent )
+	{
+		// Best match of each label, in both directions.
+		final Map< Integer, long[] > bestForA = new HashMap<>();
+		final Map< Integer, long[] > bestForB = new HashMap<>();
+		for ( final Map.Entry< Long, Integer > entry : counts.entrySet() )
+		{
+			final int la = ( int ) ( entry.getKey() >>> 32 );
+			final int lb = ( int ) ( entry.getKey() & 0xFFFFFFFFL );
+			final int count = entry.getValue();
+			final long[] ba = bestForA.get( la );
+			if ( ba == null || count > ba[ 1 ] )
+				bestForA.put( la, new long[] { lb, count } );
+			final long[] bb = bestForB.get( lb );
+			if ( bb == null || count > bb[ 1 ] )
+				bestForB.put( lb, new long[] { la, count } );
+		}
+		for ( final Map.Entry< Integer, long[] > entry : bestForA.entrySet() )
+		{
+			final int la = entry.getKey();
+			final int lb = ( int ) entry.getValue()[ 0 ];
+			if ( bestForB.get( lb )[ 0 ] == la )
+				union( parent, la, lb );
+		}
+	}
+
+	static int find( final int[] parent, int l )
+	{
+		while ( parent[ l ] != l )
+		{
+			parent[ l ] = parent[ parent[ l ] ];
+			l = parent[ l ];
+		}
+		return l;
+	}
+
+	private static void union( final int[] parent, final int a, final int b )
+	{
+		final int ra = find( parent, a );
+		final int rb = find( parent, b );
+		if ( ra < rb )
+			parent[ rb ] = ra;
+		else if ( rb < ra )
+			parent[ ra ] = rb;
+	}
+}
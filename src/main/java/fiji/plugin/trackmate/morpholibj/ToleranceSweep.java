@@ -0,0 +1,348 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_BACKEND;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_BLOCK_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_CONNECTIVITY;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MARGIN;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MAX_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MIN_MEAN_INTENSITY;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_MIN_SIZE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_PER_SLICE;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_PREPROCESSING;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_SMOOTHING_SIGMA;
+import static fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorFactory.KEY_TOLERANCE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Segments one frame at several tolerances.
+ * <p>
+ * The input copy, filtered if a preprocessing is set, the pixel levels and
+ * the dynamics of the regional minima are computed once and shared by all
+ * the tolerances (see {@link PreviewCache}). Each tolerance then only
+ * requires a threshold on the dynamics and a flooding, so a sweep over many
+ * tolerances costs little more than a single detection.
+ * <p>
+ * The object counts and sizes, and the spots if requested, are all derived
+ * from the same label image for each tolerance, and the size and intensity
+ * filters of the detector are applied to them. The per-slice and block-wise
+ * modes and the off-heap and hierarchical backends segment the image
+ * differently, and cannot be swept.
+ */
+public class ToleranceSweep
+{
+
+	private ToleranceSweep()
+	{}
+
+	/**
+	 * The result of the segmentation at one tolerance.
+	 */
+	public static class Result
+	{
+
+		private final double tolerance;
+
+		private final double[] sizes;
+
+		private final List< Spot > spots;
+
+		private Result( final double tolerance, final double[] sizes, final List< Spot > spots )
+		{
+			this.tolerance = tolerance;
+			this.sizes = sizes;
+			this.spots = spots;
+		}
+
+		/**
+		 * Returns the tolerance used.
+		 *
+		 * @return the tolerance.
+		 */
+		public double getTolerance()
+		{
+			return tolerance;
+		}
+
+		/**
+		 * Returns the number of objects found in the detection interval.
+		 *
+		 * @return the number of objects.
+		 */
+		public int getCount()
+		{
+			return sizes.length;
+		}
+
+		/**
+		 * Returns the sizes of the objects found in the detection interval,
+		 * in physical units: areas in 2D and volumes in 3D. Objects crossing
+		 * the interval border are truncated to the interval.
+		 *
+		 * @return the sizes, sorted in increasing order.
+		 */
+		public double[] getSizes()
+		{
+			return sizes;
+		}
+
+		/**
+		 * Returns the median size of the objects, or <code>NaN</code> if no
+		 * object was found.
+		 *
+		 * @return the median size.
+		 */
+		public double getMedianSize()
+		{
+			if ( sizes.length == 0 )
+				return Double.NaN;
+			final int mid = sizes.length / 2;
+			return ( sizes.length % 2 == 1 ) ? sizes[ mid ] : 0.5 * ( sizes[ mid - 1 ] + sizes[ mid ] );
+		}
+
+		/**
+		 * Returns the spots found, or <code>null</code> if they were not
+		 * requested.
+		 *
+		 * @return the spots.
+		 */
+		public List< Spot > getSpots()
+		{
+			return spots;
+		}
+	}
+
+	/**
+	 * Segments one frame of the specified image at each of the specified
+	 * tolerances. The tiled mode is ignored: the sweep gives the result of
+	 * the serial segmentation.
+	 *
+	 * @param img
+	 *            the image, possibly multi-channel and multi time-points.
+	 * @param settings
+	 *            the detector settings. The tolerance they contain is
+	 *            ignored.
+	 * @param interval
+	 *            the interval in which to detect objects.
+	 * @param frame
+	 *            the time-point to segment.
+	 * @param tolerances
+	 *            the tolerances to test.
+	 * @param keepSpots
+	 *            if <code>true</code>, the spots are also created for each
+	 *            tolerance. This is the slowest part of a detection.
+	 * @return the results, one per tolerance, in the same order.
+	 * @throws IllegalArgumentException
+	 *             if the settings use a mode or a backend that cannot be
+	 *             swept.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< Result > run(
+			final ImgPlus< T > img,
+			final Map< String, Object > settings,
+			final Interval interval,
+			final int frame,
+			final double[] tolerances,
+			final boolean keepSpots )
+	{
+		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
+		final ImgPlus< T > input = TMUtils.hyperSlice( img, channel, frame );
+		checkSupported( settings, input.numDimensions() );
+		final Interval squeezed = DetectionUtils.squeeze( interval );
+		final int margin = Math.max( 0, ( Integer ) settings.getOrDefault( KEY_MARGIN, MorphoLibJDetectorFactory.DEFAULT_MARGIN ) );
+		final Interval crop = Intervals.intersect( Intervals.expand( squeezed, margin ), input );
+		final RandomAccessibleInterval< T > source = Views.zeroMin( Views.interval( input, crop ) );
+
+		final Preprocessing preprocessing = Preprocessing.valueFor( ( String ) settings.getOrDefault( KEY_PREPROCESSING, MorphoLibJDetectorFactory.DEFAULT_PREPROCESSING ) );
+		if ( preprocessing == Preprocessing.NONE )
+			return sweep( source, input, settings, interval, crop, channel, frame, Preprocessor.describe( preprocessing, 0. ), tolerances, keepSpots );
+
+		// Filter the crop once for all tolerances.
+		final double sigma = ( Double ) settings.getOrDefault( KEY_SMOOTHING_SIGMA, MorphoLibJDetectorFactory.DEFAULT_SMOOTHING_SIGMA );
+		final Connectivity connectivity = Connectivity.valueFor( ( Integer ) settings.get( KEY_CONNECTIVITY ) );
+		final PlanarImg< FloatType, FloatArray > filtered;
+		try
+		{
+			filtered = Preprocessor.apply( source, preprocessing,
+					Preprocessor.toPixels( sigma, TMUtils.getSpatialCalibration( input ), source.numDimensions() ),
+					connectivity, Runtime.getRuntime().availableProcessors(), new MorphoLibJDetectorStats() );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		final List< Result > results = sweep( filtered, input, settings, interval, crop, channel, frame, Preprocessor.describe( preprocessing, sigma ), tolerances, keepSpots );
+		Preprocessor.release( filtered );
+		return results;
+	}
+
+	/**
+	 * Throws an {@link IllegalArgumentException} if the settings use a mode
+	 * or a backend whose labels the {@link PreviewCache} does not reproduce.
+	 */
+	private static void checkSupported( final Map< String, Object > settings, final int nDims )
+	{
+		final WatershedBackend backend = WatershedBackend.valueFor( ( String ) settings.getOrDefault( KEY_BACKEND, MorphoLibJDetectorFactory.DEFAULT_BACKEND ) );
+		if ( backend == WatershedBackend.OFF_HEAP || backend == WatershedBackend.HIERARCHICAL )
+			throw new IllegalArgumentException( "The tolerance sweep does not support the " + backend + " backend." );
+		if ( ( Integer ) settings.getOrDefault( KEY_BLOCK_SIZE, MorphoLibJDetectorFactory.DEFAULT_BLOCK_SIZE ) > 0 )
+			throw new IllegalArgumentException( "The tolerance sweep does not support the block-wise mode." );
+		if ( nDims == 3 && ( boolean ) settings.getOrDefault( KEY_PER_SLICE, MorphoLibJDetectorFactory.DEFAULT_PER_SLICE ) )
+			throw new IllegalArgumentException( "The tolerance sweep does not support the per-slice mode." );
+	}
+
+	/**
+	 * Segments the specified crop at each tolerance.
+	 *
+	 * @param source
+	 *            the crop to segment, possibly filtered, with a zero min.
+	 * @param input
+	 *            the single-channel, single time-point image the crop comes
+	 *            from.
+	 * @param preprocessing
+	 *            a description of the filter applied to the crop.
+	 */
+	private static < T extends RealType< T > & NativeType< T >, S extends RealType< S > & NativeType< S > > List< Result > sweep(
+			final RandomAccessibleInterval< S > source,
+			final ImgPlus< T > input,
+			final Map< String, Object > settings,
+			final Interval interval,
+			final Interval crop,
+			final int channel,
+			final int frame,
+			final String preprocessing,
+			final double[] tolerances,
+			final boolean keepSpots )
+	{
+		final Interval squeezed = DetectionUtils.squeeze( interval );
+		final Connectivity connectivity = Connectivity.valueFor( ( Integer ) settings.get( KEY_CONNECTIVITY ) );
+		final WatershedBackend backend = WatershedBackend.valueFor( ( String ) settings.getOrDefault( KEY_BACKEND, MorphoLibJDetectorFactory.DEFAULT_BACKEND ) );
+
+		// Physical size of one pixel.
+		final double[] calibration = TMUtils.getSpatialCalibration( input );
+		double pixelSize = 1.;
+		for ( int d = 0; d < squeezed.numDimensions(); d++ )
+			pixelSize *= calibration[ d ];
+
+		// Detection interval, in the coordinates of the crop.
+		final long[] min = new long[ squeezed.numDimensions() ];
+		final long[] max = new long[ squeezed.numDimensions() ];
+		for ( int d = 0; d < min.length; d++ )
+		{
+			min[ d ] = squeezed.min( d ) - crop.min( d );
+			max[ d ] = squeezed.max( d ) - crop.min( d );
+		}
+		final RandomAccessibleInterval< T > intensity = Views.zeroMin( Views.interval( input, crop ) );
+		final LabelFilter filter = new LabelFilter(
+				( Integer ) settings.getOrDefault( KEY_MIN_SIZE, MorphoLibJDetectorFactory.DEFAULT_MIN_SIZE ),
+				( Integer ) settings.getOrDefault( KEY_MAX_SIZE, MorphoLibJDetectorFactory.DEFAULT_MAX_SIZE ),
+				( Double ) settings.getOrDefault( KEY_MIN_MEAN_INTENSITY, MorphoLibJDetectorFactory.DEFAULT_MIN_MEAN_INTENSITY ) );
+
+		final PreviewCache cache = new PreviewCache();
+		final List< Result > results = new ArrayList<>( tolerances.length );
+		for ( final double tolerance : tolerances )
+		{
+			final MorphoLibJDetectorStats stats = new MorphoLibJDetectorStats();
+			final ArrayImg< IntType, IntArray > labels = cache.segment( source, crop, channel, frame, preprocessing, tolerance, connectivity, backend, stats );
+			final double[] sizes = sizes( labels, intensity, filter, stats.getMarkers(), min, max, pixelSize );
+
+			List< Spot > spots = null;
+			if ( keepSpots )
+			{
+				// Spots of the same labels, without segmenting again.
+				final Map< String, Object > s = new HashMap<>( settings );
+				s.put( KEY_TOLERANCE, tolerance );
+				final MorphoLibJDetector< T > detector = MorphoLibJDetectorFactory.createDetector( input, s, interval );
+				if ( !detector.checkInput() || !detector.processLabels( labels, crop ) )
+					throw new IllegalStateException( detector.getErrorMessage() );
+				spots = detector.getResult();
+			}
+			results.add( new Result( tolerance, sizes, spots ) );
+		}
+		cache.clear();
+		return results;
+	}
+
+	/**
+	 * Returns the sorted sizes of the labels in the specified interval that
+	 * are accepted by the filter.
+	 */
+	private static < T extends RealType< T > > double[] sizes(
+			final ArrayImg< IntType, IntArray > labels,
+			final RandomAccessibleInterval< T > intensity,
+			final LabelFilter filter,
+			final int nLabels,
+			final long[] min,
+			final long[] max,
+			final double pixelSize )
+	{
+		final boolean useIntensity = filter.usesIntensity();
+		final long[] counts = new long[ nLabels + 1 ];
+		final double[] sums = new double[ useIntensity ? nLabels + 1 : 0 ];
+		final Cursor< IntType > cursor = Views.flatIterable( Views.interval( labels, min, max ) ).cursor();
+		final Cursor< T > values = useIntensity ? Views.flatIterable( Views.interval( intensity, min, max ) ).cursor() : null;
+		while ( cursor.hasNext() )
+		{
+			final int label = cursor.next().get();
+			counts[ label ]++;
+			if ( useIntensity )
+				sums[ label ] += values.next().getRealDouble();
+		}
+
+		int n = 0;
+		for ( int l = 1; l <= nLabels; l++ )
+			if ( filter.accept( counts[ l ], useIntensity ? sums[ l ] : 0. ) )
+				n++;
+		final double[] sizes = new double[ n ];
+		int i = 0;
+		for ( int l = 1; l <= nLabels; l++ )
+			if ( filter.accept( counts[ l ], useIntensity ? sums[ l ] : 0. ) )
+				sizes[ i++ ] = counts[ l ] * pixelSize;
+		Arrays.sort( sizes );
+		return sizes;
+	}
+}
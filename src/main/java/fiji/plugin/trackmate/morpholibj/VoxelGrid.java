@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import net.imglib2.Dimensions;
+
+/**
+ * Geometry of a 2D or 3D image stored in a flat array in raster order (X
+ * fastest, then Y, then Z), and of the neighborhood of its pixels for a
+ * given {@link Connectivity}.
+ * <p>
+ * In 2D, straight connectivity is 4-connectivity and diagonal connectivity
+ * is 8-connectivity.
+ */
+final class VoxelGrid
+{
+
+	final int width;
+
+	final int height;
+
+	final int depth;
+
+	final int size;
+
+	/** Neighbor displacements along X, in raster order. */
+	final int[] dx;
+
+	/** Neighbor displacements along Y, in raster order. */
+	final int[] dy;
+
+	/** Neighbor displacements along Z, in raster order. */
+	final int[] dz;
+
+	/** Neighbor offsets in the flat array, in raster order. */
+	final int[] offsets;
+
+	VoxelGrid( final Dimensions dims, final Connectivity connectivity )
+	{
+		this.width = ( int ) dims.dimension( 0 );
+		this.height = ( int ) dims.dimension( 1 );
+		this.depth = ( dims.numDimensions() > 2 ) ? ( int ) dims.dimension( 2 ) : 1;
+		final long n = ( long ) width * height * depth;
+		if ( n > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Image is too large to be processed as a single block: " + n + " pixels." );
+		this.size = ( int ) n;
+
+		final int zr = ( depth > 1 ) ? 1 : 0;
+		final int nMax = 27;
+		final int[] tdx = new int[ nMax ];
+		final int[] tdy = new int[ nMax ];
+		final int[] tdz = new int[ nMax ];
+		int k = 0;
+		for ( int z = -zr; z <= zr; z++ )
+		{
+			for ( int y = -1; y <= 1; y++ )
+			{
+				for ( int x = -1; x <= 1; x++ )
+				{
+					final int manhattan = Math.abs( x ) + Math.abs( y ) + Math.abs( z );
+					if ( manhattan == 0 )
+						continue;
+					if ( connectivity == Connectivity.STRAIGHT && manhattan > 1 )
+						continue;
+					tdx[ k ] = x;
+					tdy[ k ] = y;
+					tdz[ k ] = z;
+					k++;
+				}
+			}
+		}
+		this.dx = new int[ k ];
+		this.dy = new int[ k ];
+		this.dz = new int[ k ];
+		this.offsets = new int[ k ];
+		for ( int i = 0; i < k; i++ )
+		{
+			dx[ i ] = tdx[ i ];
+			dy[ i ] = tdy[ i ];
+			dz[ i ] = tdz[ i ];
+			offsets[ i ] = tdx[ i ] + width * ( tdy[ i ] + height * tdz[ i ] );
+		}
+	}
+
+	int x( final int index )
+	{
+		return index % width;
+	}
+
+	int y( final int index )
+	{
+		return ( index / width ) % height;
+	}
+
+	int z( final int index )
+	{
+		return index / ( width * height );
+	}
+
+	/**
+	 * Returns <code>true</code> if the k-th neighbor of the pixel at (x, y, z)
+	 * is inside the image.
+	 */
+	boolean isInside( final int x, final int y, final int z, final int k )
+	{
+		final int xn = x + dx[ k ];
+		final int yn = y + dy[ k ];
+		final int zn = z + dz[ k ];
+		return xn >= 0 && xn < width && yn >= 0 && yn < height && zn >= 0 && zn < depth;
+	}
+}
@@ -0,0 +1,51 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+public enum WatershedBackend
+{
+	MORPHOLIBJ( "MorphoLibJ" ),
+	IMGLIB2( "ImgLib2" ),
+	HIERARCHICAL( "Hierarchical" ),
+	OFF_HEAP( "ImgLib2, off-heap" );
+
+	private final String name;
+
+	WatershedBackend( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	public static WatershedBackend valueFor( final String key )
+	{
+		for ( final WatershedBackend backend : values() )
+			if ( backend.name().equals( key ) )
+				return backend;
+		return MORPHOLIBJ;
+	}
+}
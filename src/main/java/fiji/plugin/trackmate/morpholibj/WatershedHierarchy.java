@@ -0,0 +1,567 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.IntToDoubleFunction;
+
+import fiji.plugin.trackmate.morpholibj.MorphoLibJDetectorStats.Stage;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+
+/**
+ * The watershed hierarchy of an image: the basins of the watershed from all
+ * its regional minima, and the tree of their merges by dynamics.
+ * <p>
+ * The hierarchy is built once, with one flooding. The basins are then
+ * merged by increasing pass value, as in Kruskal's algorithm. Each merge
+ * is weighted by the dynamic of the shallower of the two minima that meet.
+ * The flat segmentation for a tolerance <code>h</code> keeps the merges of
+ * dynamic lower than or equal to <code>h</code>. It is computed from the
+ * hierarchy in linear time, without flooding again. This gives the same
+ * basins as flooding from the extended minima of tolerance <code>h</code>,
+ * except possibly for pixels at exactly equal levels. A different tolerance
+ * can also be used for each minimum.
+ * <p>
+ * Hierarchies are stored in primitive arrays: the basin label of each pixel
+ * and four entries per merge. Built hierarchies are kept in a cache of soft
+ * references, keyed by a SHA-256 digest of the content of the image, so that
+ * a movie can be detected again at a new tolerance without being flooded
+ * again. The cache is bounded by the size of the hierarchies it holds, and
+ * evicts the least recently used ones first.
+ */
+public class WatershedHierarchy
+{
+
+	/** Maximal number of bytes of the hierarchies kept in the cache. */
+	private static volatile long maxCacheBytes = 1L << 30;
+
+	/** Cached hierarchies, in access order, with their size in bytes. */
+	private static final LinkedHashMap< String, CacheEntry > CACHE = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/** Number of bytes of the hierarchies in the cache. */
+	private static long cacheBytes;
+
+	private final long[] dimensions;
+
+	/** Basin of each pixel, from 1 to nBasins, in raster order. */
+	private final int[] basins;
+
+	private final int nBasins;
+
+	/** The two adjacent basins joined by each merge, in merge order. */
+	private final int[] mergeA;
+
+	private final int[] mergeB;
+
+	/** The basin of the minimum that dies at each merge. */
+	private final int[] mergeDying;
+
+	/** The dynamic of the minimum that dies at each merge. */
+	private final float[] mergeDynamic;
+
+	private WatershedHierarchy( final long[] dimensions, final int[] basins, final int nBasins, final int[] mergeA, final int[] mergeB, final int[] mergeDying, final float[] mergeDynamic )
+	{
+		this.dimensions = dimensions;
+		this.basins = basins;
+		this.nBasins = nBasins;
+		this.mergeA = mergeA;
+		this.mergeB = mergeB;
+		this.mergeDying = mergeDying;
+		this.mergeDynamic = mergeDynamic;
+	}
+
+	/**
+	 * Segments the specified 2D or 3D image, using the cached hierarchy of
+	 * the image if there is one, and building it otherwise.
+	 *
+	 * @param source
+	 *            the image to segment.
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the markers.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return a new label image, of the same size as the source. Its storage
+	 *         array is borrowed from the {@link ScratchBufferPool} of the
+	 *         current thread.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ArrayImg< IntType, IntArray > segment(
+			final RandomAccessibleInterval< T > source,
+			final double tolerance,
+			final Connectivity connectivity,
+			final MorphoLibJDetectorStats stats )
+	{
+		final WatershedHierarchy hierarchy = get( source, connectivity, stats );
+		final long start = System.nanoTime();
+		final int[] labels = hierarchy.cut( tolerance, stats );
+		stats.addTime( Stage.HIERARCHY, System.nanoTime() - start );
+		return ArrayImgs.ints( labels, hierarchy.dimensions );
+	}
+
+	/**
+	 * Returns the hierarchy of the specified image, from the cache if
+	 * possible.
+	 *
+	 * @param source
+	 *            the image.
+	 * @param connectivity
+	 *            the connectivity to use.
+	 * @param stats
+	 *            the statistics to update.
+	 * @return the hierarchy.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > WatershedHierarchy get(
+			final RandomAccessibleInterval< T > source,
+			final Connectivity connectivity,
+			final MorphoLibJDetectorStats stats )
+	{
+		final long t0 = System.nanoTime();
+		final VoxelGrid grid = new VoxelGrid( source, connectivity );
+		final ScratchBufferPool pool = ScratchBufferPool.get();
+		final float[] values = pool.floats( grid.size, stats );
+		ImgLib2Watershed.read( source, values );
+		final long t1 = System.nanoTime();
+		stats.addTime( Stage.COPY, t1 - t0 );
+		final String key = key( Intervals.dimensionsAsLongArray( source ), connectivity, values, grid.size );
+		stats.addTime( Stage.HASHING, System.nanoTime() - t1 );
+
+		WatershedHierarchy hierarchy = null;
+		synchronized ( CACHE )
+		{
+			final CacheEntry entry = CACHE.get( key );
+			if ( entry != null )
+			{
+				hierarchy = entry.get();
+				if ( hierarchy == null )
+					remove( key );
+			}
+		}
+		if ( hierarchy == null )
+		{
+			hierarchy = build( values, grid, Intervals.dimensionsAsLongArray( source ), stats );
+			put( key, hierarchy );
+		}
+		pool.release( values );
+		return hierarchy;
+	}
+
+	/**
+	 * Empties the cache of hierarchies.
+	 */
+	public static void clearCache()
+	{
+		synchronized ( CACHE )
+		{
+			CACHE.clear();
+			cacheBytes = 0;
+		}
+	}
+
+	/**
+	 * Sets the maximal number of bytes of the hierarchies kept in the cache.
+	 * Defaults to 1 GB. Hierarchies are also released by the garbage
+	 * collector when memory runs low.
+	 *
+	 * @param bytes
+	 *            the number of bytes. Use 0 to disable the cache.
+	 */
+	public static void setMaxCacheBytes( final long bytes )
+	{
+		maxCacheBytes = bytes;
+		synchronized ( CACHE )
+		{
+			evict();
+		}
+	}
+
+	private static void put( final String key, final WatershedHierarchy hierarchy )
+	{
+		final long bytes = hierarchy.bytes();
+		synchronized ( CACHE )
+		{
+			remove( key );
+			if ( bytes > maxCacheBytes )
+				return;
+			CACHE.put( key, new CacheEntry( hierarchy, bytes ) );
+			cacheBytes += bytes;
+			evict();
+		}
+	}
+
+	private static void remove( final String key )
+	{
+		final CacheEntry entry = CACHE.remove( key );
+		if ( entry != null )
+			cacheBytes -= entry.bytes;
+	}
+
+	/**
+	 * Drops the entries cleared by the garbage collector, then the least
+	 * recently used ones until the cache fits in its budget.
+	 */
+	private static void evict()
+	{
+		final Iterator< CacheEntry > it = CACHE.values().iterator();
+		while ( it.hasNext() )
+		{
+			final CacheEntry entry = it.next();
+			if ( entry.get() == null )
+			{
+				it.remove();
+				cacheBytes -= entry.bytes;
+			}
+		}
+		final Iterator< CacheEntry > eldest = CACHE.values().iterator();
+		while ( cacheBytes > maxCacheBytes && eldest.hasNext() )
+		{
+			cacheBytes -= eldest.next().bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Returns the cache key of the specified image: a SHA-256 digest of its
+	 * dimensions, of the connectivity and of the first <code>size</code>
+	 * pixel values.
+	 */
+	private static String key( final long[] dimensions, final Connectivity connectivity, final float[] values, final int size )
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		digest.update( connectivity.name().getBytes( StandardCharsets.UTF_8 ) );
+		final ByteBuffer buffer = ByteBuffer.allocate( 4 * 8192 );
+		for ( final long d : dimensions )
+			buffer.putLong( d );
+		for ( int i = 0; i < size; i++ )
+		{
+			if ( buffer.remaining() < 4 )
+			{
+				buffer.flip();
+				digest.update( buffer );
+				buffer.clear();
+			}
+			buffer.putFloat( values[ i ] );
+		}
+		buffer.flip();
+		digest.update( buffer );
+
+		final StringBuilder str = new StringBuilder();
+		for ( final byte b : digest.digest() )
+			str.append( String.format( "%02x", b ) );
+		return str.toString();
+	}
+
+	/**
+	 * Returns the number of bytes of the arrays of this hierarchy.
+	 */
+	private long bytes()
+	{
+		return 4L * basins.length + 16L * mergeA.length;
+	}
+
+	/**
+	 * Returns the number of basins, that is, of regional minima.
+	 *
+	 * @return the number of basins.
+	 */
+	public int numBasins()
+	{
+		return nBasins;
+	}
+
+	/**
+	 * Returns the basin of each pixel, in raster order. Basins are labeled
+	 * from 1, in raster order of the first pixel of their minimum.
+	 *
+	 * @return a new array.
+	 */
+	public int[] getBasins()
+	{
+		return basins.clone();
+	}
+
+	/**
+	 * Returns the flat segmentation for the specified tolerance.
+	 *
+	 * @param tolerance
+	 *            the tolerance (dynamic) of the markers.
+	 * @return a new label array, in raster order. Labels start at 1 and are
+	 *         assigned in raster order.
+	 */
+	public int[] cut( final double tolerance )
+	{
+		return cut( b -> tolerance, new MorphoLibJDetectorStats() );
+	}
+
+	/**
+	 * Returns the flat segmentation for a local tolerance. Each merge is kept
+	 * if the dynamic of the minimum that dies is lower than or equal to the
+	 * tolerance of this minimum.
+	 *
+	 * @param tolerance
+	 *            the tolerance of each minimum, given the label of its basin,
+	 *            from 1 to {@link #numBasins()}, as returned by
+	 *            {@link #getBasins()}.
+	 * @return a new label array, in raster order. Labels start at 1 and are
+	 *         assigned in raster order.
+	 */
+	public int[] cut( final IntToDoubleFunction tolerance )
+	{
+		return cut( tolerance, new MorphoLibJDetectorStats() );
+	}
+
+	int[] cut( final double tolerance, final MorphoLibJDetectorStats stats )
+	{
+		return cut( b -> tolerance, stats );
+	}
+
+	int[] cut( final IntToDoubleFunction tolerance, final MorphoLibJDetectorStats stats )
+	{
+		final int[] parent = new int[ nBasins + 1 ];
+		for ( int b = 0; b <= nBasins; b++ )
+			parent[ b ] = b;
+		int nLabels = nBasins;
+		for ( int m = 0; m < mergeA.length; m++ )
+		{
+			if ( mergeDynamic[ m ] > tolerance.applyAsDouble( mergeDying[ m ] ) )
+				continue;
+			final int ra = find( parent, mergeA[ m ] );
+			final int rb = find( parent, mergeB[ m ] );
+			if ( ra != rb )
+			{
+				parent[ Math.max( ra, rb ) ] = Math.min( ra, rb );
+				nLabels--;
+			}
+		}
+
+		// Relabel in raster order.
+		final int[] lut = new int[ nBasins + 1 ];
+		int next = 0;
+		final int[] labels = ScratchBufferPool.get().ints( basins.length, false, stats );
+		for ( int p = 0; p < basins.length; p++ )
+		{
+			final int r = find( parent, basins[ p ] );
+			if ( lut[ r ] == 0 )
+				lut[ r ] = ++next;
+			labels[ p ] = lut[ r ];
+		}
+		stats.addMarkers( nLabels );
+		return labels;
+	}
+
+	/**
+	 * Builds the hierarchy of the specified image.
+	 */
+	static WatershedHierarchy build( final float[] values, final VoxelGrid grid, final long[] dimensions, final MorphoLibJDetectorStats stats )
+	{
+		final long t0 = System.nanoTime();
+
+		// Basins of all the regional minima.
+		final int[] basins = new int[ grid.size ];
+		stats.addBytesAllocated( 4L * grid.size );
+		final int nBasins = FusedMinima.labelRegionalMinima( values, basins, grid );
+		final long t1 = System.nanoTime();
+		stats.addTime( Stage.MINIMA, t1 - t0 );
+		ImgLib2Watershed.flood( values, basins, grid, stats );
+		final long t2 = System.nanoTime();
+		stats.addTime( Stage.FLOODING, t2 - t1 );
+
+		/*
+		 * Lowest pass between adjacent basins. Each pair of basins is stored
+		 * once, in an open-addressing hash table.
+		 */
+
+		final float[] minima = new float[ nBasins + 1 ];
+		Arrays.fill( minima, Float.POSITIVE_INFINITY );
+		int capacity = Integer.highestOneBit( Math.max( 16, 8 * nBasins ) ) << 1;
+		long[] keys = new long[ capacity ];
+		float[] passes = new float[ capacity ];
+		int nEdges = 0;
+		final int nk = grid.offsets.length;
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			final int a = basins[ p ];
+			minima[ a ] = Math.min( minima[ a ], values[ p ] );
+			final int x = grid.x( p );
+			final int y = grid.y( p );
+			final int z = grid.z( p );
+			for ( int k = 0; k < nk; k++ )
+			{
+				if ( grid.offsets[ k ] <= 0 || !grid.isInside( x, y, z, k ) )
+					continue;
+				final int q = p + grid.offsets[ k ];
+				final int b = basins[ q ];
+				if ( a == b )
+					continue;
+				final float pass = Math.max( values[ p ], values[ q ] );
+				final long key = ( ( long ) Math.min( a, b ) << 32 ) | Math.max( a, b );
+				int slot = slot( key, capacity );
+				while ( keys[ slot ] != 0 && keys[ slot ] != key )
+					slot = ( slot + 1 ) & ( capacity - 1 );
+				if ( keys[ slot ] == key )
+				{
+					passes[ slot ] = Math.min( passes[ slot ], pass );
+					continue;
+				}
+				keys[ slot ] = key;
+				passes[ slot ] = pass;
+				nEdges++;
+
+				// Grow the table when it is half full.
+				if ( 2 * nEdges > capacity )
+				{
+					final long[] oldKeys = keys;
+					final float[] oldPasses = passes;
+					capacity *= 2;
+					keys = new long[ capacity ];
+					passes = new float[ capacity ];
+					for ( int s = 0; s < oldKeys.length; s++ )
+					{
+						if ( oldKeys[ s ] == 0 )
+							continue;
+						int t = slot( oldKeys[ s ], capacity );
+						while ( keys[ t ] != 0 )
+							t = ( t + 1 ) & ( capacity - 1 );
+						keys[ t ] = oldKeys[ s ];
+						passes[ t ] = oldPasses[ s ];
+					}
+				}
+			}
+		}
+
+		/*
+		 * Sort the edges by pass value. The pass is mapped to an int with the
+		 * same order, and packed with the slot of the edge.
+		 */
+
+		final long[] order = new long[ nEdges ];
+		int e = 0;
+		for ( int s = 0; s < capacity; s++ )
+		{
+			if ( keys[ s ] == 0 )
+				continue;
+			int bits = Float.floatToIntBits( passes[ s ] );
+			bits ^= ( bits >> 31 ) & 0x7fffffff;
+			order[ e++ ] = ( ( long ) bits << 32 ) | s;
+		}
+		Arrays.sort( order );
+
+		/*
+		 * Kruskal: merge the components by increasing pass. The shallower
+		 * minimum dies, with a dynamic equal to the pass minus its value.
+		 */
+
+		final int[] parent = new int[ nBasins + 1 ];
+		final int[] deepest = new int[ nBasins + 1 ];
+		for ( int b = 0; b <= nBasins; b++ )
+		{
+			parent[ b ] = b;
+			deepest[ b ] = b;
+		}
+		final int nMerges = Math.max( 0, nBasins - 1 );
+		final int[] mergeA = new int[ nMerges ];
+		final int[] mergeB = new int[ nMerges ];
+		final int[] mergeDying = new int[ nMerges ];
+		final float[] mergeDynamic = new float[ nMerges ];
+		int m = 0;
+		for ( final long entry : order )
+		{
+			final int s = ( int ) entry;
+			final int a = ( int ) ( keys[ s ] >>> 32 );
+			final int b = ( int ) keys[ s ];
+			final int ra = find( parent, a );
+			final int rb = find( parent, b );
+			if ( ra == rb )
+				continue;
+
+			final int da = deepest[ ra ];
+			final int db = deepest[ rb ];
+			final boolean aDies = minima[ da ] > minima[ db ] || ( minima[ da ] == minima[ db ] && da > db );
+			mergeA[ m ] = a;
+			mergeB[ m ] = b;
+			mergeDying[ m ] = aDies ? da : db;
+			mergeDynamic[ m ] = passes[ s ] - minima[ aDies ? da : db ];
+			m++;
+			parent[ ra ] = rb;
+			deepest[ rb ] = aDies ? db : da;
+		}
+		stats.addTime( Stage.HIERARCHY, System.nanoTime() - t2 );
+
+		return new WatershedHierarchy( dimensions, basins, nBasins,
+				Arrays.copyOf( mergeA, m ), Arrays.copyOf( mergeB, m ),
+				Arrays.copyOf( mergeDying, m ), Arrays.copyOf( mergeDynamic, m ) );
+	}
+
+	private static int slot( final long key, final int capacity )
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return ( int ) h & ( capacity - 1 );
+	}
+
+	private static int find( final int[] parent, int p )
+	{
+		while ( parent[ p ] != p )
+		{
+			parent[ p ] = parent[ parent[ p ] ];
+			p = parent[ p ];
+		}
+		return p;
+	}
+
+	/**
+	 * A soft reference to a cached hierarchy, with its size in bytes.
+	 */
+	private static final class CacheEntry extends SoftReference< WatershedHierarchy >
+	{
+
+		private final long bytes;
+
+		private CacheEntry( final WatershedHierarchy hierarchy, final long bytes )
+		{
+			super( hierarchy );
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import ij.ImageStack;
+import net.imagej.ImgPlus;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+
+/**
+ * Utilities to expose the planes of an ImgLib2 image as an ImageJ
+ * {@link ImageStack} without copying them.
+ * <p>
+ * This is possible when the image is a view of a {@link PlanarImg} (this
+ * includes images wrapped from regular {@link ij.ImagePlus}es) or of a 2D
+ * {@link ArrayImg}, that covers whole XY planes, and if the pixel type is
+ * one of the types ImageJ supports natively: {@link UnsignedByteType},
+ * {@link UnsignedShortType} or {@link FloatType}.
+ */
+public class ZeroCopyStacks
+{
+
+	private ZeroCopyStacks()
+	{}
+
+	/**
+	 * Returns an {@link ImageStack} that shares the pixel arrays of the
+	 * specified 2D or 3D image, or <code>null</code> if this is not possible.
+	 * The stack must not be modified, since it is backed by the source image.
+	 *
+	 * @param rai
+	 *            the image to wrap.
+	 * @return a new stack, or <code>null</code>.
+	 */
+	public static ImageStack wrap( final RandomAccessibleInterval< ? > rai )
+	{
+		final int n = rai.numDimensions();
+		if ( n < 2 || n > 3 )
+			return null;
+
+		/*
+		 * Walk the view hierarchy down to the container, collecting the
+		 * coordinate transforms on the way.
+		 */
+
+		final int width = ( int ) rai.dimension( 0 );
+		final int height = ( int ) rai.dimension( 1 );
+		final long nSlices = ( n == 3 ) ? rai.dimension( 2 ) : 1;
+		final long[][] corners = new long[ 3 ][ n ];
+		for ( int c = 0; c < 3; c++ )
+			rai.min( corners[ c ] );
+		corners[ 1 ][ 0 ]++;
+		corners[ 2 ][ 1 ]++;
+		long[] zStep = new long[ n ];
+		if ( n == 3 )
+			zStep[ 2 ] = 1;
+
+		Object current = rai;
+		while ( true )
+		{
+			if ( current instanceof ImgPlus )
+			{
+				current = ( ( ImgPlus< ? > ) current ).getImg();
+			}
+			else if ( current instanceof ImgView )
+			{
+				current = ( ( ImgView< ? > ) current ).getSource();
+			}
+			else if ( current instanceof IntervalView )
+			{
+				current = ( ( IntervalView< ? > ) current ).getSource();
+			}
+			else if ( current instanceof MixedTransformView )
+			{
+				final MixedTransformView< ? > view = ( MixedTransformView< ? > ) current;
+				final MixedTransform t = view.getTransformToSource();
+				for ( int c = 0; c < 3; c++ )
+					corners[ c ] = apply( t, corners[ c ] );
+				zStep = applyLinear( t, zStep );
+				current = view.getSource();
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		/*
+		 * The X and Y axes must map to the X and Y axes of the container, and
+		 * cover whole planes.
+		 */
+
+		if ( !( current instanceof PlanarImg ) && !( current instanceof ArrayImg ) )
+			return null;
+		final RandomAccessibleInterval< ? > container = ( RandomAccessibleInterval< ? > ) current;
+		final long[] dims = Intervals.dimensionsAsLongArray( container );
+		if ( dims.length < 2 || dims[ 0 ] != width || dims[ 1 ] != height )
+			return null;
+		final long[] origin = corners[ 0 ];
+		if ( origin[ 0 ] != 0 || origin[ 1 ] != 0 )
+			return null;
+		if ( !isUnit( corners[ 1 ], origin, 0 ) || !isUnit( corners[ 2 ], origin, 1 ) )
+			return null;
+		if ( zStep[ 0 ] != 0 || zStep[ 1 ] != 0 )
+			return null;
+
+		final Object type = ( ( IterableInterval< ? > ) container ).firstElement();
+		if ( !( type instanceof UnsignedByteType )
+				&& !( type instanceof UnsignedShortType )
+				&& !( type instanceof FloatType ) )
+			return null;
+
+		final ImageStack stack = new ImageStack( width, height );
+		if ( current instanceof ArrayImg )
+		{
+			// One array for the whole image: only possible for a single plane.
+			if ( Intervals.numElements( dims ) != ( long ) width * height || nSlices != 1 )
+				return null;
+			final Object access = ( ( ArrayImg< ?, ? > ) current ).update( null );
+			if ( !( access instanceof ArrayDataAccess ) )
+				return null;
+			stack.addSlice( "", ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray() );
+			return stack;
+		}
+
+		final PlanarImg< ?, ? > planar = ( PlanarImg< ?, ? > ) current;
+		final long[] pos = origin.clone();
+		for ( long z = 0; z < nSlices; z++ )
+		{
+			final Object plane = planar.getPlane( planeIndex( pos, dims ) );
+			if ( !( plane instanceof ArrayDataAccess ) )
+				return null;
+			stack.addSlice( "", ( ( ArrayDataAccess< ? > ) plane ).getCurrentStorageArray() );
+			for ( int d = 0; d < pos.length; d++ )
+				pos[ d ] += zStep[ d ];
+		}
+		return stack;
+	}
+
+	/**
+	 * Returns the size in bytes of the pixel data in the specified stack.
+	 *
+	 * @param stack
+	 *            the stack.
+	 * @return the size in bytes.
+	 */
+	public static long sizeInBytes( final ImageStack stack )
+	{
+		return ( long ) stack.getWidth() * stack.getHeight() * stack.getSize() * ( stack.getBitDepth() / 8 );
+	}
+
+	private static int planeIndex( final long[] pos, final long[] dims )
+	{
+		long index = 0;
+		long stride = 1;
+		for ( int d = 2; d < dims.length; d++ )
+		{
+			index += pos[ d ] * stride;
+			stride *= dims[ d ];
+		}
+		return ( int ) index;
+	}
+
+	private static boolean isUnit( final long[] corner, final long[] origin, final int dim )
+	{
+		for ( int d = 0; d < origin.length; d++ )
+		{
+			final long expected = ( d == dim ) ? 1 : 0;
+			if ( corner[ d ] - origin[ d ] != expected )
+				return false;
+		}
+		return true;
+	}
+
+	private static long[] apply( final MixedTransform t, final long[] position )
+	{
+		final long[] target = new long[ t.numTargetDimensions() ];
+		t.apply( position, target );
+		return target;
+	}
+
+	/**
+	 * Applies the linear part of the transform (axis mapping and inversion,
+	 * without translation) to a displacement.
+	 */
+	private static long[] applyLinear( final MixedTransform t, final long[] step )
+	{
+		final long[] zero = new long[ step.length ];
+		final long[] a = apply( t, zero );
+		final long[] b = apply( t, step );
+		for ( int d = 0; d < a.length; d++ )
+			b[ d ] -= a[ d ];
+		return b;
+	}
+}
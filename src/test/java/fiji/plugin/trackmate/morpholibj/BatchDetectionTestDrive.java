@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Runs a headless batch detection over synthetic images, deletes the result
+ * of one file to mimic a killed job, and runs the batch again to check that
+ * only the missing file is processed.
+ */
+public class BatchDetectionTestDrive
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final Path input = Files.createTempDirectory( "batch-input" );
+		final Path output = Files.createTempDirectory( "batch-output" );
+		for ( int i = 0; i < 8; i++ )
+		{
+			final ImagePlus imp = new ImagePlus( "membranes", SyntheticMembranes.create( 256, 256, 32, 200, 16, i ) );
+			IJ.saveAsTiff( imp, input.resolve( String.format( "image-%02d.tif", i ) ).toString() );
+		}
+
+		final List< Path > files = BatchDetection.listImages( Collections.singletonList( input ) );
+		final Map< String, Object > settings = BatchDetection.parseSettings( Collections.singletonList( "TOLERANCE=30" ) );
+
+		final BatchDetection first = new BatchDetection( files, output, settings );
+		if ( !first.checkInput() || !first.process() )
+			System.err.println( first.getErrorMessage() );
+		System.out.println( String.format( "First run: %d frames processed, %d skipped, %d spots in %d ms.",
+				first.getFramesProcessed(), first.getFramesSkipped(), first.getSpotCount(), first.getProcessingTime() ) );
+
+		Files.delete( output.resolve( "image-03" + BatchDetection.Format.CSV.extension() ) );
+
+		final BatchDetection second = new BatchDetection( files, output, settings );
+		if ( !second.checkInput() || !second.process() )
+			System.err.println( second.getErrorMessage() );
+		System.out.println( String.format( "Resumed run: %d frames processed, %d skipped, %d spots in %d ms.",
+				second.getFramesProcessed(), second.getFramesSkipped(), second.getSpotCount(), second.getProcessingTime() ) );
+
+		final Map< String, Object > other = BatchDetection.parseSettings( Collections.singletonList( "TOLERANCE=20" ) );
+		final BatchDetection third = new BatchDetection( files, output, other );
+		if ( third.checkInput() && third.process() )
+			throw new AssertionError( "A batch with other settings resumed in the same output folder." );
+		System.out.println( "Other settings refused: " + third.getErrorMessage() );
+	}
+}
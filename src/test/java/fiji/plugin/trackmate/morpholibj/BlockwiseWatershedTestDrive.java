@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Compares the block-wise segmentation of a synthetic 3D membrane image with
+ * the segmentation of the whole image, for several block sizes. The
+ * block-wise segmentation is an approximation: the test checks that every
+ * pixel is labeled, and that the labels of both segmentations that are each
+ * other's best match cover most of the image. The minimal agreement is a
+ * regression bound for this image, not a guarantee.
+ */
+public class BlockwiseWatershedTestDrive
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final Connectivity connectivity = Connectivity.DIAGONAL;
+		final double tolerance = 30.;
+		final int halo = 20;
+		final double minAgreement = 0.95;
+		final ImageStack stack = SyntheticMembranes.create( 256, 256, 64, 200, 16, 1L );
+		final Img< UnsignedShortType > input = ImageJFunctions.wrapShort( new ImagePlus( "membranes", stack ) );
+
+		final long start0 = System.nanoTime();
+		final ArrayImg< IntType, IntArray > whole = ImgLib2Watershed.segment( input, tolerance, connectivity );
+		final long end0 = System.nanoTime();
+		final int[] expected = whole.update( null ).getCurrentStorageArray();
+		System.out.println( String.format( "Whole image: %.1f ms.", ( end0 - start0 ) / 1e6 ) );
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		for ( final long size : new long[] { 32, 64, 128 } )
+		{
+			final MorphoLibJDetectorStats stats = new MorphoLibJDetectorStats();
+			final long start1 = System.nanoTime();
+			final MappedVolume labels = BlockwiseWatershed.segment( input, new long[ 3 ], new long[] { size, size, size },
+					tolerance, connectivity, WatershedBackend.IMGLIB2, halo, numThreads, null, stats );
+			final long end1 = System.nanoTime();
+
+			// Overlap of each pair of labels.
+			final Map< Long, Long > overlaps = new HashMap<>();
+			for ( int i = 0; i < expected.length; i++ )
+			{
+				final int actual = labels.getValue( i );
+				if ( actual <= 0 )
+					throw new AssertionError( String.format( "Blocks of %d pixels: pixel %d is not labeled.", size, i ) );
+				overlaps.merge( ( ( long ) expected[ i ] << 32 ) | actual, 1L, Long::sum );
+			}
+			labels.close();
+
+			// Pixels covered by the pairs of labels that are each other's best match.
+			final Map< Integer, Long > bestOfExpected = new HashMap<>();
+			final Map< Integer, Long > bestOfActual = new HashMap<>();
+			for ( final Map.Entry< Long, Long > entry : overlaps.entrySet() )
+			{
+				bestOfExpected.merge( ( int ) ( entry.getKey() >>> 32 ), entry.getValue(), Math::max );
+				bestOfActual.merge( ( int ) ( long ) entry.getKey(), entry.getValue(), Math::max );
+			}
+			long agreeing = 0;
+			for ( final Map.Entry< Long, Long > entry : overlaps.entrySet() )
+			{
+				final long n = entry.getValue();
+				if ( n == bestOfExpected.get( ( int ) ( entry.getKey() >>> 32 ) ) && n == bestOfActual.get( ( int ) ( long ) entry.getKey() ) )
+					agreeing += n;
+			}
+			final double agreement = ( double ) agreeing / expected.length;
+
+			System.out.println( String.format( "Blocks of %d pixels: %.1f ms, %d labels instead of %d; %.2f %% of the pixels agree.",
+					size, ( end1 - start1 ) / 1e6, stats.getLabels(), bestOfExpected.size(), 100. * agreement ) );
+			if ( agreement < minAgreement )
+				throw new AssertionError( String.format( "Blocks of %d pixels: only %.2f %% of the pixels agree with the whole image.",
+						size, 100. * agreement ) );
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import ij.ImageStack;
+import inra.ijpb.binary.BinaryImages;
+import inra.ijpb.label.LabelImages;
+import inra.ijpb.morphology.MinimaAndMaxima3D;
+
+/**
+ * Compares the time needed to compute the watershed markers with the three
+ * MorphoLibJ passes (extended minima, minima imposition, labeling) and with
+ * the fused minima stage, on a synthetic 3D membrane image.
+ */
+public class FusedMinimaTestDrive
+{
+
+	public static void main( final String[] args )
+	{
+		final int nRepeats = 5;
+		final double tolerance = 30.;
+		final Connectivity connectivity = Connectivity.DIAGONAL;
+		final int conn = connectivity.getConnectivity();
+		final ImageStack input = SyntheticMembranes.create( 256, 256, 64, 200, 16, 1L );
+
+		// Warm-up.
+		FusedMinima.markers( input, tolerance, connectivity );
+		BinaryImages.componentsLabeling( MinimaAndMaxima3D.extendedMinima( input, tolerance, conn ), conn, 32 );
+
+		long before = 0;
+		long after = 0;
+		int nBefore = 0;
+		int nAfter = 0;
+		for ( int i = 0; i < nRepeats; i++ )
+		{
+			final long start0 = System.nanoTime();
+			final ImageStack regionalMinima = MinimaAndMaxima3D.extendedMinima( input, tolerance, conn );
+			MinimaAndMaxima3D.imposeMinima( input, regionalMinima, conn );
+			final ImageStack labeledMinima = BinaryImages.componentsLabeling( regionalMinima, conn, 32 );
+			final long end0 = System.nanoTime();
+			before += end0 - start0;
+			nBefore = LabelImages.findAllLabels( labeledMinima ).length;
+
+			final long start1 = System.nanoTime();
+			final ImageStack markers = FusedMinima.markers( input, tolerance, connectivity );
+			final long end1 = System.nanoTime();
+			after += end1 - start1;
+			nAfter = LabelImages.findAllLabels( markers ).length;
+		}
+
+		System.out.println( String.format( "MorphoLibJ passes: %.1f ms per run, %d markers.", before / 1e6 / nRepeats, nBefore ) );
+		System.out.println( String.format( "Fused minima:      %.1f ms per run, %d markers.", after / 1e6 / nRepeats, nAfter ) );
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+
+/**
+ * Compares the labels produced by the MorphoLibJ and the ImgLib2 watershed
+ * backends. Labels must be the same up to a permutation.
+ */
+public class ImgLib2WatershedTestDrive
+{
+
+	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args )
+	{
+		final String targetImagePath = "samples/Cont1-1.tif";
+		final ImagePlus imp = IJ.openImage( targetImagePath );
+
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > allChannels = TMUtils.rawWraps( imp );
+		final ImgPlus< T > input = TMUtils.hyperSlice( allChannels, 0, 0 );
+
+		final double tolerance = 30;
+		for ( final Connectivity connectivity : Connectivity.values() )
+		{
+			final long start0 = System.currentTimeMillis();
+			final MorphoLibJDetectorStats stats = new MorphoLibJDetectorStats();
+			final ImageStack expected = MorphoLibJDetector.watershed( MorphoLibJDetector.toImageStack( input, stats ), tolerance, connectivity, stats );
+			final long end0 = System.currentTimeMillis();
+
+			final long start1 = System.currentTimeMillis();
+			final ArrayImg< IntType, IntArray > actual = ImgLib2Watershed.segment( input, tolerance, connectivity );
+			final long end1 = System.currentTimeMillis();
+			final int[] labels = actual.update( null ).getCurrentStorageArray();
+
+			// Bijective mapping between the labels.
+			final Map< Integer, Integer > forward = new HashMap<>();
+			final Map< Integer, Integer > backward = new HashMap<>();
+			final int planeSize = expected.getWidth() * expected.getHeight();
+			for ( int z = 0; z < expected.getSize(); z++ )
+			{
+				final ImageProcessor ip = expected.getProcessor( z + 1 );
+				for ( int i = 0; i < planeSize; i++ )
+				{
+					final int e = ( int ) ip.getf( i );
+					final int a = labels[ z * planeSize + i ];
+					final Integer mappedA = forward.putIfAbsent( e, a );
+					final Integer mappedE = backward.putIfAbsent( a, e );
+					if ( ( mappedA != null && mappedA.intValue() != a ) || ( mappedE != null && mappedE.intValue() != e ) )
+						throw new AssertionError( String.format( "Connectivity %s: labels differ at pixel (%d, %d, %d).",
+								connectivity, i % expected.getWidth(), i / expected.getWidth(), z ) );
+				}
+			}
+
+			System.out.println( "Connectivity " + connectivity + ":" );
+			System.out.println( String.format( " - MorphoLibJ backend: %d ms, %d labels.", end0 - start0, forward.size() ) );
+			System.out.println( String.format( " - ImgLib2 backend:    %d ms.", end1 - start1 ) );
+		}
+	}
+}
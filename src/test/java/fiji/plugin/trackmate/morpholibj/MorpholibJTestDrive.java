@@ -84,9 +84,6 @@ public class MorpholibJTestDrive
 
 		final long start0 = System.currentTimeMillis();
 
-		final long end0 = System.currentTimeMillis();
-		System.out.println( String.format( "First run took %.2f seconds to run.", ( end0 - start0 ) / 1000. ) );
-
 		/*
 		 * We have to duplicate the image because MorphoLibJ does not like
 		 * virtual stacks.
@@ -110,6 +107,9 @@ public class MorpholibJTestDrive
 			return;
 		}
 		final List< Spot > spots0 = lbldetector.getResult();
+
+		final long end0 = System.currentTimeMillis();
+		System.out.println( String.format( "First run took %.2f seconds to run.", ( end0 - start0 ) / 1000. ) );
 		
 		/*
 		 * Display results.
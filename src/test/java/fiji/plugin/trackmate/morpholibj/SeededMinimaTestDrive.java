@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.imglib2.FinalDimensions;
+
+/**
+ * Compares the markers computed from scratch with the fused minima stage
+ * and seeded with the markers of the previous frame, on a synthetic 3D
+ * membrane image moved by a few pixels between two frames. In the first
+ * frame, a corner of the image is blank, so the cells of this corner appear
+ * in the second frame away from any seed. Markers must be the same up to a
+ * permutation of the labels.
+ */
+public class SeededMinimaTestDrive
+{
+
+	public static void main( final String[] args )
+	{
+		final int nRepeats = 5;
+		final double tolerance = 30.;
+		final int shift = 2;
+		final int erosion = 3;
+		final int blank = 64;
+		final Connectivity connectivity = Connectivity.DIAGONAL;
+		final ImageStack input = SyntheticMembranes.create( 256, 256, 64, 200, 16, 1L );
+		final VoxelGrid grid = new VoxelGrid( new FinalDimensions( input.getWidth(), input.getHeight(), input.getSize() ), connectivity );
+		final float[] frame0 = toArray( input, 0, blank );
+		final float[] frame1 = toArray( input, shift, 0 );
+		final double maxValue = FusedMinima.maxValue( input );
+		final MorphoLibJDetectorStats stats = new MorphoLibJDetectorStats();
+
+		final int[] previous = FusedMinima.markers( frame0, grid, tolerance, maxValue, stats ).clone();
+
+		long full = 0;
+		long seeded = 0;
+		int[] expected = null;
+		int[] actual = null;
+		for ( int i = 0; i < nRepeats; i++ )
+		{
+			final long start0 = System.nanoTime();
+			expected = FusedMinima.markers( frame1, grid, tolerance, maxValue, stats ).clone();
+			final long end0 = System.nanoTime();
+			full += end0 - start0;
+
+			final long start1 = System.nanoTime();
+			actual = SeededMinima.markers( frame1, grid, previous, tolerance, maxValue, erosion, stats ).clone();
+			final long end1 = System.nanoTime();
+			seeded += end1 - start1;
+		}
+
+		// Bijective mapping between the labels.
+		final Map< Integer, Integer > forward = new HashMap<>();
+		final Map< Integer, Integer > backward = new HashMap<>();
+		int nExpected = 0;
+		int nActual = 0;
+		int nAppeared = 0;
+		for ( int p = 0; p < grid.size; p++ )
+		{
+			nExpected = Math.max( nExpected, expected[ p ] );
+			nActual = Math.max( nActual, actual[ p ] );
+			final Integer a = forward.putIfAbsent( expected[ p ], actual[ p ] );
+			final Integer e = backward.putIfAbsent( actual[ p ], expected[ p ] );
+			if ( ( a != null && a.intValue() != actual[ p ] ) || ( e != null && e.intValue() != expected[ p ] ) )
+				throw new AssertionError( String.format( "Seeded markers differ from the markers computed from scratch at pixel (%d, %d, %d).",
+						grid.x( p ), grid.y( p ), grid.z( p ) ) );
+			if ( actual[ p ] > 0 && previous[ p ] == 0 && inBlank( grid, p, blank ) )
+				nAppeared++;
+		}
+		if ( nAppeared == 0 )
+			throw new AssertionError( "No marker found for the cells appearing in the second frame." );
+
+		System.out.println( String.format( "From scratch: %.1f ms per run, %d markers.", full / 1e6 / nRepeats, nExpected ) );
+		System.out.println( String.format( "Seeded:       %.1f ms per run, %d markers.", seeded / 1e6 / nRepeats, nActual ) );
+		System.out.println( String.format( "%d marker pixels in the corner blank in the first frame.", nAppeared ) );
+	}
+
+	private static boolean inBlank( final VoxelGrid grid, final int p, final int blank )
+	{
+		return grid.x( p ) < blank && grid.y( p ) < blank;
+	}
+
+	/**
+	 * Copies the specified stack to an array, shifted along X by the
+	 * specified number of pixels, with clamped borders. The pixels of the
+	 * specified XY corner are set to the maximal value of the stack.
+	 */
+	private static float[] toArray( final ImageStack stack, final int shift, final int blank )
+	{
+		final float max = ( float ) FusedMinima.maxValue( stack );
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final float[] values = new float[ width * height * stack.getSize() ];
+		int i = 0;
+		for ( int z = 0; z < stack.getSize(); z++ )
+		{
+			final ImageProcessor ip = stack.getProcessor( z + 1 );
+			for ( int y = 0; y < height; y++ )
+				for ( int x = 0; x < width; x++ )
+					values[ i++ ] = ( x < blank && y < blank ) ? max : ip.getf( Math.max( 0, Math.min( width - 1, x - shift ) ), y );
+		}
+		return values;
+	}
+}
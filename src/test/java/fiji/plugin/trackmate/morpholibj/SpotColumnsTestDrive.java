@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import ij.ImagePlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Writes the spots of a synthetic 3D membrane image as many frames in a
+ * spot column file, maps it back, and checks the columns against the spots.
+ */
+public class SpotColumnsTestDrive
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final int nFrames = 200;
+		final Img< UnsignedShortType > input = ImageJFunctions.wrapShort( new ImagePlus( "membranes", SyntheticMembranes.create( 256, 256, 64, 2000, 16, 1L ) ) );
+		final ArrayImg< IntType, IntArray > labels = ImgLib2Watershed.segment( input, 30., Connectivity.DIAGONAL );
+		final List< Spot > spots = LabelSpots.convert( labels, input, labels, new double[] { 1., 1., 1. }, null, 1 );
+
+		final Path file = Files.createTempFile( "spots", ".spots" );
+		final long start0 = System.nanoTime();
+		try (SpotColumnsWriter writer = SpotColumnsWriter.create( file, true ))
+		{
+			for ( int t = 0; t < nFrames; t++ )
+				writer.write( t, spots );
+		}
+		final long end0 = System.nanoTime();
+		System.out.println( String.format( "Wrote %d spots in %d frames: %.1f MB in %.1f ms.",
+				spots.size() * nFrames, nFrames, Files.size( file ) / 1e6, ( end0 - start0 ) / 1e6 ) );
+
+		final long start1 = System.nanoTime();
+		long mismatches = 0;
+		double totalVolume = 0.;
+		try (SpotColumnsReader reader = SpotColumnsReader.open( file ))
+		{
+			for ( int b = 0; b < reader.numBlocks(); b++ )
+			{
+				final SpotColumnsReader.Block block = reader.block( b );
+				final DoubleBuffer x = block.x();
+				final DoubleBuffer quality = block.quality();
+				final DoubleBuffer volume = block.volume();
+				final LongBuffer id = block.id();
+				for ( int i = 0; i < block.size(); i++ )
+				{
+					final Spot spot = spots.get( i );
+					if ( x.get( i ) != spot.getDoublePosition( 0 )
+							|| quality.get( i ) != spot.getFeature( Spot.QUALITY ).doubleValue()
+							|| id.get( i ) != spot.ID() )
+						mismatches++;
+					totalVolume += volume.get( i );
+				}
+			}
+		}
+		final long end1 = System.nanoTime();
+		System.out.println( String.format( "Scanned in %.1f ms, total volume %.0f, %d mismatches.",
+				( end1 - start1 ) / 1e6, totalVolume, mismatches ) );
+		Files.delete( file );
+	}
+}
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.Random;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Generates synthetic images of cells with bright membranes, for tests and
+ * benchmarks.
+ * <p>
+ * Cells are the Voronoi regions of random seeds. The intensity is high close
+ * to the boundary between two regions, that is where the distances to the
+ * closest and second closest seeds are similar, plus Gaussian noise.
+ */
+public class SyntheticMembranes
+{
+
+	private SyntheticMembranes()
+	{}
+
+	/**
+	 * Creates a synthetic membrane stack.
+	 *
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @param depth
+	 *            the number of slices. Use 1 for a 2D image.
+	 * @param nCells
+	 *            the number of cells.
+	 * @param bitDepth
+	 *            the bit depth of the stack: 8, 16 or 32.
+	 * @param seed
+	 *            the seed of the random generator.
+	 * @return a new stack.
+	 */
+	public static ImageStack create( final int width, final int height, final int depth, final int nCells, final int bitDepth, final long seed )
+	{
+		final Random ran = new Random( seed );
+		final double[][] seeds = new double[ nCells ][ 3 ];
+		for ( final double[] s : seeds )
+		{
+			s[ 0 ] = ran.nextDouble() * width;
+			s[ 1 ] = ran.nextDouble() * height;
+			s[ 2 ] = ran.nextDouble() * depth;
+		}
+
+		final double amplitude = ( bitDepth == 8 ) ? 200. : 2000.;
+		final double background = amplitude / 10.;
+		final double noise = amplitude / 20.;
+		final double thickness = 1.5;
+
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int z = 0; z < depth; z++ )
+		{
+			final ImageProcessor ip;
+			switch ( bitDepth )
+			{
+			case 8:
+				ip = new ByteProcessor( width, height );
+				break;
+			case 16:
+				ip = new ShortProcessor( width, height );
+				break;
+			default:
+				ip = new FloatProcessor( width, height );
+				break;
+			}
+
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					double d1 = Double.POSITIVE_INFINITY;
+					double d2 = Double.POSITIVE_INFINITY;
+					for ( final double[] s : seeds )
+					{
+						final double dx = x - s[ 0 ];
+						final double dy = y - s[ 1 ];
+						final double dz = z - s[ 2 ];
+						final double d = Math.sqrt( dx * dx + dy * dy + dz * dz );
+						if ( d < d1 )
+						{
+							d2 = d1;
+							d1 = d;
+						}
+						else if ( d < d2 )
+						{
+							d2 = d;
+						}
+					}
+					final double dm = ( d2 - d1 ) / thickness;
+					final double v = background + amplitude * Math.exp( -dm * dm / 2. ) + noise * ran.nextGaussian();
+					ip.setf( x, y, ( float ) Math.max( 0., v ) );
+				}
+			}
+			stack.addSlice( "", ip );
+		}
+		return stack;
+	}
+}
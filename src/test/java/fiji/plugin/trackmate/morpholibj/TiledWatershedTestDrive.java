@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Compares the spots of the tiled segmentation of a sample image with the
+ * spots of the serial segmentation. The tiled segmentation is an
+ * approximation: the test checks that most serial spots have an identical
+ * tiled counterpart. The minimal fraction is a regression bound for this
+ * image, not a guarantee.
+ */
+public class TiledWatershedTestDrive
+{
+
+	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args )
+	{
+		final String targetImagePath = "samples/Cont1-1.tif";
+		final ImagePlus imp = IJ.openImage( targetImagePath );
+
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > allChannels = TMUtils.rawWraps( imp );
+		final ImgPlus< T > input = TMUtils.hyperSlice( allChannels, 0, 0 );
+
+		final double tolerance = 30;
+		final Connectivity connectivity = Connectivity.DIAGONAL;
+		final int margin = 20;
+		final double minMatched = 0.95;
+
+		final MorphoLibJDetector< T > serial = new MorphoLibJDetector<>( input, input, tolerance, connectivity, false, margin, false, WatershedBackend.MORPHOLIBJ );
+		if ( !serial.checkInput() || !serial.process() )
+		{
+			System.err.println( serial.getErrorMessage() );
+			return;
+		}
+		final List< Spot > serialSpots = serial.getResult();
+		System.out.println( "Serial: " + serial.getStats() );
+
+		final MorphoLibJDetector< T > tiled = new MorphoLibJDetector<>( input, input, tolerance, connectivity, false, margin, true, WatershedBackend.MORPHOLIBJ );
+		tiled.setNumThreads( 4 );
+		if ( !tiled.checkInput() || !tiled.process() )
+		{
+			System.err.println( tiled.getErrorMessage() );
+			return;
+		}
+		final List< Spot > tiledSpots = tiled.getResult();
+		System.out.println( "Tiled:  " + tiled.getStats() );
+
+		int unmatched = 0;
+		for ( final Spot spot : serialSpots )
+		{
+			boolean found = false;
+			for ( final Spot other : tiledSpots )
+			{
+				if ( spot.squareDistanceTo( other ) < 1e-6 )
+				{
+					found = true;
+					break;
+				}
+			}
+			if ( !found )
+				unmatched++;
+		}
+		final double matched = serialSpots.isEmpty() ? 1. : 1. - ( double ) unmatched / serialSpots.size();
+		System.out.println( String.format( "%d serial spots have no identical tiled counterpart; %d spots instead of %d.",
+				unmatched, tiledSpots.size(), serialSpots.size() ) );
+		if ( matched < minMatched )
+			throw new AssertionError( String.format( "Only %.1f %% of the serial spots have an identical tiled counterpart.", 100. * matched ) );
+	}
+}
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.morpholibj;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.IntArray;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Compares the flat segmentations cut from a watershed hierarchy with the
+ * segmentations of the ImgLib2 backend, up to a permutation of the labels, on a synthetic 3D membrane image,
+ * for several tolerances. Reports the time to build the hierarchy and to
+ * cut it.
+ */
+public class WatershedHierarchyTestDrive
+{
+
+	public static void main( final String[] args )
+	{
+		final Connectivity connectivity = Connectivity.DIAGONAL;
+		final ImageStack stack = SyntheticMembranes.create( 256, 256, 64, 200, 16, 1L );
+		final Img< UnsignedShortType > input = ImageJFunctions.wrapShort( new ImagePlus( "membranes", stack ) );
+
+		final long start = System.nanoTime();
+		final WatershedHierarchy hierarchy = WatershedHierarchy.get( input, connectivity, new MorphoLibJDetectorStats() );
+		final long end = System.nanoTime();
+		System.out.println( String.format( "Hierarchy built in %.1f ms, %d basins.", ( end - start ) / 1e6, hierarchy.numBasins() ) );
+
+		for ( final double tolerance : new double[] { 5., 10., 20., 30., 50., 100. } )
+		{
+			final long start0 = System.nanoTime();
+			final int[] cut = hierarchy.cut( tolerance );
+			final long end0 = System.nanoTime();
+
+			final long start1 = System.nanoTime();
+			final ArrayImg< IntType, IntArray > flooded = ImgLib2Watershed.segment( input, tolerance, connectivity );
+			final long end1 = System.nanoTime();
+			final int[] expected = flooded.update( null ).getCurrentStorageArray();
+
+			// Labels are compared up to a permutation.
+			final Map< Integer, Integer > mapping = new HashMap<>();
+			int nCut = 0;
+			int nExpected = 0;
+			long mismatches = 0;
+			for ( int i = 0; i < cut.length; i++ )
+			{
+				nCut = Math.max( nCut, cut[ i ] );
+				nExpected = Math.max( nExpected, expected[ i ] );
+				final Integer previous = mapping.putIfAbsent( expected[ i ], cut[ i ] );
+				if ( previous != null && previous.intValue() != cut[ i ] )
+					mismatches++;
+			}
+			System.out.println( String.format( "Tolerance %.0f: cut in %.1f ms, %d labels; flooding in %.1f ms, %d labels; %d pixels with a different label.",
+					tolerance, ( end0 - start0 ) / 1e6, nCut, ( end1 - start1 ) / 1e6, nExpected, mismatches ) );
+		}
+	}
+}